@@ -0,0 +1,482 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the data/*.csv files into the tables created by create_tables.sql.
+ *
+ * Each file is streamed straight into its table with the Postgres COPY
+ * protocol, without holding more than one read buffer of it in memory.
+ * Tables that do not depend on each other are loaded in parallel, in
+ * foreign-key order: Users, Store and Items first, then FoodOrder, then
+ * ItemsInOrder.
+ *
+ * COPY needs a JDBC driver with the CopyManager API; the pg73 driver in lib/
+ * predates it. Without one the loader stops with an error rather than
+ * quietly loading row by row, unless -insert is given: the rows are then
+ * sent as multi-row INSERTs of ROWS_PER_INSERT rows, one round trip each.
+ *
+ * The CSV header names the columns to load. Each name must be a column of
+ * the target table, and only the table's own column names ever reach the
+ * SQL text.
+ *
+ */
+public class BulkLoader {
+
+   // rows per statement, and per commit, when loading with INSERTs
+   private static final int ROWS_PER_INSERT = 500;
+   private static final int INSERT_BATCH_SIZE = 5000;
+
+   // the columns of each table that can be loaded, as create_tables.sql
+   // spells them
+   private static final Map<String, List<String>> COLUMNS = new HashMap<String, List<String>>();
+   static {
+      COLUMNS.put("Users", Arrays.asList("login", "password", "role", "favoriteItems", "phoneNum"));
+      COLUMNS.put("Store", Arrays.asList("storeID", "address", "city", "state", "isOpen", "reviewScore"));
+      COLUMNS.put("Items", Arrays.asList("itemName", "ingredients", "typeOfItem", "price", "description"));
+      COLUMNS.put("FoodOrder", Arrays.asList("orderID", "login", "storeID", "totalPrice", "orderTimestamp", "orderStatus"));
+      COLUMNS.put("ItemsInOrder", Arrays.asList("orderID", "itemName", "quantity"));
+   }
+
+   /*
+    * One CSV file and the table it is loaded into. The CSV header names
+    * the table columns.
+    */
+   private static class TableLoad {
+      final String table;
+      final File file;
+
+      TableLoad(String table, File file) {
+         this.table = table;
+         this.file = file;
+      }
+   }//end TableLoad
+
+   /*
+    * The outcome of loading one table.
+    */
+   private static class LoadResult {
+      final String table;
+      final long rows;
+      final long nanos;
+      final String method;
+
+      LoadResult(String table, long rows, long nanos, String method) {
+         this.table = table;
+         this.rows = rows;
+         this.nanos = nanos;
+         this.method = method;
+      }
+   }//end LoadResult
+
+   /*
+    * Presents the records of a CSV file as the canonical CSV text that COPY
+    * expects, one record at a time.
+    */
+   private static class CopyReader extends Reader {
+      private final CsvReader csv;
+      private final int numCol;
+      private final StringBuilder line = new StringBuilder();
+      private int linePos = 0;
+      private long rows = 0;
+      private boolean done = false;
+
+      CopyReader(CsvReader csv, int numCol) {
+         this.csv = csv;
+         this.numCol = numCol;
+      }
+
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+         int copied = 0;
+         while (copied < len) {
+            if (linePos == line.length()) {
+               if (done || !nextLine())
+                  break;
+            }
+            int n = Math.min(len - copied, line.length() - linePos);
+            line.getChars(linePos, linePos + n, cbuf, off + copied);
+            linePos += n;
+            copied += n;
+         }
+         return copied == 0 && len > 0 ? -1 : copied;
+      }
+
+      private boolean nextLine() throws IOException {
+         String[] record = csv.next();
+         line.setLength(0);
+         linePos = 0;
+         if (record == null) {
+            done = true;
+            return false;
+         }
+         checkWidth(record, numCol, csv);
+         for (int i = 0; i < record.length; ++i) {
+            if (i > 0)
+               line.append(',');
+            appendCsvField(line, record[i]);
+         }
+         line.append('\n');
+         ++rows;
+         return true;
+      }
+
+      @Override
+      public void close() throws IOException {
+         csv.close();
+      }
+   }//end CopyReader
+
+   private final ConnectionPool pool;
+   private final boolean allowInsert;
+
+   /**
+    * @param pool the connections the tables are loaded over; it should hold
+    *        at least as many connections as tables loaded in parallel
+    * @param allowInsert load with multi-row INSERTs when the driver has no
+    *        COPY support, instead of failing
+    */
+   public BulkLoader(ConnectionPool pool, boolean allowInsert) {
+      this.pool = pool;
+      this.allowInsert = allowInsert;
+   }//end BulkLoader
+
+   /**
+    * Loads every data file in the given directory, printing the rows and
+    * rows per second of each table.
+    *
+    * @param dataDir the directory holding users.csv, store.csv, items.csv,
+    *        foodorder.csv and itemsinorder.csv
+    * @throws Exception when any table fails to load
+    */
+   public void loadAll(File dataDir) throws Exception {
+      List<List<TableLoad>> phases = new ArrayList<List<TableLoad>>();
+      List<TableLoad> first = new ArrayList<TableLoad>();
+      first.add(new TableLoad("Users", new File(dataDir, "users.csv")));
+      first.add(new TableLoad("Store", new File(dataDir, "store.csv")));
+      first.add(new TableLoad("Items", new File(dataDir, "items.csv")));
+      phases.add(first);
+      List<TableLoad> second = new ArrayList<TableLoad>();
+      second.add(new TableLoad("FoodOrder", new File(dataDir, "foodorder.csv")));
+      phases.add(second);
+      List<TableLoad> third = new ArrayList<TableLoad>();
+      third.add(new TableLoad("ItemsInOrder", new File(dataDir, "itemsinorder.csv")));
+      phases.add(third);
+
+      ExecutorService workers = Executors.newFixedThreadPool(first.size());
+      long start = System.nanoTime();
+      long totalRows = 0;
+      try {
+         for (List<TableLoad> phase : phases) {
+            List<Future<LoadResult>> results = new ArrayList<Future<LoadResult>>();
+            for (final TableLoad load : phase)
+               results.add(workers.submit(() -> loadTable(load)));
+            for (Future<LoadResult> future : results) {
+               LoadResult result;
+               try {
+                  result = future.get();
+               } catch (ExecutionException e) {
+                  Throwable cause = e.getCause();
+                  if (cause instanceof Exception)
+                     throw (Exception) cause;
+                  throw e;
+               }
+               totalRows += result.rows;
+               System.out.println(String.format("%-13s %10d rows in %8.3fs  %12.0f rows/sec  (%s)",
+                  result.table, result.rows, result.nanos / 1e9,
+                  rate(result.rows, result.nanos), result.method));
+            }
+         }
+      } finally {
+         workers.shutdownNow();
+      }
+
+      // new orders must be numbered after the loaded ones
+      Connection conn = pool.borrow();
+      try {
+         Statement stmt = conn.createStatement();
+         stmt.execute("SELECT setval('orderID_seq', (SELECT COALESCE(MAX(orderID), 10000) + 1 FROM FoodOrder), false)");
+         stmt.close();
+      } finally {
+         pool.release(conn);
+      }
+
+      long elapsed = System.nanoTime() - start;
+      System.out.println(String.format("%-13s %10d rows in %8.3fs  %12.0f rows/sec",
+         "Total", totalRows, elapsed / 1e9, rate(totalRows, elapsed)));
+   }//end loadAll
+
+   /*
+    * Loads one file into its table on a connection of its own.
+    */
+   private LoadResult loadTable(TableLoad load) throws Exception {
+      long start = System.nanoTime();
+      CsvReader csv = new CsvReader(new InputStreamReader(
+         new FileInputStream(load.file), StandardCharsets.UTF_8));
+      try {
+         String[] header = csv.next();
+         if (header == null)
+            return new LoadResult(load.table, 0, System.nanoTime() - start, "empty");
+         String[] columns = columns(load.table, header);
+
+         Connection conn = pool.borrow();
+         try {
+            Object copyApi = copyApi(conn);
+            long rows;
+            String method;
+            if (copyApi != null) {
+               rows = copyIn(copyApi,
+                  "COPY " + load.table + " (" + String.join(", ", columns) + ") FROM STDIN WITH CSV",
+                  new CopyReader(csv, columns.length));
+               method = "COPY";
+            } else if (allowInsert) {
+               rows = insertAll(conn, load.table, columns, csv);
+               method = "multi-row INSERT";
+            } else {
+               throw new SQLException("The JDBC driver on the classpath has no COPY support; "
+                                      + "use a driver with org.postgresql.copy.CopyManager, "
+                                      + "or pass -insert to load with multi-row INSERTs");
+            }
+            return new LoadResult(load.table, rows, System.nanoTime() - start, method);
+         } finally {
+            pool.release(conn);
+         }
+      } catch (SQLException | IOException e) {
+         throw new SQLException("Loading " + load.file + " into " + load.table + " failed: "
+                                + e.getMessage(), e);
+      } finally {
+         csv.close();
+      }
+   }//end loadTable
+
+   /*
+    * Maps the CSV header to the table's own column names, matched without
+    * regard to case. Fails on a name that is not a column of the table or
+    * that appears twice, so the header never puts arbitrary text into SQL.
+    */
+   private static String[] columns(String table, String[] header) throws SQLException {
+      List<String> known = COLUMNS.get(table);
+      String[] columns = new String[header.length];
+      for (int i = 0; i < header.length; ++i) {
+         String name = header[i] == null ? "" : header[i].trim();
+         for (String column : known)
+            if (column.equalsIgnoreCase(name))
+               columns[i] = column;
+         if (columns[i] == null)
+            throw new SQLException("Column \"" + name + "\" in the CSV header is not a column of " + table);
+         for (int j = 0; j < i; ++j)
+            if (columns[j].equals(columns[i]))
+               throw new SQLException("Column \"" + name + "\" appears twice in the CSV header");
+      }
+      return columns;
+   }//end columns
+
+   /*
+    * Returns the driver's CopyManager when it has one. The driver is looked
+    * up reflectively so the tool still compiles and starts with drivers that
+    * predate the COPY API.
+    */
+   private static Object copyApi(Connection conn) {
+      try {
+         Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+         if (!pgConnection.isInstance(conn))
+            return null;
+         return pgConnection.getMethod("getCopyAPI").invoke(conn);
+      } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+         return null;
+      } catch (InvocationTargetException e) {
+         return null;
+      }
+   }//end copyApi
+
+   private static long copyIn(Object copyApi, String sql, Reader data) throws SQLException, IOException {
+      try {
+         Method copyIn = copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+         return ((Number) copyIn.invoke(copyApi, sql, data)).longValue();
+      } catch (InvocationTargetException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         if (cause instanceof IOException)
+            throw (IOException) cause;
+         throw new SQLException("COPY failed: " + cause, cause);
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+         throw new SQLException("The JDBC driver's COPY API is not usable: " + e, e);
+      }
+   }//end copyIn
+
+   /*
+    * Loads with INSERTs for drivers without COPY: each statement carries
+    * ROWS_PER_INSERT rows, so a round trip moves hundreds of rows, and a
+    * commit follows every INSERT_BATCH_SIZE rows.
+    */
+   private static long insertAll(Connection conn, String table, String[] columns, CsvReader csv)
+         throws SQLException, IOException {
+      // the column types let the driver convert the CSV text
+      int[] types = new int[columns.length];
+      Statement meta = conn.createStatement();
+      try {
+         ResultSetMetaData rsmd = meta.executeQuery(
+            "SELECT " + String.join(", ", columns) + " FROM " + table + " WHERE false").getMetaData();
+         for (int i = 0; i < columns.length; ++i)
+            types[i] = rsmd.getColumnType(i + 1);
+      } finally {
+         meta.close();
+      }
+
+      conn.setAutoCommit(false);
+      PreparedStatement full = conn.prepareStatement(insertSql(table, columns, ROWS_PER_INSERT));
+      String[][] chunk = new String[ROWS_PER_INSERT][];
+      int pending = 0;
+      long rows = 0;
+      try {
+         String[] record;
+         while ((record = csv.next()) != null) {
+            checkWidth(record, columns.length, csv);
+            chunk[pending++] = record;
+            if (pending == ROWS_PER_INSERT) {
+               insert(full, chunk, pending, types);
+               rows += pending;
+               pending = 0;
+               if (rows % INSERT_BATCH_SIZE == 0)
+                  conn.commit();
+            }
+         }
+         if (pending > 0) {
+            PreparedStatement rest = conn.prepareStatement(insertSql(table, columns, pending));
+            try {
+               insert(rest, chunk, pending, types);
+            } finally {
+               rest.close();
+            }
+            rows += pending;
+         }
+         conn.commit();
+         return rows;
+      } catch (SQLException | IOException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         full.close();
+         conn.setAutoCommit(true);
+      }
+   }//end insertAll
+
+   private static String insertSql(String table, String[] columns, int rows) {
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (")
+         .append(String.join(", ", columns)).append(") VALUES ");
+      for (int r = 0; r < rows; ++r) {
+         sql.append(r == 0 ? "(" : ", (");
+         for (int i = 0; i < columns.length; ++i)
+            sql.append(i == 0 ? "?" : ", ?");
+         sql.append(')');
+      }
+      return sql.toString();
+   }//end insertSql
+
+   private static void insert(PreparedStatement stmt, String[][] records, int count, int[] types)
+         throws SQLException {
+      int param = 1;
+      for (int r = 0; r < count; ++r) {
+         for (int i = 0; i < types.length; ++i, ++param) {
+            if (records[r][i] == null)
+               stmt.setNull(param, types[i]);
+            else
+               stmt.setObject(param, records[r][i], types[i]);
+         }
+      }
+      stmt.executeUpdate();
+   }//end insert
+
+   private static void checkWidth(String[] record, int numCol, CsvReader csv) throws IOException {
+      if (record.length != numCol)
+         throw new IOException("Expected " + numCol + " fields but found " + record.length
+                               + " before line " + csv.getLineNumber());
+   }//end checkWidth
+
+   /*
+    * Writes a field the way COPY ... CSV reads it back: null as an empty
+    * unquoted field, everything else quoted when it has to be.
+    */
+   private static void appendCsvField(StringBuilder line, String value) {
+      if (value == null)
+         return;
+      boolean quote = value.isEmpty();
+      for (int i = 0; i < value.length() && !quote; ++i) {
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r' || c == '\\';
+      }
+      if (!quote) {
+         line.append(value);
+         return;
+      }
+      line.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         if (c == '"')
+            line.append('"');
+         line.append(c);
+      }
+      line.append('"');
+   }//end appendCsvField
+
+   private static double rate(long rows, long nanos) {
+      return nanos == 0 ? 0.0 : rows / (nanos / 1e9);
+   }//end rate
+
+   /**
+    * Loads the CSV files into the database.
+    *
+    * @param args [-insert] <dbname> <port> <user> <data directory>
+    */
+   public static void main(String[] args) {
+      boolean allowInsert = args.length > 0 && args[0].equals("-insert");
+      if (allowInsert)
+         args = Arrays.copyOfRange(args, 1, args.length);
+      if (args.length != 4) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkLoader.class.getName() +
+            " [-insert] <dbname> <port> <user> <data directory>");
+         return;
+      }//end if
+
+      ConnectionPool pool = null;
+      try {
+         Class.forName("org.postgresql.Driver");
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         pool = new ConnectionPool(url, args[2], "", 3,
+                                   PizzaStore.DEFAULT_BORROW_TIMEOUT_MILLIS,
+                                   PizzaStore.DEFAULT_IDLE_TIMEOUT_MILLIS,
+                                   PizzaStore.DEFAULT_MAX_LIFETIME_MILLIS, 4);
+         new BulkLoader(pool, allowInsert).loadAll(new File(args[3]));
+      } catch (Exception e) {
+         System.err.println("Error loading data: " + e.getMessage());
+         System.exit(-1);
+      } finally {
+         if (pool != null)
+            pool.close();
+      }
+   }//end main
+
+}//end BulkLoader
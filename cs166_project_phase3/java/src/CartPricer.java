@@ -0,0 +1,150 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prices a cart against the cached menu.
+ *
+ * Every item in the cart is resolved against one menu snapshot, so pricing
+ * costs no round trip (at most the cache's periodic version check) and all
+ * lines see the same prices. Amounts are kept in whole cents as longs, so
+ * totals are exact however many lines or units an order has; any overflow
+ * is reported rather than wrapped. Items that are not on the menu are
+ * collected instead of failing on the first one, so a caller can reject the
+ * whole cart before writing anything.
+ *
+ */
+public class CartPricer {
+
+   /**
+    * One priced line of a cart.
+    */
+   public static class Line {
+      private final String itemName;
+      private final int quantity;
+      private final long unitCents;
+      private final long lineCents;
+
+      Line(String itemName, int quantity, long unitCents, long lineCents) {
+         this.itemName = itemName;
+         this.quantity = quantity;
+         this.unitCents = unitCents;
+         this.lineCents = lineCents;
+      }
+
+      public String getItemName() {
+         return itemName;
+      }
+
+      public int getQuantity() {
+         return quantity;
+      }
+
+      public long getUnitCents() {
+         return unitCents;
+      }
+
+      public long getLineCents() {
+         return lineCents;
+      }
+   }//end Line
+
+   /**
+    * The priced cart, or the reasons it cannot be ordered.
+    */
+   public static class Quote {
+      private final List<Line> lines;
+      private final List<String> unknownItems;
+      private final long totalCents;
+
+      Quote(List<Line> lines, List<String> unknownItems, long totalCents) {
+         this.lines = Collections.unmodifiableList(lines);
+         this.unknownItems = Collections.unmodifiableList(unknownItems);
+         this.totalCents = totalCents;
+      }
+
+      /**
+       * @return true if every item is on the menu
+       */
+      public boolean isValid() {
+         return unknownItems.isEmpty();
+      }
+
+      public List<Line> getLines() {
+         return lines;
+      }
+
+      /**
+       * @return the cart items that are not on the menu
+       */
+      public List<String> getUnknownItems() {
+         return unknownItems;
+      }
+
+      /**
+       * @return the order total in cents
+       */
+      public long getTotalCents() {
+         return totalCents;
+      }
+
+      /**
+       * @return the order total as it is stored in FoodOrder.totalPrice
+       */
+      public BigDecimal getTotal() {
+         return BigDecimal.valueOf(totalCents, 2);
+      }
+   }//end Quote
+
+   private final MenuCache menu;
+
+   /**
+    * @param menu the menu prices are taken from
+    */
+   public CartPricer(MenuCache menu) {
+      this.menu = menu;
+   }//end CartPricer
+
+   /**
+    * Prices a cart.
+    *
+    * @param itemQuantities the quantity ordered of each item
+    * @return the quote; check {@link Quote#isValid} before ordering
+    * @throws java.sql.SQLException when the menu had to be loaded and could
+    *         not be
+    * @throws java.lang.ArithmeticException when the total does not fit in a
+    *         long number of cents
+    */
+   public Quote price(Map<String, Integer> itemQuantities) throws SQLException {
+      MenuCache.Snapshot snapshot = menu.snapshot();
+      List<Line> lines = new ArrayList<Line>(itemQuantities.size());
+      List<String> unknown = new ArrayList<String>();
+      long totalCents = 0;
+      for (Map.Entry<String, Integer> entry : itemQuantities.entrySet()) {
+         MenuItem item = snapshot.get(entry.getKey());
+         if (item == null) {
+            unknown.add(entry.getKey());
+            continue;
+         }
+         int quantity = entry.getValue();
+         long lineCents = Math.multiplyExact(item.getPriceCents(), (long) quantity);
+         totalCents = Math.addExact(totalCents, lineCents);
+         lines.add(new Line(item.getItemName(), quantity, item.getPriceCents(), lineCents));
+      }
+      return new Quote(lines, unknown, totalCents);
+   }//end price
+
+   /**
+    * Formats an amount of cents as dollars, e.g. 1999 as 19.99.
+    *
+    * @param cents the amount
+    * @return the amount with two decimals
+    */
+   public static String format(long cents) {
+      return BigDecimal.valueOf(cents, 2).toPlainString();
+   }//end format
+
+}//end CartPricer
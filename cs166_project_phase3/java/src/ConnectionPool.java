@@ -0,0 +1,391 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small bounded pool of physical JDBC connections.
+ *
+ * Connections are validated when they are borrowed (unless they were used
+ * very recently), closed once they have been idle for too long or have
+ * outlived their maximum lifetime, and every borrow records how long the
+ * caller had to wait for a free connection. Each connection carries its own
+ * {@link StatementCache} of prepared statements.
+ *
+ */
+public class ConnectionPool {
+
+   // connections used within this many milliseconds are not re-validated on borrow
+   private static final long VALIDATION_SKIP_MILLIS = 500;
+
+   /*
+    * A physical connection together with the bookkeeping the pool needs.
+    */
+   private static class PooledConnection {
+      final Connection connection;
+      final StatementCache statements;
+      final long createdAt;
+      long lastUsedAt;
+
+      PooledConnection(Connection connection, StatementCache statements, long now) {
+         this.connection = connection;
+         this.statements = statements;
+         this.createdAt = now;
+         this.lastUsedAt = now;
+      }
+   }//end PooledConnection
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final int maxSize;
+   private final long borrowTimeoutMillis;
+   private final long idleTimeoutMillis;
+   private final long maxLifetimeMillis;
+   private final int statementCacheSize;
+
+   // idle connections, most recently returned first
+   private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+   // connections currently handed out to callers
+   private final Map<Connection, PooledConnection> borrowed =
+      new IdentityHashMap<Connection, PooledConnection>();
+   private int openCount = 0;
+   private boolean closed = false;
+
+   private final ScheduledExecutorService evictor;
+
+   // guards the pool state; a lock rather than a monitor so that virtual
+   // threads waiting for a connection do not pin their carrier thread
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition available = lock.newCondition();
+
+   // borrow-wait metrics, guarded by lock
+   private long borrowCount = 0;
+   private long borrowTimeouts = 0;
+   private long totalWaitNanos = 0;
+   private long maxWaitNanos = 0;
+   private long createdCount = 0;
+   private long destroyedCount = 0;
+
+   // prepared-statement cache metrics, summed over all connections
+   private final LongAdder statementHits = new LongAdder();
+   private final LongAdder statementMisses = new LongAdder();
+
+   /**
+    * Creates a new connection pool. No connection is opened until the first
+    * borrow.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize the maximum number of open connections
+    * @param borrowTimeoutMillis how long a borrow waits for a free connection
+    * @param idleTimeoutMillis idle time after which a connection is closed
+    * @param maxLifetimeMillis age after which a connection is retired
+    * @param statementCacheSize prepared statements cached per connection
+    */
+   public ConnectionPool(String url, String user, String passwd, int maxSize,
+                         long borrowTimeoutMillis, long idleTimeoutMillis,
+                         long maxLifetimeMillis, int statementCacheSize) {
+      if (maxSize < 1)
+         throw new IllegalArgumentException("Pool size must be at least 1");
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.maxSize = maxSize;
+      this.borrowTimeoutMillis = borrowTimeoutMillis;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.maxLifetimeMillis = maxLifetimeMillis;
+      this.statementCacheSize = statementCacheSize;
+
+      this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "ConnectionPool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000, Math.min(idleTimeoutMillis, maxLifetimeMillis) / 2);
+      this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to the borrow timeout for one to become
+    * free. The connection must be handed back with {@link #release}.
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   public Connection borrow() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+
+      while (true) {
+         PooledConnection candidate = null;
+         boolean mayOpen = false;
+         lock.lock();
+         try {
+            while (!closed && idle.isEmpty() && openCount >= maxSize) {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  borrowTimeouts++;
+                  throw new SQLException("Timed out waiting for a database connection");
+               }
+               try {
+                  available.awaitNanos(remaining);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted waiting for a database connection");
+               }
+            }
+            if (closed)
+               throw new SQLException("Connection pool is closed");
+            if (!idle.isEmpty()) {
+               candidate = idle.pollFirst();
+            } else {
+               openCount++;
+               mayOpen = true;
+            }
+         } finally {
+            lock.unlock();
+         }
+
+         if (mayOpen)
+            candidate = open();
+         else if (!isUsable(candidate)) {
+            destroy(candidate);
+            continue;
+         }
+
+         lock.lock();
+         try {
+            long waited = System.nanoTime() - start;
+            borrowCount++;
+            totalWaitNanos += waited;
+            if (waited > maxWaitNanos)
+               maxWaitNanos = waited;
+            borrowed.put(candidate.connection, candidate);
+         } finally {
+            lock.unlock();
+         }
+         return candidate.connection;
+      }
+   }//end borrow
+
+   /**
+    * Hands a borrowed connection back to the pool.
+    *
+    * @param connection a connection obtained from {@link #borrow}
+    */
+   public void release(Connection connection) {
+      PooledConnection pooled;
+      boolean retire;
+      lock.lock();
+      try {
+         pooled = borrowed.remove(connection);
+         if (pooled == null)
+            return;
+         long now = System.currentTimeMillis();
+         retire = closed || now - pooled.createdAt >= maxLifetimeMillis;
+         if (!retire) {
+            try {
+               retire = connection.isClosed();
+            } catch (SQLException e) {
+               retire = true;
+            }
+         }
+         if (!retire) {
+            pooled.lastUsedAt = now;
+            idle.addFirst(pooled);
+            available.signal();
+         }
+      } finally {
+         lock.unlock();
+      }
+      if (retire)
+         destroy(pooled);
+   }//end release
+
+   /**
+    * Returns the cached prepared statement for the given SQL text on a
+    * borrowed connection, preparing it on first use. The statement must not be
+    * closed by the caller.
+    *
+    * @param connection a connection obtained from {@link #borrow}
+    * @param sql the SQL text with ? placeholders
+    * @return a prepared statement with its parameters cleared
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+      PooledConnection pooled;
+      lock.lock();
+      try {
+         pooled = borrowed.get(connection);
+      } finally {
+         lock.unlock();
+      }
+      if (pooled == null)
+         throw new SQLException("Connection was not borrowed from this pool");
+      return pooled.statements.prepare(sql);
+   }//end prepare
+
+   /**
+    * Drops a statement that failed from a borrowed connection's cache.
+    *
+    * @param connection a connection obtained from {@link #borrow}
+    * @param sql the SQL text the statement was prepared from
+    */
+   public void evictStatement(Connection connection, String sql) {
+      PooledConnection pooled;
+      lock.lock();
+      try {
+         pooled = borrowed.get(connection);
+      } finally {
+         lock.unlock();
+      }
+      if (pooled != null)
+         pooled.statements.evict(sql);
+   }//end evictStatement
+
+   /**
+    * Closes every idle connection and refuses further borrows. Connections
+    * still in use are closed as they are released.
+    */
+   public void close() {
+      List<PooledConnection> toClose;
+      lock.lock();
+      try {
+         closed = true;
+         toClose = new ArrayList<PooledConnection>(idle);
+         idle.clear();
+         available.signalAll();
+      } finally {
+         lock.unlock();
+      }
+      evictor.shutdownNow();
+      for (PooledConnection pooled : toClose)
+         destroy(pooled);
+   }//end close
+
+   /**
+    * @return a one-line summary of the pool size and borrow-wait metrics
+    */
+   public String getStats() {
+      lock.lock();
+      try {
+         double avgWaitMs = borrowCount == 0 ? 0.0 : totalWaitNanos / 1e6 / borrowCount;
+         return String.format(
+            "pool: open=%d idle=%d busy=%d max=%d | borrows=%d timeouts=%d avgWait=%.3fms maxWait=%.3fms | created=%d destroyed=%d | statements: hits=%d misses=%d",
+            openCount, idle.size(), borrowed.size(), maxSize, borrowCount, borrowTimeouts,
+            avgWaitMs, maxWaitNanos / 1e6, createdCount, destroyedCount,
+            statementHits.sum(), statementMisses.sum());
+      } finally {
+         lock.unlock();
+      }
+   }//end getStats
+
+   /*
+    * Opens a new physical connection. The caller has already reserved a slot
+    * in openCount, which is given back if the connection cannot be made.
+    */
+   private PooledConnection open() throws SQLException {
+      try {
+         Connection connection = DriverManager.getConnection(url, user, passwd);
+         lock.lock();
+         try {
+            createdCount++;
+         } finally {
+            lock.unlock();
+         }
+         StatementCache statements = new StatementCache(
+            connection, statementCacheSize, statementHits, statementMisses);
+         return new PooledConnection(connection, statements, System.currentTimeMillis());
+      } catch (SQLException e) {
+         lock.lock();
+         try {
+            openCount--;
+            available.signal();
+         } finally {
+            lock.unlock();
+         }
+         throw e;
+      }
+   }//end open
+
+   /*
+    * Checks an idle connection before it is handed out again.
+    */
+   private boolean isUsable(PooledConnection pooled) {
+      long now = System.currentTimeMillis();
+      if (now - pooled.createdAt >= maxLifetimeMillis)
+         return false;
+      if (now - pooled.lastUsedAt < VALIDATION_SKIP_MILLIS)
+         return true;
+      try {
+         Statement stmt = pooled.connection.createStatement();
+         try {
+            stmt.execute("SELECT 1");
+         } finally {
+            stmt.close();
+         }
+         return true;
+      } catch (SQLException e) {
+         return false;
+      }
+   }//end isUsable
+
+   /*
+    * Closes idle connections that have been unused for longer than the idle
+    * timeout or that have passed their maximum lifetime.
+    */
+   private void evictIdle() {
+      List<PooledConnection> expired = new ArrayList<PooledConnection>();
+      lock.lock();
+      try {
+         long now = System.currentTimeMillis();
+         Iterator<PooledConnection> it = idle.iterator();
+         while (it.hasNext()) {
+            PooledConnection pooled = it.next();
+            if (now - pooled.lastUsedAt >= idleTimeoutMillis
+                  || now - pooled.createdAt >= maxLifetimeMillis) {
+               it.remove();
+               expired.add(pooled);
+            }
+         }
+      } finally {
+         lock.unlock();
+      }
+      for (PooledConnection pooled : expired)
+         destroy(pooled);
+   }//end evictIdle
+
+   private void destroy(PooledConnection pooled) {
+      pooled.statements.clear();
+      try {
+         pooled.connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      lock.lock();
+      try {
+         openCount--;
+         destroyedCount++;
+         available.signal();
+      } finally {
+         lock.unlock();
+      }
+   }//end destroy
+
+}//end ConnectionPool
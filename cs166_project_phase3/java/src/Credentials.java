@@ -1,12 +1,27 @@
+/**
+ * The logged in user of a session, together with the role and profile that
+ * were loaded at login. PizzaStore refreshes the profile when it changes or
+ * when it is older than the principal TTL.
+ */
 public class Credentials {
     private String user;
-    private String password;
+    private volatile String password;
+    private volatile String role;
+    private volatile String favoriteItems;
+    private volatile String phoneNum;
+    private volatile long loadedAt;
 
     public Credentials(String user, String password) {
         this.user = user;
         this.password = password;
     }
 
+    public Credentials(String user, String password, String role,
+                       String favoriteItems, String phoneNum) {
+        this.user = user;
+        setProfile(password, role, favoriteItems, phoneNum);
+    }
+
     public String getUser() {
         return user;
     }
@@ -14,4 +29,48 @@ public class Credentials {
     public String getPassword() {
         return password;
     }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getFavoriteItems() {
+        return favoriteItems;
+    }
+
+    public String getPhoneNum() {
+        return phoneNum;
+    }
+
+    /**
+     * @return when the profile was last loaded, in epoch milliseconds, or 0
+     *         if it has never been loaded
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    /**
+     * Replaces the cached profile with freshly loaded values.
+     */
+    public synchronized void setProfile(String password, String role,
+                                        String favoriteItems, String phoneNum) {
+        this.password = password;
+        this.role = role == null ? null : role.trim();
+        this.favoriteItems = favoriteItems;
+        this.phoneNum = phoneNum;
+        this.loadedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the cached role is one of the given roles
+     */
+    public boolean hasRole(String... roles) {
+        for (String r : roles) {
+            if (r.equalsIgnoreCase(role)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,149 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the comma separated files under data/ one record at a time.
+ *
+ * Fields may be wrapped in double quotes (with "" standing for a quote
+ * inside them) and quoted fields may span lines. Whitespace around a field
+ * is ignored, so items.csv rows such as
+ * <pre>Cheese Pizza, "Cheese, Bread, Tomato Sauce", entree, 9.99, "a classic!"</pre>
+ * read as five clean fields. An unquoted empty field reads as null.
+ *
+ */
+public class CsvReader implements Closeable {
+
+   private final Reader in;
+   private final char[] buf = new char[64 * 1024];
+   private int pos = 0;
+   private int len = 0;
+   private long lineNumber = 1;
+
+   /**
+    * @param in the CSV text; it should already be buffered or be a file
+    *        reader, as it is read in large blocks
+    */
+   public CsvReader(Reader in) {
+      this.in = in;
+   }//end CsvReader
+
+   /**
+    * Reads the next record.
+    *
+    * @return the fields of the record, or null at the end of the input
+    * @throws java.io.IOException when the input cannot be read or a quoted
+    *         field is not terminated
+    */
+   public String[] next() throws IOException {
+      int c = peek();
+      // skip blank lines between records
+      while (c == '\r' || c == '\n') {
+         read();
+         c = peek();
+      }
+      if (c < 0)
+         return null;
+
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      while (true) {
+         field.setLength(0);
+         boolean quoted = false;
+
+         // leading whitespace
+         c = peek();
+         while (c == ' ' || c == '\t') {
+            read();
+            c = peek();
+         }
+
+         if (c == '"') {
+            quoted = true;
+            read();
+            long startLine = lineNumber;
+            while (true) {
+               c = read();
+               if (c < 0)
+                  throw new IOException("Unterminated quoted field starting on line " + startLine);
+               if (c == '"') {
+                  if (peek() == '"') {
+                     read();
+                     field.append('"');
+                  } else {
+                     break;
+                  }
+               } else {
+                  field.append((char) c);
+               }
+            }
+            // anything after the closing quote up to the separator is ignored
+            c = peek();
+            while (c >= 0 && c != ',' && c != '\r' && c != '\n') {
+               read();
+               c = peek();
+            }
+         } else {
+            while (c >= 0 && c != ',' && c != '\r' && c != '\n') {
+               field.append((char) read());
+               c = peek();
+            }
+            // trailing whitespace
+            int end = field.length();
+            while (end > 0 && (field.charAt(end - 1) == ' ' || field.charAt(end - 1) == '\t'))
+               --end;
+            field.setLength(end);
+         }
+
+         fields.add(!quoted && field.length() == 0 ? null : field.toString());
+
+         c = read();
+         if (c == ',')
+            continue;
+         if (c == '\r' && peek() == '\n')
+            read();
+         break;
+      }
+      return fields.toArray(new String[fields.size()]);
+   }//end next
+
+   /**
+    * @return the line the reader is currently on, for error messages
+    */
+   public long getLineNumber() {
+      return lineNumber;
+   }//end getLineNumber
+
+   @Override
+   public void close() throws IOException {
+      in.close();
+   }//end close
+
+   private int peek() throws IOException {
+      if (pos == len && !fill())
+         return -1;
+      return buf[pos];
+   }//end peek
+
+   private int read() throws IOException {
+      if (pos == len && !fill())
+         return -1;
+      char c = buf[pos++];
+      if (c == '\n')
+         ++lineNumber;
+      return c;
+   }//end read
+
+   private boolean fill() throws IOException {
+      len = in.read(buf, 0, buf.length);
+      pos = 0;
+      if (len <= 0) {
+         len = 0;
+         return false;
+      }
+      return true;
+   }//end fill
+
+}//end CsvReader
@@ -0,0 +1,163 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Pending orders of every store, oldest first, for drivers to claim.
+ *
+ * Each store has its own ConcurrentSkipListSet ordered by orderTimestamp,
+ * so placing and claiming orders at different stores never contend, and
+ * drivers claiming at the same store only race on a compare-and-set.
+ * pollFirst hands an order to exactly one driver. The claim is then written
+ * with a single conditional UPDATE that only succeeds while the order is
+ * still Pending, so an order moved by hand, or by another application
+ * instance, is skipped rather than claimed twice.
+ *
+ * The queues are fed by placed orders and rebuilt from the Pending orders
+ * in FoodOrder when the application starts.
+ *
+ */
+public class DispatchQueue {
+
+   /**
+    * Where claims are written and the Pending orders are read from.
+    */
+   public interface Orders {
+      boolean compareAndSetStatus(int orderID, String expectedStatus, String status) throws SQLException;
+      int forEachPending(PizzaStore.RowHandler handler) throws SQLException;
+   }//end Orders
+
+   // the status of an order waiting for a driver
+   static final String PENDING = "Pending";
+   // the status written when a driver claims an order
+   static final String CLAIMED = "Out for Delivery";
+
+   /*
+    * A queued order, oldest first.
+    */
+   private static class Entry implements Comparable<Entry> {
+      final int orderID;
+      final int storeID;
+      final long placedAt;
+
+      Entry(int orderID, int storeID, long placedAt) {
+         this.orderID = orderID;
+         this.storeID = storeID;
+         this.placedAt = placedAt;
+      }
+
+      public int compareTo(Entry other) {
+         int c = Long.compare(placedAt, other.placedAt);
+         return c != 0 ? c : Integer.compare(orderID, other.orderID);
+      }
+   }//end Entry
+
+   private final Orders orders;
+   private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<Entry>> byStore =
+      new ConcurrentHashMap<Integer, ConcurrentSkipListSet<Entry>>();
+   private final ConcurrentHashMap<Integer, Entry> byOrder = new ConcurrentHashMap<Integer, Entry>();
+
+   // metrics
+   private final LongAdder claims = new LongAdder();
+   private final LongAdder staleSkips = new LongAdder();
+
+   /**
+    * @param orders where claims are written and Pending orders are read
+    */
+   public DispatchQueue(Orders orders) {
+      this.orders = orders;
+   }//end DispatchQueue
+
+   /**
+    * Queues a Pending order for its store's drivers.
+    *
+    * @param orderID the order
+    * @param storeID the store it was placed at
+    * @param orderTimestamp when it was placed
+    */
+   public void enqueue(int orderID, int storeID, Timestamp orderTimestamp) {
+      Entry entry = new Entry(orderID, storeID, orderTimestamp.getTime());
+      if (byOrder.putIfAbsent(orderID, entry) == null)
+         byStore.computeIfAbsent(storeID, id -> new ConcurrentSkipListSet<Entry>()).add(entry);
+   }//end enqueue
+
+   /**
+    * Takes an order off its queue, e.g. after its status was changed by hand.
+    *
+    * @param orderID the order
+    */
+   public void remove(int orderID) {
+      Entry entry = byOrder.remove(orderID);
+      if (entry != null)
+         byStore.get(entry.storeID).remove(entry);
+   }//end remove
+
+   /**
+    * Claims the oldest Pending order of a store and marks it CLAIMED. No two
+    * callers ever claim the same order.
+    *
+    * @param storeID the store
+    * @return the claimed order, or -1 if the store has no Pending order
+    * @throws java.sql.SQLException when the claim could not be written; the
+    *         order stays queued then
+    */
+   public int claim(int storeID) throws SQLException {
+      ConcurrentSkipListSet<Entry> queue = byStore.get(storeID);
+      if (queue == null)
+         return -1;
+      while (true) {
+         Entry entry = queue.pollFirst();
+         if (entry == null)
+            return -1;
+         byOrder.remove(entry.orderID, entry);
+         boolean claimed;
+         try {
+            claimed = orders.compareAndSetStatus(entry.orderID, PENDING, CLAIMED);
+         } catch (SQLException e) {
+            if (byOrder.putIfAbsent(entry.orderID, entry) == null)
+               queue.add(entry);
+            throw e;
+         }
+         if (claimed) {
+            claims.increment();
+            return entry.orderID;
+         }
+         // no longer Pending in the database; drop it and try the next one
+         staleSkips.increment();
+      }
+   }//end claim
+
+   /**
+    * @param storeID the store
+    * @return the number of orders queued at the store
+    */
+   public int size(int storeID) {
+      ConcurrentSkipListSet<Entry> queue = byStore.get(storeID);
+      return queue == null ? 0 : queue.size();
+   }//end size
+
+   /**
+    * Forgets everything and queues the Pending orders again.
+    *
+    * @return the number of orders queued
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public int rebuild() throws SQLException {
+      byStore.clear();
+      byOrder.clear();
+      return orders.forEachPending(record ->
+         enqueue(Integer.parseInt(record.get(0).trim()), Integer.parseInt(record.get(1).trim()),
+                 Timestamp.valueOf(record.get(2).trim())));
+   }//end rebuild
+
+   /**
+    * @return a one-line summary of the queued orders and claims
+    */
+   public String getStats() {
+      return String.format("dispatch: queued=%d stores=%d | claims=%d staleSkips=%d",
+                           byOrder.size(), byStore.size(), claims.sum(), staleSkips.sum());
+   }//end getStats
+
+}//end DispatchQueue
@@ -0,0 +1,727 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A repository that keeps the whole database in the heap, for functional
+ * and load tests on machines without Postgres.
+ *
+ * It enforces what create_tables.sql declares: primary keys, NOT NULL,
+ * varchar and decimal(10,2) limits, and the foreign keys with their ON
+ * DELETE CASCADE rules, raising the same SQLStates Postgres would. Orders
+ * and stores are kept in {@link IntHashMap}s so lookups by orderID and
+ * storeID do not box their keys, and each user keeps its orders sorted
+ * newest first, which makes a page of order history a sorted-set range
+ * rather than a scan. The RecentOrders ring the database maintains with a
+ * trigger is simply the head of that set here.
+ *
+ * One read-write lock guards everything. Handlers passed to forEachOrder
+ * run after it is released, so they may call back into the repository.
+ *
+ */
+public class InMemoryPizzaRepository implements PizzaRepository {
+
+   // the first ID orderID_seq hands out on an empty FoodOrder table
+   private static final long FIRST_ORDER_ID = 10001;
+   // column sizes from create_tables.sql
+   private static final int NAME_LENGTH = 50;
+   private static final int PASSWORD_LENGTH = 30;
+   private static final int ROLE_LENGTH = 20;
+   private static final int PHONE_LENGTH = 20;
+   private static final int INGREDIENTS_LENGTH = 300;
+   private static final int TYPE_LENGTH = 30;
+   private static final int STATE_LENGTH = 60;
+   private static final int STATUS_LENGTH = 50;
+   private static final int PRICE_PRECISION = 10;
+
+   private static final String DUPLICATE_KEY = "23505";
+   private static final String FOREIGN_KEY = "23503";
+   private static final String NOT_NULL = "23502";
+   private static final String TOO_LONG = "22001";
+   private static final String OVERFLOW = "22003";
+
+   /*
+    * A row of Users, with the user's orders newest first.
+    */
+   private static class UserRow {
+      final String login;
+      String password;
+      String role;
+      String favoriteItems;
+      String phoneNum;
+      final TreeSet<OrderRow> orders = new TreeSet<OrderRow>(NEWEST_FIRST);
+
+      UserRow(String login) {
+         this.login = login;
+      }
+
+      Credentials toCredentials() {
+         return new Credentials(login, password, role, favoriteItems, phoneNum);
+      }
+   }//end UserRow
+
+   /*
+    * A row of FoodOrder together with its ItemsInOrder rows.
+    */
+   private static class OrderRow {
+      final int orderID;
+      final UserRow user;
+      final int storeID;
+      final BigDecimal totalPrice;
+      final Timestamp orderTimestamp;
+      volatile String orderStatus;
+      // itemName to quantity, in itemName order
+      final TreeMap<String, Integer> lines = new TreeMap<String, Integer>();
+
+      OrderRow(int orderID, UserRow user, int storeID, BigDecimal totalPrice,
+               Timestamp orderTimestamp, String orderStatus) {
+         this.orderID = orderID;
+         this.user = user;
+         this.storeID = storeID;
+         this.totalPrice = totalPrice;
+         this.orderTimestamp = orderTimestamp;
+         this.orderStatus = orderStatus;
+      }
+   }//end OrderRow
+
+   // the order of FoodOrder (login, orderTimestamp DESC, orderID DESC)
+   private static final Comparator<OrderRow> NEWEST_FIRST = (a, b) -> {
+      int c = b.orderTimestamp.compareTo(a.orderTimestamp);
+      return c != 0 ? c : Integer.compare(b.orderID, a.orderID);
+   };
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private final Map<String, UserRow> users = new HashMap<String, UserRow>();
+   private final Map<String, MenuItem> items = new LinkedHashMap<String, MenuItem>();
+   private final IntHashMap<Store> stores = new IntHashMap<Store>();
+   private final IntHashMap<OrderRow> orders = new IntHashMap<OrderRow>();
+   // guarded by the write lock
+   private long itemsVersion = 0;
+   private long storesVersion = 0;
+   private long nextOrderId = FIRST_ORDER_ID;
+
+   public void insertUser(String login, String password, String role,
+                          String favoriteItems, String phoneNum) throws SQLException {
+      checkNotNull("users", "login", login, NAME_LENGTH);
+      checkNotNull("users", "password", password, PASSWORD_LENGTH);
+      checkNotNull("users", "role", role, ROLE_LENGTH);
+      checkNotNull("users", "phonenum", phoneNum, PHONE_LENGTH);
+      lock.writeLock().lock();
+      try {
+         if (users.containsKey(login))
+            throw duplicate("users_pkey", "login", login);
+         UserRow user = new UserRow(login);
+         user.password = password;
+         user.role = role;
+         user.favoriteItems = favoriteItems;
+         user.phoneNum = phoneNum;
+         users.put(login, user);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end insertUser
+
+   public Credentials findUser(String login) {
+      lock.readLock().lock();
+      try {
+         UserRow user = users.get(login);
+         return user == null ? null : user.toCredentials();
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end findUser
+
+   public boolean userExists(String login) {
+      lock.readLock().lock();
+      try {
+         return users.containsKey(login);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end userExists
+
+   public List<Credentials> findUsersByRole(String role, int limit) {
+      List<Credentials> result = new ArrayList<Credentials>();
+      lock.readLock().lock();
+      try {
+         for (UserRow user : users.values()) {
+            // role is char(20), so trailing blanks do not count
+            if (user.role.trim().equals(role.trim()))
+               result.add(user.toCredentials());
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      result.sort((a, b) -> a.getUser().compareTo(b.getUser()));
+      return result.size() > limit ? new ArrayList<Credentials>(result.subList(0, limit)) : result;
+   }//end findUsersByRole
+
+   public boolean updateUser(String login, String password, String role,
+                             String favoriteItems, String phoneNum) throws SQLException {
+      check("users", "password", password, PASSWORD_LENGTH);
+      check("users", "role", role, ROLE_LENGTH);
+      check("users", "phonenum", phoneNum, PHONE_LENGTH);
+      lock.writeLock().lock();
+      try {
+         UserRow user = users.get(login);
+         if (user == null)
+            return false;
+         if (password != null)
+            user.password = password;
+         if (role != null)
+            user.role = role;
+         if (favoriteItems != null)
+            user.favoriteItems = favoriteItems;
+         if (phoneNum != null)
+            user.phoneNum = phoneNum;
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end updateUser
+
+   public boolean deleteUser(String login) {
+      lock.writeLock().lock();
+      try {
+         UserRow user = users.remove(login);
+         if (user == null)
+            return false;
+         // FoodOrder.login ON DELETE CASCADE
+         for (OrderRow order : user.orders)
+            orders.remove(order.orderID);
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end deleteUser
+
+   public long itemsVersion() {
+      lock.readLock().lock();
+      try {
+         return itemsVersion;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end itemsVersion
+
+   public List<MenuItem> items() {
+      lock.readLock().lock();
+      try {
+         return new ArrayList<MenuItem>(items.values());
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end items
+
+   public void insertItem(MenuItem item) throws SQLException {
+      checkItem(item);
+      lock.writeLock().lock();
+      try {
+         if (items.containsKey(item.getItemName()))
+            throw duplicate("items_pkey", "itemname", item.getItemName());
+         items.put(item.getItemName(), item);
+         itemsVersion++;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end insertItem
+
+   public boolean updateItem(String itemName, String ingredients, String typeOfItem,
+                             BigDecimal price, String description) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         MenuItem item = items.get(itemName);
+         if (item == null)
+            return false;
+         MenuItem updated = new MenuItem(itemName,
+            ingredients != null ? ingredients : item.getIngredients(),
+            typeOfItem != null ? typeOfItem : item.getTypeOfItem(),
+            price != null ? decimal(price) : item.getPrice(),
+            description != null ? description : item.getDescription());
+         checkItem(updated);
+         items.put(itemName, updated);
+         itemsVersion++;
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end updateItem
+
+   public boolean deleteItem(String itemName) {
+      lock.writeLock().lock();
+      try {
+         if (items.remove(itemName) == null)
+            return false;
+         itemsVersion++;
+         // ItemsInOrder.itemName ON DELETE CASCADE; items are rarely deleted,
+         // so this scans rather than keeping a reverse index
+         for (OrderRow order : orders.values())
+            order.lines.remove(itemName);
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end deleteItem
+
+   public long storesVersion() {
+      lock.readLock().lock();
+      try {
+         return storesVersion;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end storesVersion
+
+   public List<Store> stores() {
+      lock.readLock().lock();
+      try {
+         int[] ids = stores.sortedKeys();
+         List<Store> result = new ArrayList<Store>(ids.length);
+         for (int id : ids)
+            result.add(stores.get(id));
+         return result;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end stores
+
+   public int forEachStore(PizzaStore.RowHandler handler) throws SQLException {
+      List<Store> all = stores();
+      for (Store store : all)
+         handler.handle(new ArrayList<String>(Arrays.asList(
+            Integer.toString(store.getStoreID()), store.getAddress(), store.getCity(), store.getState(),
+            store.getIsOpen(), store.getReviewScore() == null ? null : String.valueOf(store.getReviewScore()))));
+      return all.size();
+   }//end forEachStore
+
+   public void insertStore(Store store) throws SQLException {
+      checkNotNull("store", "address", store.getAddress(), NAME_LENGTH);
+      checkNotNull("store", "city", store.getCity(), NAME_LENGTH);
+      checkNotNull("store", "state", store.getState(), STATE_LENGTH);
+      checkNotNull("store", "isopen", store.getIsOpen(), STATE_LENGTH);
+      lock.writeLock().lock();
+      try {
+         if (stores.containsKey(store.getStoreID()))
+            throw duplicate("store_pkey", "storeid", Integer.toString(store.getStoreID()));
+         stores.put(store.getStoreID(), store);
+         storesVersion++;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end insertStore
+
+   public boolean deleteStore(int storeID) {
+      lock.writeLock().lock();
+      try {
+         if (stores.remove(storeID) == null)
+            return false;
+         storesVersion++;
+         // FoodOrder.storeID ON DELETE CASCADE
+         for (OrderRow order : orders.values()) {
+            if (order.storeID == storeID)
+               removeOrder(order);
+         }
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end deleteStore
+
+   public long reserveOrderIds() {
+      lock.writeLock().lock();
+      try {
+         long start = nextOrderId;
+         nextOrderId += PizzaStore.ORDER_ID_BLOCK_SIZE;
+         return start;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end reserveOrderIds
+
+   /**
+    * Checks every constraint before anything is written, so a failed order
+    * leaves no trace, as a rolled back transaction would.
+    */
+   public void insertOrder(int orderID, String login, int storeID, BigDecimal totalPrice,
+                           Timestamp orderTimestamp, Map<String, Integer> itemQuantities) throws SQLException {
+      lock.writeLock().lock();
+      try {
+         OrderRow order = newOrder(orderID, login, storeID, totalPrice, orderTimestamp, "Pending");
+         for (Map.Entry<String, Integer> entry : itemQuantities.entrySet())
+            checkLine(order, entry.getKey(), entry.getValue());
+         order.lines.putAll(itemQuantities);
+         addOrder(order);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end insertOrder
+
+   public boolean setOrderStatus(int orderID, String status) throws SQLException {
+      check("foodorder", "orderstatus", status, STATUS_LENGTH);
+      lock.writeLock().lock();
+      try {
+         OrderRow order = orders.get(orderID);
+         if (order == null)
+            return false;
+         order.orderStatus = status;
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end setOrderStatus
+
+   public boolean[] setOrderStatuses(int[] orderIDs, String[] statuses) throws SQLException {
+      for (String status : statuses)
+         check("foodorder", "orderstatus", status, STATUS_LENGTH);
+      boolean[] updated = new boolean[orderIDs.length];
+      lock.writeLock().lock();
+      try {
+         for (int i = 0; i < orderIDs.length; ++i) {
+            OrderRow order = orders.get(orderIDs[i]);
+            if (order != null) {
+               order.orderStatus = statuses[i];
+               updated[i] = true;
+            }
+         }
+      } finally {
+         lock.writeLock().unlock();
+      }
+      return updated;
+   }//end setOrderStatuses
+
+   public boolean compareAndSetOrderStatus(int orderID, String expectedStatus, String status) throws SQLException {
+      check("foodorder", "orderstatus", status, STATUS_LENGTH);
+      lock.writeLock().lock();
+      try {
+         OrderRow order = orders.get(orderID);
+         if (order == null || !expectedStatus.equals(order.orderStatus))
+            return false;
+         order.orderStatus = status;
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end compareAndSetOrderStatus
+
+   public boolean deleteOrder(int orderID) {
+      lock.writeLock().lock();
+      try {
+         OrderRow order = orders.get(orderID);
+         if (order == null)
+            return false;
+         removeOrder(order);
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end deleteOrder
+
+   public int forEachOrder(String login, String afterTimestamp, int afterOrderID, int limit,
+                           PizzaStore.RowHandler handler) throws SQLException {
+      List<List<String>> page = new ArrayList<List<String>>();
+      lock.readLock().lock();
+      try {
+         UserRow user = users.get(login);
+         if (user != null) {
+            Collection<OrderRow> history = user.orders;
+            if (afterTimestamp != null) {
+               OrderRow after = new OrderRow(afterOrderID, null, 0, null,
+                                             Timestamp.valueOf(afterTimestamp), null);
+               history = user.orders.tailSet(after, false);
+            }
+            for (OrderRow order : history) {
+               if (page.size() >= limit)
+                  break;
+               page.add(new ArrayList<String>(Arrays.asList(
+                  Integer.toString(order.orderID), Integer.toString(order.storeID),
+                  order.totalPrice.toPlainString(), format(order.orderTimestamp),
+                  order.orderStatus)));
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      for (List<String> record : page)
+         handler.handle(record);
+      return page.size();
+   }//end forEachOrder
+
+   public int forEachSale(Timestamp since, PizzaStore.RowHandler handler) throws SQLException {
+      List<List<String>> records = new ArrayList<List<String>>();
+      lock.readLock().lock();
+      try {
+         for (OrderRow order : orders.values()) {
+            if (order.orderTimestamp.before(since))
+               continue;
+            List<String> header = Arrays.asList(
+               Integer.toString(order.orderID), Integer.toString(order.storeID),
+               order.totalPrice.toPlainString(), format(order.orderTimestamp), order.orderStatus);
+            if (order.lines.isEmpty()) {
+               List<String> record = new ArrayList<String>(header);
+               record.add(null);
+               record.add(null);
+               records.add(record);
+            }
+            for (Map.Entry<String, Integer> line : order.lines.entrySet()) {
+               List<String> record = new ArrayList<String>(header);
+               record.add(line.getKey());
+               record.add(line.getValue().toString());
+               records.add(record);
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      for (List<String> record : records)
+         handler.handle(record);
+      return records.size();
+   }//end forEachSale
+
+   public int forEachPendingOrder(PizzaStore.RowHandler handler) throws SQLException {
+      List<OrderRow> pending = new ArrayList<OrderRow>();
+      lock.readLock().lock();
+      try {
+         for (OrderRow order : orders.values())
+            if ("Pending".equals(order.orderStatus))
+               pending.add(order);
+      } finally {
+         lock.readLock().unlock();
+      }
+      pending.sort((a, b) -> {
+         int c = a.orderTimestamp.compareTo(b.orderTimestamp);
+         return c != 0 ? c : Integer.compare(a.orderID, b.orderID);
+      });
+      for (OrderRow order : pending)
+         handler.handle(new ArrayList<String>(Arrays.asList(
+            Integer.toString(order.orderID), Integer.toString(order.storeID), format(order.orderTimestamp))));
+      return pending.size();
+   }//end forEachPendingOrder
+
+   public Map<Integer, OrderDetails> loadOrders(Collection<Integer> orderIDs) {
+      Map<Integer, OrderDetails> result = new LinkedHashMap<Integer, OrderDetails>();
+      lock.readLock().lock();
+      try {
+         for (Integer orderID : orderIDs) {
+            OrderRow order = orders.get(orderID);
+            if (order == null || result.containsKey(orderID))
+               continue;
+            List<OrderDetails.Line> lines = new ArrayList<OrderDetails.Line>(order.lines.size());
+            for (Map.Entry<String, Integer> line : order.lines.entrySet())
+               lines.add(new OrderDetails.Line(line.getKey(), line.getValue(),
+                                               items.get(line.getKey()).getPrice()));
+            result.put(orderID, new OrderDetails(order.orderID, order.user.login, order.storeID,
+               order.totalPrice, format(order.orderTimestamp), order.orderStatus, lines));
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      return result;
+   }//end loadOrders
+
+   public List<RecentOrder> recentOrders(String login, int count) {
+      List<RecentOrder> result = new ArrayList<RecentOrder>(count);
+      lock.readLock().lock();
+      try {
+         UserRow user = users.get(login);
+         if (user == null)
+            return result;
+         for (OrderRow order : user.orders) {
+            if (result.size() >= count)
+               break;
+            result.add(new RecentOrder(order.orderID, order.storeID, order.totalPrice, order.orderTimestamp));
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      return result;
+   }//end recentOrders
+
+   /**
+    * Loads the data/*.csv files, in foreign-key order, as BulkLoader would
+    * load them into Postgres, and moves the order ID sequence past the
+    * loaded orders.
+    *
+    * @param dataDir the directory holding users.csv, store.csv, items.csv,
+    *        foodorder.csv and itemsinorder.csv
+    * @return the loaded repository
+    * @throws java.io.IOException when a file cannot be read
+    * @throws java.sql.SQLException when a row breaks a constraint
+    */
+   public static InMemoryPizzaRepository load(File dataDir) throws IOException, SQLException {
+      final InMemoryPizzaRepository repository = new InMemoryPizzaRepository();
+      readCsv(new File(dataDir, "users.csv"), row -> repository.insertUser(
+         row.get("login"), row.get("password"), row.get("role"), row.get("favoriteitems"), row.get("phonenum")));
+      readCsv(new File(dataDir, "store.csv"), row -> repository.insertStore(new Store(
+         Integer.parseInt(row.get("storeid")), row.get("address"), row.get("city"), row.get("state"),
+         row.get("isopen"), row.get("reviewscore") == null ? null : Double.valueOf(row.get("reviewscore")))));
+      readCsv(new File(dataDir, "items.csv"), row -> repository.insertItem(new MenuItem(
+         row.get("itemname"), row.get("ingredients"), row.get("typeofitem"),
+         new BigDecimal(row.get("price")), row.get("description"))));
+      readCsv(new File(dataDir, "foodorder.csv"), row -> repository.addOrder(repository.newOrder(
+         Integer.parseInt(row.get("orderid")), row.get("login"), Integer.parseInt(row.get("storeid")),
+         new BigDecimal(row.get("totalprice")), Timestamp.valueOf(row.get("ordertimestamp")),
+         row.get("orderstatus"))));
+      readCsv(new File(dataDir, "itemsinorder.csv"), row -> {
+         OrderRow order = repository.orders.get(Integer.parseInt(row.get("orderid")));
+         if (order == null)
+            throw new SQLException("insert or update on table \"itemsinorder\" violates foreign key constraint \"itemsinorder_orderid_fkey\"", FOREIGN_KEY);
+         String itemName = row.get("itemname");
+         int quantity = Integer.parseInt(row.get("quantity"));
+         repository.checkLine(order, itemName, quantity);
+         order.lines.put(itemName, quantity);
+      });
+      long maxOrderId = FIRST_ORDER_ID - 1;
+      for (OrderRow order : repository.orders.values())
+         maxOrderId = Math.max(maxOrderId, order.orderID);
+      repository.nextOrderId = maxOrderId + 1;
+      return repository;
+   }//end load
+
+   /*
+    * Builds a FoodOrder row after checking its own constraints and its
+    * foreign keys. The caller holds the write lock or owns the repository.
+    */
+   private OrderRow newOrder(int orderID, String login, int storeID, BigDecimal totalPrice,
+                             Timestamp orderTimestamp, String orderStatus) throws SQLException {
+      checkNotNull("foodorder", "login", login, NAME_LENGTH);
+      if (totalPrice == null)
+         throw notNull("totalprice");
+      if (orderTimestamp == null)
+         throw notNull("ordertimestamp");
+      check("foodorder", "orderstatus", orderStatus, STATUS_LENGTH);
+      if (orders.containsKey(orderID))
+         throw duplicate("foodorder_pkey", "orderid", Integer.toString(orderID));
+      UserRow user = users.get(login);
+      if (user == null)
+         throw missing("foodorder", "foodorder_login_fkey", "login", login, "users");
+      if (!stores.containsKey(storeID))
+         throw missing("foodorder", "foodorder_storeid_fkey", "storeid", Integer.toString(storeID), "store");
+      return new OrderRow(orderID, user, storeID, decimal(totalPrice), orderTimestamp, orderStatus);
+   }//end newOrder
+
+   /*
+    * Checks an ItemsInOrder row against its key and foreign keys.
+    */
+   private void checkLine(OrderRow order, String itemName, Integer quantity) throws SQLException {
+      checkNotNull("itemsinorder", "itemname", itemName, NAME_LENGTH);
+      if (quantity == null)
+         throw notNull("quantity");
+      if (order.lines.containsKey(itemName))
+         throw duplicate("itemsinorder_pkey", "orderid, itemname", order.orderID + ", " + itemName);
+      if (!items.containsKey(itemName))
+         throw missing("itemsinorder", "itemsinorder_itemname_fkey", "itemname", itemName, "items");
+   }//end checkLine
+
+   private void addOrder(OrderRow order) {
+      orders.put(order.orderID, order);
+      order.user.orders.add(order);
+   }//end addOrder
+
+   private void removeOrder(OrderRow order) {
+      orders.remove(order.orderID);
+      order.user.orders.remove(order);
+   }//end removeOrder
+
+   private static void checkItem(MenuItem item) throws SQLException {
+      checkNotNull("items", "itemname", item.getItemName(), NAME_LENGTH);
+      checkNotNull("items", "ingredients", item.getIngredients(), INGREDIENTS_LENGTH);
+      checkNotNull("items", "typeofitem", item.getTypeOfItem(), TYPE_LENGTH);
+      if (item.getPrice() == null)
+         throw notNull("price");
+      decimal(item.getPrice());
+   }//end checkItem
+
+   private static void checkNotNull(String table, String column, String value, int length) throws SQLException {
+      if (value == null)
+         throw notNull(column);
+      check(table, column, value, length);
+   }//end checkNotNull
+
+   private static void check(String table, String column, String value, int length) throws SQLException {
+      if (value != null && value.length() > length)
+         throw new SQLException("value too long for type character varying(" + length + ")", TOO_LONG);
+   }//end check
+
+   /*
+    * Rounds a value to decimal(10,2) as Postgres does on insert.
+    */
+   private static BigDecimal decimal(BigDecimal value) throws SQLException {
+      BigDecimal rounded = value.setScale(2, RoundingMode.HALF_UP);
+      if (rounded.precision() - rounded.scale() > PRICE_PRECISION - 2)
+         throw new SQLException("numeric field overflow", OVERFLOW);
+      return rounded;
+   }//end decimal
+
+   private static SQLException notNull(String column) {
+      return new SQLException("null value in column \"" + column + "\" violates not-null constraint", NOT_NULL);
+   }//end notNull
+
+   private static SQLException duplicate(String constraint, String columns, String key) {
+      return new SQLException("duplicate key value violates unique constraint \"" + constraint +
+                              "\" Detail: Key (" + columns + ")=(" + key + ") already exists.", DUPLICATE_KEY);
+   }//end duplicate
+
+   private static SQLException missing(String table, String constraint, String column, String key,
+                                       String referenced) {
+      return new SQLException("insert or update on table \"" + table + "\" violates foreign key constraint \"" +
+                              constraint + "\" Detail: Key (" + column + ")=(" + key +
+                              ") is not present in table \"" + referenced + "\".", FOREIGN_KEY);
+   }//end missing
+
+   /*
+    * Formats a timestamp the way Postgres prints one.
+    */
+   private static String format(Timestamp timestamp) {
+      String text = timestamp.toString();
+      return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+   }//end format
+
+   /*
+    * Receives one CSV record, keyed by lower-cased header name.
+    */
+   private interface CsvRow {
+      void handle(Map<String, String> row) throws SQLException;
+   }//end CsvRow
+
+   private static void readCsv(File file, CsvRow handler) throws IOException, SQLException {
+      CsvReader csv = new CsvReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+         String[] header = csv.next();
+         if (header == null)
+            return;
+         Map<String, String> row = new HashMap<String, String>();
+         String[] record;
+         while ((record = csv.next()) != null) {
+            row.clear();
+            for (int i = 0; i < header.length && i < record.length; ++i)
+               row.put(header[i].toLowerCase(), record[i]);
+            try {
+               handler.handle(row);
+            } catch (SQLException | RuntimeException e) {
+               throw new SQLException(file.getName() + " line " + csv.getLineNumber() + ": " + e.getMessage(),
+                                      e instanceof SQLException ? ((SQLException) e).getSQLState() : null);
+            }
+         }
+      } finally {
+         csv.close();
+      }
+   }//end readCsv
+
+}//end InMemoryPizzaRepository
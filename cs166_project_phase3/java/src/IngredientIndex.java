@@ -0,0 +1,343 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Menu search by ingredient, type of item and price, served from an
+ * inverted index over the cached menu.
+ *
+ * Every item has a fixed ordinal. Items ingredients are free text such as
+ * "Cheese, Bread, Tomato Sauce"; each normalized ingredient word, and each
+ * run of consecutive words within one comma-separated ingredient such as
+ * "tomato sauce", maps to the bitset of the items that contain it, and each
+ * type of item to the bitset of its items. A search intersects and subtracts bitsets and then
+ * checks the price of the few items left, so it costs a handful of word
+ * operations however the query is phrased; that keeps it cheap enough to
+ * run on every keystroke of a kiosk.
+ *
+ * The index follows {@link MenuCache}. When the cache hands out a new
+ * snapshot, only the items that were added, changed or removed are
+ * re-indexed, on copies of the bitsets they touch; the new index is then
+ * swapped in atomically, so searches never see a half-updated index.
+ *
+ */
+public class IngredientIndex {
+
+   /*
+    * An immutable index over one menu snapshot. Bitsets are never modified
+    * once the index is published.
+    */
+   private static class Index {
+      final MenuCache.Snapshot source;
+      // items by ordinal; null where an item was removed
+      final List<MenuItem> items;
+      final Map<String, Integer> ordinals;
+      final TreeMap<String, BitSet> byWord;
+      final Map<String, BitSet> byType;
+      final BitSet live;
+
+      Index(MenuCache.Snapshot source, List<MenuItem> items, Map<String, Integer> ordinals,
+            TreeMap<String, BitSet> byWord, Map<String, BitSet> byType, BitSet live) {
+         this.source = source;
+         this.items = items;
+         this.ordinals = ordinals;
+         this.byWord = byWord;
+         this.byType = byType;
+         this.live = live;
+      }
+   }//end Index
+
+   // the longest run of words within an ingredient an exclusion can name,
+   // short of the whole ingredient
+   private static final int MAX_PHRASE_WORDS = 4;
+
+   private static final Index EMPTY = new Index(null, Collections.<MenuItem>emptyList(),
+      Collections.<String, Integer>emptyMap(), new TreeMap<String, BitSet>(),
+      Collections.<String, BitSet>emptyMap(), new BitSet());
+
+   private final MenuCache menu;
+   private final AtomicReference<Index> current = new AtomicReference<Index>(EMPTY);
+   private final ReentrantLock updateLock = new ReentrantLock();
+
+   // metrics
+   private final LongAdder searches = new LongAdder();
+   private final LongAdder searchNanos = new LongAdder();
+   private long updates = 0;          // guarded by updateLock
+   private long reindexedItems = 0;   // guarded by updateLock
+
+   /**
+    * @param menu the cached menu the index follows
+    */
+   public IngredientIndex(MenuCache menu) {
+      this.menu = menu;
+   }//end IngredientIndex
+
+   /**
+    * Finds menu items, in menu order, without regard to case. A contained
+    * term is matched against the start of ingredient words, so "chee"
+    * already finds cheese, and a term of several words needs all of them.
+    * An excluded term only matches whole words in the same order within one
+    * ingredient, so "peppers" does not exclude pepperoni and "tomato sauce"
+    * excludes "Premium Tomato Sauce" but not an item with tomatoes and a
+    * cream sauce.
+    *
+    * @param contains terms every item must contain; may be empty
+    * @param without terms no item may contain, e.g. allergens; may be empty
+    * @param typeOfItem the type of item, or null or blank for any type
+    * @param minCents the lowest price in cents, or -1 for no lower bound
+    * @param maxCents the highest price in cents, or -1 for no upper bound
+    * @return the matching items
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public List<MenuItem> search(Collection<String> contains, Collection<String> without,
+                                String typeOfItem, long minCents, long maxCents) throws SQLException {
+      Index index = index();
+      long start = System.nanoTime();
+      BitSet matches = (BitSet) index.live.clone();
+      if (typeOfItem != null && !typeOfItem.trim().isEmpty()) {
+         BitSet type = index.byType.get(key(typeOfItem));
+         if (type == null)
+            matches.clear();
+         else
+            matches.and(type);
+      }
+      for (String term : contains) {
+         for (String word : words(term))
+            matches.and(withPrefix(index, word));
+      }
+      for (String term : without) {
+         BitSet bits = index.byWord.get(phrase(words(term)));
+         if (bits != null)
+            matches.andNot(bits);
+      }
+      List<MenuItem> result = new ArrayList<MenuItem>(matches.cardinality());
+      for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+         MenuItem item = index.items.get(i);
+         long cents = item.getPriceCents();
+         if ((minCents < 0 || cents >= minCents) && (maxCents < 0 || cents <= maxCents))
+            result.add(item);
+      }
+      searchNanos.add(System.nanoTime() - start);
+      searches.increment();
+      return result;
+   }//end search
+
+   /**
+    * @return a one-line summary of the index size, search time and updates
+    */
+   public String getStats() {
+      Index index = current.get();
+      long n = searches.sum();
+      updateLock.lock();
+      try {
+         return String.format(
+            "menu index: items=%d terms=%d types=%d | searches=%d avgSearch=%.3fus | updates=%d reindexedItems=%d",
+            index.live.cardinality(), index.byWord.size(), index.byType.size(),
+            n, n == 0 ? 0.0 : searchNanos.sum() / 1e3 / n, updates, reindexedItems);
+      } finally {
+         updateLock.unlock();
+      }
+   }//end getStats
+
+   /*
+    * Returns the index of the current menu snapshot, bringing it up to date
+    * first if the menu changed.
+    */
+   private Index index() throws SQLException {
+      MenuCache.Snapshot snap = menu.snapshot();
+      Index index = current.get();
+      if (index.source == snap)
+         return index;
+      updateLock.lock();
+      try {
+         index = current.get();
+         if (index.source != snap) {
+            index = update(index, snap);
+            current.set(index);
+         }
+         return index;
+      } finally {
+         updateLock.unlock();
+      }
+   }//end index
+
+   /*
+    * Builds the index of a new snapshot from the previous one, re-indexing
+    * only the items that differ. Bitsets are copied before their first
+    * change, so the previous index stays valid for searches in flight.
+    * Called under updateLock.
+    */
+   private Index update(Index old, MenuCache.Snapshot snap) {
+      List<MenuItem> items = new ArrayList<MenuItem>(old.items);
+      Map<String, Integer> ordinals = new HashMap<String, Integer>(old.ordinals);
+      TreeMap<String, BitSet> byWord = new TreeMap<String, BitSet>(old.byWord);
+      Map<String, BitSet> byType = new HashMap<String, BitSet>(old.byType);
+      BitSet live = (BitSet) old.live.clone();
+      Map<BitSet, BitSet> copies = new java.util.IdentityHashMap<BitSet, BitSet>();
+      int reindexed = 0;
+
+      Map<String, MenuItem> seen = new HashMap<String, MenuItem>();
+      for (MenuItem item : snap.getItems()) {
+         seen.put(item.getItemName(), item);
+         Integer ordinal = ordinals.get(item.getItemName());
+         if (ordinal != null && sameIndexedFields(items.get(ordinal), item)) {
+            items.set(ordinal, item);
+            continue;
+         }
+         if (ordinal == null) {
+            ordinal = items.size();
+            items.add(item);
+            ordinals.put(item.getItemName(), ordinal);
+         } else {
+            unindex(items.get(ordinal), ordinal, byWord, byType, copies);
+            items.set(ordinal, item);
+         }
+         index(item, ordinal, byWord, byType, copies);
+         live.set(ordinal);
+         reindexed++;
+      }
+      for (Map.Entry<String, Integer> entry : old.ordinals.entrySet()) {
+         if (seen.containsKey(entry.getKey()))
+            continue;
+         int ordinal = entry.getValue();
+         if (items.get(ordinal) != null) {
+            unindex(items.get(ordinal), ordinal, byWord, byType, copies);
+            items.set(ordinal, null);
+            live.clear(ordinal);
+            reindexed++;
+         }
+      }
+
+      updates++;
+      reindexedItems += reindexed;
+      return new Index(snap, items, ordinals, byWord, byType, live);
+   }//end update
+
+   private static boolean sameIndexedFields(MenuItem a, MenuItem b) {
+      return a != null
+         && Objects.equals(a.getIngredients(), b.getIngredients())
+         && Objects.equals(a.getTypeOfItem(), b.getTypeOfItem());
+   }//end sameIndexedFields
+
+   private static void index(MenuItem item, int ordinal, Map<String, BitSet> byWord,
+                             Map<String, BitSet> byType, Map<BitSet, BitSet> copies) {
+      for (String term : terms(item.getIngredients()))
+         writable(byWord, term, copies).set(ordinal);
+      writable(byType, key(item.getTypeOfItem()), copies).set(ordinal);
+   }//end index
+
+   private static void unindex(MenuItem item, int ordinal, Map<String, BitSet> byWord,
+                               Map<String, BitSet> byType, Map<BitSet, BitSet> copies) {
+      if (item == null)
+         return;
+      for (String term : terms(item.getIngredients()))
+         clear(byWord, term, ordinal, copies);
+      clear(byType, key(item.getTypeOfItem()), ordinal, copies);
+   }//end unindex
+
+   private static void clear(Map<String, BitSet> map, String key, int ordinal, Map<BitSet, BitSet> copies) {
+      if (!map.containsKey(key))
+         return;
+      BitSet bits = writable(map, key, copies);
+      bits.clear(ordinal);
+      if (bits.isEmpty())
+         map.remove(key);
+   }//end clear
+
+   /*
+    * Returns the bitset for a key that this update may modify: a fresh one,
+    * or a copy of the published one made on first touch.
+    */
+   private static BitSet writable(Map<String, BitSet> map, String key, Map<BitSet, BitSet> copies) {
+      BitSet bits = map.get(key);
+      if (bits == null) {
+         bits = new BitSet();
+         copies.put(bits, bits);
+         map.put(key, bits);
+      } else if (!copies.containsKey(bits)) {
+         bits = (BitSet) bits.clone();
+         copies.put(bits, bits);
+         map.put(key, bits);
+      }
+      return bits;
+   }//end writable
+
+   /*
+    * The union of the items containing a word that starts with the prefix.
+    */
+   private static BitSet withPrefix(Index index, String prefix) {
+      BitSet exact = index.byWord.get(prefix);
+      SortedMap<String, BitSet> range = index.byWord.subMap(prefix, prefix + Character.MAX_VALUE);
+      if (range.size() == 1 && exact != null)
+         return exact;
+      BitSet union = new BitSet();
+      for (BitSet bits : range.values())
+         union.or(bits);
+      return union;
+   }//end withPrefix
+
+   /*
+    * The terms an item is indexed under: every normalized word of its
+    * ingredients, every run of up to MAX_PHRASE_WORDS consecutive words
+    * within one comma-separated ingredient, and each whole ingredient.
+    */
+   static List<String> terms(String ingredients) {
+      List<String> terms = new ArrayList<String>();
+      if (ingredients == null)
+         return terms;
+      for (String ingredient : ingredients.split(",")) {
+         List<String> words = words(ingredient);
+         for (int from = 0; from < words.size(); ++from)
+            for (int to = from + 1; to <= words.size() && to - from <= MAX_PHRASE_WORDS; ++to)
+               terms.add(phrase(words.subList(from, to)));
+         if (words.size() > MAX_PHRASE_WORDS)
+            terms.add(phrase(words));
+      }
+      return terms;
+   }//end terms
+
+   private static String phrase(List<String> words) {
+      return String.join(" ", words);
+   }//end phrase
+
+   /*
+    * Splits free text into normalized words: lower case, letters and digits
+    * only, with a trailing plural s dropped so "olives" finds "Olive".
+    */
+   static List<String> words(String text) {
+      List<String> words = new ArrayList<String>();
+      if (text == null)
+         return words;
+      int start = -1;
+      for (int i = 0; i <= text.length(); ++i) {
+         boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+         if (inWord && start < 0) {
+            start = i;
+         } else if (!inWord && start >= 0) {
+            String word = text.substring(start, i).toLowerCase(Locale.ROOT);
+            if (word.length() > 3 && word.endsWith("s") && !word.endsWith("ss"))
+               word = word.substring(0, word.length() - 1);
+            words.add(word);
+            start = -1;
+         }
+      }
+      return words;
+   }//end words
+
+   private static String key(String name) {
+      return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+   }//end key
+
+}//end IngredientIndex
@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hash map from int keys to non-null values, for orderID and storeID
+ * lookups that should not box their keys.
+ *
+ * Keys and values sit in two parallel arrays probed linearly from a mixed
+ * hash of the key; a null value marks a free slot, and removal shifts the
+ * following entries back instead of leaving tombstones. The table doubles
+ * once it is two thirds full. Not thread safe.
+ *
+ */
+public class IntHashMap<V> {
+
+   private int[] keys;
+   private Object[] values;
+   private int size = 0;
+   private int mask;
+
+   public IntHashMap() {
+      this(16);
+   }
+
+   /**
+    * @param expectedSize the number of entries to make room for up front
+    */
+   public IntHashMap(int expectedSize) {
+      int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 3 / 2) - 1) << 1;
+      keys = new int[capacity];
+      values = new Object[capacity];
+      mask = capacity - 1;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public boolean isEmpty() {
+      return size == 0;
+   }
+
+   /**
+    * @return the value for the key, or null if there is none
+    */
+   @SuppressWarnings("unchecked")
+   public V get(int key) {
+      for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+         if (keys[i] == key)
+            return (V) values[i];
+      }
+      return null;
+   }
+
+   public boolean containsKey(int key) {
+      return get(key) != null;
+   }
+
+   /**
+    * @return the value the key had before, or null if it had none
+    */
+   @SuppressWarnings("unchecked")
+   public V put(int key, V value) {
+      if (value == null)
+         throw new NullPointerException("IntHashMap values must not be null");
+      int i = slot(key);
+      for (; values[i] != null; i = (i + 1) & mask) {
+         if (keys[i] == key) {
+            V previous = (V) values[i];
+            values[i] = value;
+            return previous;
+         }
+      }
+      keys[i] = key;
+      values[i] = value;
+      if (++size * 3 > values.length * 2)
+         resize(values.length * 2);
+      return null;
+   }
+
+   /**
+    * @return the value the key had, or null if it had none
+    */
+   @SuppressWarnings("unchecked")
+   public V remove(int key) {
+      int i = slot(key);
+      for (; values[i] != null; i = (i + 1) & mask) {
+         if (keys[i] == key)
+            break;
+      }
+      if (values[i] == null)
+         return null;
+      V previous = (V) values[i];
+      // shift back every following entry that probed past the freed slot
+      int free = i;
+      for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+         int home = slot(keys[j]);
+         if (((j - home) & mask) >= ((j - free) & mask)) {
+            keys[free] = keys[j];
+            values[free] = values[j];
+            free = j;
+         }
+      }
+      values[free] = null;
+      size--;
+      return previous;
+   }
+
+   /**
+    * @return a copy of the values, in no particular order
+    */
+   @SuppressWarnings("unchecked")
+   public List<V> values() {
+      List<V> result = new ArrayList<V>(size);
+      for (Object value : values) {
+         if (value != null)
+            result.add((V) value);
+      }
+      return result;
+   }
+
+   /**
+    * @return a copy of the keys, in ascending order
+    */
+   public int[] sortedKeys() {
+      int[] result = new int[size];
+      int n = 0;
+      for (int i = 0; i < values.length; ++i) {
+         if (values[i] != null)
+            result[n++] = keys[i];
+      }
+      Arrays.sort(result);
+      return result;
+   }
+
+   public void clear() {
+      Arrays.fill(values, null);
+      size = 0;
+   }
+
+   private int slot(int key) {
+      int h = key * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+   }
+
+   private void resize(int capacity) {
+      int[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new int[capacity];
+      values = new Object[capacity];
+      mask = capacity - 1;
+      for (int i = 0; i < oldValues.length; ++i) {
+         if (oldValues[i] == null)
+            continue;
+         int j = slot(oldKeys[i]);
+         while (values[j] != null)
+            j = (j + 1) & mask;
+         keys[j] = oldKeys[i];
+         values[j] = oldValues[i];
+      }
+   }
+}//end IntHashMap
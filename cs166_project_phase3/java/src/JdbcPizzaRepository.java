@@ -0,0 +1,370 @@
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The repository over the Postgres schema of create_tables.sql.
+ *
+ * Every statement goes through the owning PizzaStore's pooled, timed query
+ * methods, so the connection pool, the prepared statement caches and the
+ * query metrics see the same traffic as before the repository existed. Keys,
+ * foreign keys and cascades are the database's own.
+ *
+ * Each operation is either read-write or read-only. Read-only browsing
+ * (users, order history, order details, recent orders and the store
+ * listing) runs through {@link PizzaStore#readOnly}, which sends it to the
+ * read replica when one is configured and fresh enough; writes note the
+ * customer they touched so that customer keeps reading from the primary
+ * until the replica catches up. The menu and store loads behind the
+ * in-process caches stay on the primary, so a cache never pairs a version
+ * with older rows.
+ *
+ */
+public class JdbcPizzaRepository implements PizzaRepository {
+
+   private static final String STORES_QUERY =
+      "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store ORDER BY storeID;";
+
+   private final PizzaStore store;
+   private final ConnectionPool pool;
+   private final Metrics metrics;
+   // loads order headers, lines and prices in one round trip.
+   private final OrderLoader orderLoader;
+
+   /**
+    * @param store runs the statements
+    * @param pool the store's connection pool, for batched statements
+    * @param metrics the store's query metrics
+    */
+   public JdbcPizzaRepository(PizzaStore store, ConnectionPool pool, Metrics metrics) {
+      this.store = store;
+      this.pool = pool;
+      this.metrics = metrics;
+      this.orderLoader = new OrderLoader(store::executeQueryAndReturnResult);
+   }//end JdbcPizzaRepository
+
+   public void insertUser(String login, String password, String role,
+                          String favoriteItems, String phoneNum) throws SQLException {
+      store.executeUpdate("INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES (?, ?, ?, ?, ?);",
+                          login, password, role, favoriteItems, phoneNum);
+      store.wrote(login);
+   }//end insertUser
+
+   public Credentials findUser(String login) throws SQLException {
+      List<List<String>> result = store.readOnly(login, () -> store.executeQueryAndReturnResult(
+         "SELECT password, role, favoriteItems, phoneNum FROM Users WHERE login = ?;", login));
+      if (result.isEmpty())
+         return null;
+      List<String> row = result.get(0);
+      return new Credentials(login, row.get(0), row.get(1), row.get(2), row.get(3));
+   }//end findUser
+
+   public boolean userExists(String login) throws SQLException {
+      return store.readOnly(login, () -> store.exists("SELECT 1 FROM Users WHERE login = ?;", login));
+   }//end userExists
+
+   public List<Credentials> findUsersByRole(String role, int limit) throws SQLException {
+      final List<Credentials> users = new ArrayList<Credentials>();
+      store.readOnly(null, () -> store.executeQueryForEach(
+         "SELECT login, password, role, favoriteItems, phoneNum FROM Users WHERE role = ? ORDER BY login LIMIT ?;",
+         row -> users.add(new Credentials(row.get(0), row.get(1), row.get(2), row.get(3), row.get(4))),
+         role, limit));
+      return users;
+   }//end findUsersByRole
+
+   public boolean updateUser(String login, String password, String role,
+                             String favoriteItems, String phoneNum) throws SQLException {
+      Update update = new Update("Users");
+      update.set("password", password);
+      update.set("role", role);
+      update.set("favoriteItems", favoriteItems);
+      update.set("phoneNum", phoneNum);
+      if (update.isEmpty())
+         return findUser(login) != null;
+      boolean updated = update.run("login", login) > 0;
+      store.wrote(login);
+      return updated;
+   }//end updateUser
+
+   public boolean deleteUser(String login) throws SQLException {
+      boolean deleted = store.executeUpdate("DELETE FROM Users WHERE login = ?;", login) > 0;
+      store.wrote(login);
+      return deleted;
+   }//end deleteUser
+
+   public long itemsVersion() throws SQLException {
+      List<List<String>> result = store.executeQueryAndReturnResult(
+         "SELECT version FROM CacheVersion WHERE name = ?;", "Items");
+      return result.isEmpty() ? 0 : Long.parseLong(result.get(0).get(0));
+   }//end itemsVersion
+
+   public List<MenuItem> items() throws SQLException {
+      final List<MenuItem> items = new ArrayList<MenuItem>();
+      store.executeQueryForEach(
+         "SELECT itemName, ingredients, typeOfItem, price, description FROM Items;",
+         item -> items.add(new MenuItem(item.get(0), item.get(1), item.get(2),
+                                        new BigDecimal(item.get(3)), item.get(4))));
+      return items;
+   }//end items
+
+   public void insertItem(MenuItem item) throws SQLException {
+      store.executeUpdate("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES (?, ?, ?, ?, ?);",
+                          item.getItemName(), item.getIngredients(), item.getTypeOfItem(),
+                          item.getPrice(), item.getDescription());
+   }//end insertItem
+
+   public boolean updateItem(String itemName, String ingredients, String typeOfItem,
+                             BigDecimal price, String description) throws SQLException {
+      Update update = new Update("Items");
+      update.set("ingredients", ingredients);
+      update.set("typeOfItem", typeOfItem);
+      update.set("price", price);
+      update.set("description", description);
+      if (update.isEmpty())
+         return store.exists("SELECT 1 FROM Items WHERE itemName = ?;", itemName);
+      return update.run("itemName", itemName) > 0;
+   }//end updateItem
+
+   public boolean deleteItem(String itemName) throws SQLException {
+      return store.executeUpdate("DELETE FROM Items WHERE itemName = ?;", itemName) > 0;
+   }//end deleteItem
+
+   public long storesVersion() throws SQLException {
+      List<List<String>> result = store.executeQueryAndReturnResult(
+         "SELECT version FROM CacheVersion WHERE name = ?;", "Store");
+      return result.isEmpty() ? 0 : Long.parseLong(result.get(0).get(0));
+   }//end storesVersion
+
+   public List<Store> stores() throws SQLException {
+      final List<Store> stores = new ArrayList<Store>();
+      store.executeQueryForEach(STORES_QUERY,
+         row -> stores.add(new Store(Integer.parseInt(row.get(0)), row.get(1), row.get(2), row.get(3), row.get(4),
+                                     row.get(5) == null ? null : Double.valueOf(row.get(5)))));
+      return stores;
+   }//end stores
+
+   public int forEachStore(PizzaStore.RowHandler handler) throws SQLException {
+      return store.readOnly(null, () -> store.executeQueryForEach(STORES_QUERY, handler));
+   }//end forEachStore
+
+   public void insertStore(Store s) throws SQLException {
+      store.executeUpdate("INSERT INTO Store (storeID, address, city, state, isOpen, reviewScore) VALUES (?, ?, ?, ?, ?, ?);",
+                          s.getStoreID(), s.getAddress(), s.getCity(), s.getState(), s.getIsOpen(), s.getReviewScore());
+   }//end insertStore
+
+   public boolean deleteStore(int storeID) throws SQLException {
+      return store.executeUpdate("DELETE FROM Store WHERE storeID = ?;", storeID) > 0;
+   }//end deleteStore
+
+   public long reserveOrderIds() throws SQLException {
+      return Long.parseLong(store.executeQueryAndReturnResult("SELECT nextval('orderID_seq');").get(0).get(0));
+   }//end reserveOrderIds
+
+   /**
+    * Writes the header and the line items in one transaction. The line items
+    * are sent to the server as a single JDBC batch, so an order costs one
+    * commit however many items it has.
+    */
+   public void insertOrder(final int orderID, final String login, final int storeID,
+                           final BigDecimal totalPrice, final Timestamp orderTimestamp,
+                           final Map<String, Integer> itemQuantities) throws SQLException {
+      store.executeInTransaction(conn -> {
+         final String orderQuery =
+            "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
+            "VALUES (?, ?, ?, ?, ?, 'Pending');";
+         PreparedStatement order = pool.prepare(conn, orderQuery);
+         order.setInt(1, orderID);
+         order.setString(2, login);
+         order.setInt(3, storeID);
+         order.setBigDecimal(4, totalPrice);
+         order.setTimestamp(5, orderTimestamp);
+         long start = System.nanoTime();
+         order.executeUpdate();
+         metrics.query(orderQuery, start);
+
+         final String linesQuery = "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (?, ?, ?);";
+         PreparedStatement lines = pool.prepare(conn, linesQuery);
+         for (Map.Entry<String, Integer> entry : itemQuantities.entrySet()) {
+            lines.setInt(1, orderID);
+            lines.setString(2, entry.getKey());
+            lines.setInt(3, entry.getValue());
+            lines.addBatch();
+         }
+         start = System.nanoTime();
+         try {
+            lines.executeBatch();
+         } finally {
+            lines.clearBatch();
+         }
+         // the driver sends a batch one statement at a time
+         metrics.query(linesQuery, start);
+         metrics.roundTrips(Math.max(0, itemQuantities.size() - 1));
+         return null;
+      });
+      store.wrote(login);
+   }//end insertOrder
+
+   public boolean setOrderStatus(int orderID, String status) throws SQLException {
+      return store.executeUpdate("UPDATE FoodOrder SET orderStatus = ? WHERE orderID = ?;", status, orderID) > 0;
+   }//end setOrderStatus
+
+   /**
+    * The updates are sent as one JDBC batch in one transaction, so the
+    * whole batch costs a single commit.
+    */
+   public boolean[] setOrderStatuses(final int[] orderIDs, final String[] statuses) throws SQLException {
+      return store.executeInTransaction(conn -> {
+         final String query = "UPDATE FoodOrder SET orderStatus = ? WHERE orderID = ?;";
+         PreparedStatement update = pool.prepare(conn, query);
+         for (int i = 0; i < orderIDs.length; ++i) {
+            update.setString(1, statuses[i]);
+            update.setInt(2, orderIDs[i]);
+            update.addBatch();
+         }
+         long start = System.nanoTime();
+         int[] counts;
+         try {
+            counts = update.executeBatch();
+         } finally {
+            update.clearBatch();
+         }
+         // the driver sends a batch one statement at a time
+         metrics.query(query, start);
+         metrics.roundTrips(Math.max(0, orderIDs.length - 1));
+         boolean[] updated = new boolean[orderIDs.length];
+         for (int i = 0; i < counts.length; ++i)
+            updated[i] = counts[i] > 0;
+         return updated;
+      });
+   }//end setOrderStatuses
+
+   public boolean compareAndSetOrderStatus(int orderID, String expectedStatus, String status) throws SQLException {
+      return store.executeUpdate("UPDATE FoodOrder SET orderStatus = ? WHERE orderID = ? AND orderStatus = ?;",
+                                 status, orderID, expectedStatus) > 0;
+   }//end compareAndSetOrderStatus
+
+   public boolean deleteOrder(int orderID) throws SQLException {
+      return store.executeUpdate("DELETE FROM FoodOrder WHERE orderID = ?;", orderID) > 0;
+   }//end deleteOrder
+
+   /**
+    * Pages are keyed on (orderTimestamp, orderID) rather than counted with
+    * OFFSET, so with the FoodOrder (login, orderTimestamp, orderID) index
+    * every page is one index range scan of limit rows, however deep it is.
+    */
+   public int forEachOrder(String login, String afterTimestamp, int afterOrderID, int limit,
+                           PizzaStore.RowHandler handler) throws SQLException {
+      if (afterTimestamp == null)
+         return store.readOnly(login, () -> store.executeQueryForEach(
+            "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder " +
+            "WHERE login = ? " +
+            "ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?;",
+            handler, login, limit));
+      return store.readOnly(login, () -> store.executeQueryForEach(
+         "SELECT orderID, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder " +
+         "WHERE login = ? AND (orderTimestamp, orderID) < (CAST(? AS timestamp), ?) " +
+         "ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?;",
+         handler, login, afterTimestamp, afterOrderID, limit));
+   }//end forEachOrder
+
+   /**
+    * Orders are looked up by ID without knowing whose they are, so orders
+    * the replica does not have yet, such as one just placed, are read again
+    * from the primary.
+    */
+   public Map<Integer, OrderDetails> loadOrders(final Collection<Integer> orderIDs) throws SQLException {
+      Map<Integer, OrderDetails> orders = store.readOnly(null, () -> orderLoader.loadAll(orderIDs));
+      List<Integer> missing = new ArrayList<Integer>();
+      for (Integer orderID : orderIDs)
+         if (!orders.containsKey(orderID))
+            missing.add(orderID);
+      if (missing.isEmpty())
+         return orders;
+      Map<Integer, OrderDetails> found = orderLoader.loadAll(missing);
+      if (found.isEmpty())
+         return orders;
+      // keep the order asked for
+      Map<Integer, OrderDetails> merged = new LinkedHashMap<Integer, OrderDetails>();
+      for (Integer orderID : orderIDs) {
+         OrderDetails order = orders.containsKey(orderID) ? orders.get(orderID) : found.get(orderID);
+         if (order != null)
+            merged.put(orderID, order);
+      }
+      return merged;
+   }//end loadOrders
+
+   /**
+    * One range scan of the FoodOrder (orderTimestamp) index joined with the
+    * line items of the orders it finds.
+    */
+   public int forEachSale(Timestamp since, PizzaStore.RowHandler handler) throws SQLException {
+      return store.executeQueryForEach(
+         "SELECT o.orderID, o.storeID, o.totalPrice, o.orderTimestamp, o.orderStatus, i.itemName, i.quantity " +
+         "FROM FoodOrder o LEFT JOIN ItemsInOrder i ON i.orderID = o.orderID " +
+         "WHERE o.orderTimestamp >= ? ORDER BY o.orderID;",
+         handler, since);
+   }//end forEachSale
+
+   /**
+    * The literal 'Pending' lets the planner use the partial
+    * foodorder_pending_index, which only holds Pending orders.
+    */
+   public int forEachPendingOrder(PizzaStore.RowHandler handler) throws SQLException {
+      return store.executeQueryForEach(
+         "SELECT orderID, storeID, orderTimestamp FROM FoodOrder " +
+         "WHERE orderStatus = 'Pending' ORDER BY orderTimestamp, orderID;",
+         handler);
+   }//end forEachPendingOrder
+
+   /**
+    * Reads the RecentOrders ring kept by the update_recent_orders trigger:
+    * one primary-key range of at most RECENT_ORDER_COUNT rows.
+    */
+   public List<RecentOrder> recentOrders(String login, int count) throws SQLException {
+      List<RecentOrder> orders = new ArrayList<RecentOrder>(count);
+      for (List<String> row : store.readOnly(login, () -> store.executeQueryAndReturnResult(
+            "SELECT orderID, storeID, totalPrice, orderTimestamp FROM RecentOrders WHERE login = ? ORDER BY seq DESC LIMIT ?;",
+            login, count)))
+         orders.add(new RecentOrder(Integer.parseInt(row.get(0)), Integer.parseInt(row.get(1)),
+                                    new BigDecimal(row.get(2)), Timestamp.valueOf(row.get(3))));
+      return orders;
+   }//end recentOrders
+
+   /*
+    * Builds an UPDATE of the columns that were given a value.
+    */
+   private class Update {
+      private final StringBuilder sql;
+      private final List<Object> params = new ArrayList<Object>();
+
+      Update(String table) {
+         sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+      }
+
+      void set(String column, Object value) {
+         if (value == null)
+            return;
+         if (!params.isEmpty())
+            sql.append(", ");
+         sql.append(column).append(" = ?");
+         params.add(value);
+      }
+
+      boolean isEmpty() {
+         return params.isEmpty();
+      }
+
+      int run(String keyColumn, Object key) throws SQLException {
+         sql.append(" WHERE ").append(keyColumn).append(" = ?;");
+         params.add(key);
+         return store.executeUpdate(sql.toString(), params.toArray());
+      }
+   }//end Update
+
+}//end JdbcPizzaRepository
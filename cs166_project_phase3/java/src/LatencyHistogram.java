@@ -0,0 +1,144 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of latencies in nanoseconds.
+ *
+ * Values are grouped into buckets that are exact below 32ns and within about
+ * 3% above that, across the whole range of a long. Recording is lock-free
+ * and allocation-free, so it can be done on every call of a hot path from
+ * many threads at once.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKET_COUNT = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records one latency.
+    *
+    * @param nanos the latency in nanoseconds; negative values count as 0
+    */
+   public void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      counts.incrementAndGet(indexOf(nanos));
+      count.incrementAndGet();
+      sum.addAndGet(nanos);
+      long m = max.get();
+      while (nanos > m && !max.compareAndSet(m, nanos))
+         m = max.get();
+   }//end record
+
+   /**
+    * @return the number of recorded values
+    */
+   public long getCount() {
+      return count.get();
+   }//end getCount
+
+   /**
+    * @return the mean of the recorded values in nanoseconds
+    */
+   public double getMean() {
+      long n = count.get();
+      return n == 0 ? 0.0 : (double) sum.get() / n;
+   }//end getMean
+
+   /**
+    * @return the largest recorded value in nanoseconds
+    */
+   public long getMax() {
+      return max.get();
+   }//end getMax
+
+   /**
+    * Returns the value at a percentile, accurate to the bucket width.
+    *
+    * @param percentile between 0 and 100
+    * @return the upper bound of the bucket holding that percentile, in
+    *         nanoseconds, or 0 if nothing has been recorded
+    */
+   public long getPercentile(double percentile) {
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; ++i)
+         total += counts.get(i);
+      if (total == 0)
+         return 0;
+      long rank = (long) Math.ceil(percentile / 100.0 * total);
+      if (rank < 1)
+         rank = 1;
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+         seen += counts.get(i);
+         if (seen >= rank)
+            return Math.min(upperBoundOf(i), max.get());
+      }
+      return max.get();
+   }//end getPercentile
+
+   /**
+    * Adds every value recorded in another histogram to this one.
+    *
+    * @param other the histogram to merge in
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+         long c = other.counts.get(i);
+         if (c != 0)
+            counts.addAndGet(i, c);
+      }
+      count.addAndGet(other.count.get());
+      sum.addAndGet(other.sum.get());
+      long otherMax = other.max.get();
+      long m = max.get();
+      while (otherMax > m && !max.compareAndSet(m, otherMax))
+         m = max.get();
+   }//end add
+
+   /**
+    * Clears every recorded value.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKET_COUNT; ++i)
+         counts.set(i, 0);
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+   }//end reset
+
+   /**
+    * @return count, mean and the usual percentiles in milliseconds
+    */
+   public String summary() {
+      return String.format("n=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+         getCount(), getMean() / 1e6, getPercentile(50) / 1e6, getPercentile(90) / 1e6,
+         getPercentile(99) / 1e6, getPercentile(99.9) / 1e6, getMax() / 1e6);
+   }//end summary
+
+   private static int indexOf(long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+      int msb = 63 - Long.numberOfLeadingZeros(value);
+      int exp = msb - SUB_BITS + 1;
+      int sub = (int) (value >>> (exp - 1)) - SUB_COUNT;
+      return exp * SUB_COUNT + sub;
+   }//end indexOf
+
+   private static long upperBoundOf(int index) {
+      if (index < SUB_COUNT)
+         return index;
+      int exp = index / SUB_COUNT;
+      int sub = index % SUB_COUNT;
+      long next = (long) (SUB_COUNT + sub + 1) << (exp - 1);
+      return next - 1 < 0 ? Long.MAX_VALUE : next - 1;
+   }//end upperBoundOf
+
+}//end LatencyHistogram
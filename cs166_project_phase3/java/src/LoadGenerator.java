@@ -0,0 +1,375 @@
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives the ordering workflows headlessly with many concurrent simulated
+ * customers and drivers, then prints throughput, error counts and latency
+ * histograms per workflow.
+ *
+ * Customers are created with CreateUser's insert, log in, and then place
+ * orders or read their order history according to the configured mix.
+ * Drivers log in with existing driver accounts from Users and move the
+ * placed orders along. Work arrives at a fixed total rate; latencies are
+ * measured from when each request was due, so a stalled server shows up as
+ * queueing delay rather than being hidden.
+ *
+ */
+public class LoadGenerator {
+
+   private static final String[] STATUSES = { "In Progress", "Out for Delivery", "complete" };
+
+   /*
+    * Throughput, errors and latencies of one workflow.
+    */
+   private static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final LongAdder ok = new LongAdder();
+      final Map<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+
+      void error(String kind) {
+         errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+      }
+   }//end Stats
+
+   private final PizzaStore esql;
+   private final int customers;
+   private final int drivers;
+   private final long durationMillis;
+   private final double ratePerSecond;
+   private final int placeWeight;
+   private final int historyWeight;
+   private final int maxItems;
+
+   private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+   private final ConcurrentLinkedQueue<Integer> placedOrders = new ConcurrentLinkedQueue<Integer>();
+   private final Map<Integer, Boolean> seenOrderIds = new ConcurrentHashMap<Integer, Boolean>();
+
+   /**
+    * @param esql the store under load
+    * @param customers the number of simulated customers
+    * @param drivers the number of simulated drivers
+    * @param durationMillis how long the load runs
+    * @param ratePerSecond the total number of requests started per second
+    * @param placeWeight relative share of customer requests placing orders
+    * @param historyWeight relative share of customer requests reading history
+    * @param maxItems the largest number of distinct items in one order
+    */
+   public LoadGenerator(PizzaStore esql, int customers, int drivers, long durationMillis,
+                        double ratePerSecond, int placeWeight, int historyWeight, int maxItems) {
+      this.esql = esql;
+      this.customers = customers;
+      this.drivers = drivers;
+      this.durationMillis = durationMillis;
+      this.ratePerSecond = ratePerSecond;
+      this.placeWeight = placeWeight;
+      this.historyWeight = historyWeight;
+      this.maxItems = maxItems;
+      for (String name : new String[] { "CreateUser", "LogIn", "placeOrder", "viewAllOrders", "updateOrderStatus" })
+         stats.put(name, new Stats());
+   }//end LoadGenerator
+
+   /**
+    * Runs the load and prints the report.
+    *
+    * @throws Exception when the workload could not be set up
+    */
+   public void run() throws Exception {
+      final List<MenuItem> menu = esql.getMenu().snapshot().getItems();
+      final List<Store> stores = new ArrayList<Store>();
+      for (Store store : esql.stores()) {
+         if (store.isOpen())
+            stores.add(store);
+      }
+      final List<Credentials> driverAccounts = esql.getRepository().findUsersByRole("driver", drivers);
+      if (menu.isEmpty() || stores.isEmpty())
+         throw new IllegalStateException("Load needs at least one menu item and one open store");
+      if (drivers > 0 && driverAccounts.isEmpty())
+         throw new IllegalStateException("Load needs driver accounts in Users");
+
+      final int workers = customers + drivers;
+      // each worker starts one request every workers/rate seconds
+      final long intervalNanos = (long) (workers * 1e9 / ratePerSecond);
+      final String runId = Long.toString(System.currentTimeMillis(), 36);
+      final CountDownLatch ready = new CountDownLatch(workers);
+      final CountDownLatch go = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<Thread>();
+
+      for (int i = 0; i < customers; ++i) {
+         final int id = i;
+         threads.add(new Thread(() -> {
+            Random random = new Random(id);
+            String login = "load_" + runId + "_" + id;
+            Credentials creds = null;
+            long start = System.nanoTime();
+            try {
+               esql.createUser(login, "pw" + id, null, "000-000-0000");
+               stats.get("CreateUser").ok.increment();
+            } catch (SQLException e) {
+               stats.get("CreateUser").error(classify(e));
+            }
+            stats.get("CreateUser").latency.record(System.nanoTime() - start);
+            start = System.nanoTime();
+            try {
+               creds = esql.authenticate(login, "pw" + id);
+               if (creds == null)
+                  stats.get("LogIn").error("invalid credentials");
+               else
+                  stats.get("LogIn").ok.increment();
+            } catch (SQLException e) {
+               stats.get("LogIn").error(classify(e));
+            }
+            stats.get("LogIn").latency.record(System.nanoTime() - start);
+            ready.countDown();
+            if (creds == null)
+               return;
+            final Credentials session = creds;
+            loop(go, intervalNanos, random, () -> {
+               if (random.nextInt(placeWeight + historyWeight) < placeWeight)
+                  return placeOrder(session, random, menu, stores);
+               return viewAllOrders(session);
+            });
+         }, "customer-" + i));
+      }
+
+      for (int i = 0; i < drivers; ++i) {
+         final Credentials account = driverAccounts.get(i % driverAccounts.size());
+         final int id = i;
+         threads.add(new Thread(() -> {
+            Random random = new Random(-1 - id);
+            Credentials creds = null;
+            long start = System.nanoTime();
+            try {
+               creds = esql.authenticate(account.getUser(), account.getPassword());
+               if (creds == null)
+                  stats.get("LogIn").error("invalid credentials");
+               else
+                  stats.get("LogIn").ok.increment();
+            } catch (SQLException e) {
+               stats.get("LogIn").error(classify(e));
+            }
+            stats.get("LogIn").latency.record(System.nanoTime() - start);
+            ready.countDown();
+            if (creds == null)
+               return;
+            final Credentials session = creds;
+            loop(go, intervalNanos, random, () -> updateOrderStatus(session, random));
+         }, "driver-" + i));
+      }
+
+      for (Thread t : threads)
+         t.start();
+      ready.await();
+      long start = System.nanoTime();
+      go.countDown();
+      for (Thread t : threads)
+         t.join();
+      report(System.nanoTime() - start);
+   }//end run
+
+   /*
+    * One request of a simulated user; returns the workflow it exercised.
+    */
+   private interface Request {
+      String run() throws Exception;
+   }//end Request
+
+   /*
+    * Starts a request every intervalNanos until the run is over, recording
+    * latency from when each request was due.
+    */
+   private void loop(CountDownLatch go, long intervalNanos, Random random, Request request) {
+      try {
+         go.await();
+      } catch (InterruptedException e) {
+         return;
+      }
+      long end = System.nanoTime() + durationMillis * 1000000L;
+      // spread the workers' first requests over one interval
+      long due = System.nanoTime() + (long) (random.nextDouble() * intervalNanos);
+      while (due < end) {
+         long wait = due - System.nanoTime();
+         if (wait > 0) {
+            try {
+               Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+               return;
+            }
+         }
+         String workflow;
+         try {
+            workflow = request.run();
+         } catch (Exception e) {
+            workflow = "unexpected";
+            stats.computeIfAbsent(workflow, k -> new Stats()).error(e.getClass().getSimpleName());
+         }
+         Stats s = stats.get(workflow);
+         if (s != null)
+            s.latency.record(System.nanoTime() - due);
+         due += intervalNanos;
+      }
+   }//end loop
+
+   private String placeOrder(Credentials creds, Random random, List<MenuItem> menu,
+                             List<Store> stores) {
+      Stats s = stats.get("placeOrder");
+      int lines = 1 + random.nextInt(Math.min(maxItems, menu.size()));
+      Map<String, Integer> cart = new HashMap<String, Integer>();
+      while (cart.size() < lines) {
+         MenuItem item = menu.get(random.nextInt(menu.size()));
+         if (cart.containsKey(item.getItemName()))
+            continue;
+         cart.put(item.getItemName(), 1 + random.nextInt(3));
+      }
+      int storeID = stores.get(random.nextInt(stores.size())).getStoreID();
+      try {
+         CartPricer.Quote quote = esql.priceCart(cart);
+         if (!quote.isValid()) {
+            s.error("items left the menu: " + quote.getUnknownItems());
+            return "placeOrder";
+         }
+         int orderID = esql.createOrder(creds.getUser(), storeID, cart, quote.getTotal());
+         if (seenOrderIds.putIfAbsent(orderID, Boolean.TRUE) != null)
+            s.error("duplicate order ID handed out");
+         else
+            s.ok.increment();
+         placedOrders.add(orderID);
+      } catch (SQLException e) {
+         s.error(classify(e));
+      }
+      return "placeOrder";
+   }//end placeOrder
+
+   private String viewAllOrders(Credentials creds) {
+      Stats s = stats.get("viewAllOrders");
+      try {
+         esql.forEachOrderPage(creds.getUser(), null, 0, PizzaStore.ORDER_PAGE_SIZE, order -> { });
+         s.ok.increment();
+      } catch (SQLException e) {
+         s.error(classify(e));
+      }
+      return "viewAllOrders";
+   }//end viewAllOrders
+
+   private String updateOrderStatus(Credentials creds, Random random) {
+      Stats s = stats.get("updateOrderStatus");
+      Integer orderID = placedOrders.poll();
+      if (orderID == null)
+         return "idle";
+      try {
+         Credentials principal = esql.principal(creds);
+         if (principal == null || !principal.hasRole("manager", "driver")) {
+            s.error("access denied");
+         } else if (esql.setOrderStatus(orderID, STATUSES[random.nextInt(STATUSES.length)])) {
+            s.ok.increment();
+         } else {
+            s.error("order not found");
+         }
+      } catch (SQLException e) {
+         s.error(classify(e));
+      }
+      return "updateOrderStatus";
+   }//end updateOrderStatus
+
+   /*
+    * Names an error for the report; duplicate keys are called out because
+    * they are what racing order ID allocation looks like.
+    */
+   private static String classify(SQLException e) {
+      String state = e.getSQLState();
+      String message = String.valueOf(e.getMessage());
+      if ("23505".equals(state) || message.contains("duplicate key")) {
+         if (message.contains("foodorder") || message.contains("FoodOrder"))
+            return "duplicate order ID";
+         return "duplicate key";
+      }
+      if ("23503".equals(state))
+         return "foreign key violation";
+      return "SQL error " + (state == null ? "" : state + " ") + message;
+   }//end classify
+
+   private void report(long elapsedNanos) {
+      double seconds = elapsedNanos / 1e9;
+      System.out.println(String.format("Ran %d customers and %d drivers for %.1fs at a target of %.1f requests/sec",
+         customers, drivers, seconds, ratePerSecond));
+      for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+         Stats s = entry.getValue();
+         if (s.latency.getCount() == 0 && s.errors.isEmpty())
+            continue;
+         long errorCount = 0;
+         for (LongAdder count : s.errors.values())
+            errorCount += count.sum();
+         System.out.println(String.format("%-18s ok=%d errors=%d  %.1f ok/s",
+            entry.getKey(), s.ok.sum(), errorCount, s.ok.sum() / seconds));
+         System.out.println("   latency " + s.latency.summary());
+         for (Map.Entry<String, LongAdder> error : s.errors.entrySet())
+            System.out.println("   error   " + error.getValue().sum() + " x " + error.getKey());
+      }
+      System.out.println(esql.getPoolStats());
+      System.out.println(esql.getMenu().getStats());
+      System.out.println(esql.getRecentOrderStats());
+      System.out.print(esql.getMetrics().snapshotText());
+   }//end report
+
+   /**
+    * Runs the load generator.
+    *
+    * @param args <dbname> <port> <user>, or -memory <data dir> to run on an
+    *        InMemoryPizzaRepository loaded from the CSV files, followed by
+    *        any of customers=N drivers=N seconds=N rate=N mix=PLACE:HISTORY
+    *        items=N
+    */
+   public static void main(String[] args) {
+      boolean inMemory = args.length >= 2 && args[0].equals("-memory");
+      if (args.length < 3 && !inMemory) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LoadGenerator.class.getName() +
+            " {<dbname> <port> <user> | -memory <data dir>} [customers=50] [drivers=5] [seconds=60] [rate=200] [mix=70:30] [items=5]");
+         return;
+      }//end if
+
+      Map<String, String> options = new HashMap<String, String>();
+      for (int i = inMemory ? 2 : 3; i < args.length; ++i) {
+         int eq = args[i].indexOf('=');
+         if (eq < 0) {
+            System.err.println("Ignoring option without a value: " + args[i]);
+            continue;
+         }
+         options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+      }
+      int customers = Integer.parseInt(options.getOrDefault("customers", "50"));
+      int drivers = Integer.parseInt(options.getOrDefault("drivers", "5"));
+      long seconds = Long.parseLong(options.getOrDefault("seconds", "60"));
+      double rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+      String[] mix = options.getOrDefault("mix", "70:30").split(":");
+      int items = Integer.parseInt(options.getOrDefault("items", "5"));
+
+      PizzaStore esql = null;
+      try {
+         if (inMemory) {
+            esql = new PizzaStore(InMemoryPizzaRepository.load(new File(args[1])));
+         } else {
+            Class.forName("org.postgresql.Driver");
+            esql = new PizzaStore(args[0], args[1], args[2], "", Math.max(1, Math.min(customers + drivers, 32)));
+         }
+         new LoadGenerator(esql, customers, drivers, seconds * 1000, rate,
+                           Integer.parseInt(mix[0]), Integer.parseInt(mix[1]), items).run();
+      } catch (Exception e) {
+         System.err.println("Load run failed: " + e.getMessage());
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+}//end LoadGenerator
@@ -0,0 +1,201 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read-through, in-process cache of the Items table.
+ *
+ * Readers always get an immutable snapshot of the whole menu, which is
+ * swapped atomically when the menu changes. The Items table carries a version
+ * number (bumped by a trigger on every change), which is re-checked at most
+ * once per check interval so that a change made by another application
+ * instance is picked up within that interval.
+ *
+ */
+public class MenuCache {
+
+   /**
+    * Where the cache reads the menu and its version from.
+    */
+   public interface Source {
+      long version() throws SQLException;
+      List<MenuItem> items() throws SQLException;
+   }//end Source
+
+   /**
+    * An immutable copy of the menu at one version.
+    */
+   public static class Snapshot {
+      private final long version;
+      private final List<MenuItem> items;
+      private final Map<String, MenuItem> byName;
+
+      Snapshot(long version, List<MenuItem> items) {
+         this.version = version;
+         this.items = Collections.unmodifiableList(new ArrayList<MenuItem>(items));
+         Map<String, MenuItem> byName = new HashMap<String, MenuItem>();
+         for (MenuItem item : items)
+            byName.put(item.getItemName(), item);
+         this.byName = Collections.unmodifiableMap(byName);
+      }
+
+      public long getVersion() {
+         return version;
+      }
+
+      /**
+       * @return every menu item in the order the table returned them
+       */
+      public List<MenuItem> getItems() {
+         return items;
+      }
+
+      /**
+       * @param itemName the exact item name
+       * @return the item, or null if it is not on the menu
+       */
+      public MenuItem get(String itemName) {
+         return byName.get(itemName);
+      }
+   }//end Snapshot
+
+   private final Source source;
+   private final long checkIntervalMillis;
+   private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>();
+   private final ReentrantLock refreshLock = new ReentrantLock();
+   private volatile long lastCheckedAt = 0;
+
+   // metrics
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder versionChecks = new LongAdder();
+   private long refreshCount = 0;        // guarded by refreshLock
+   private long totalRefreshNanos = 0;   // guarded by refreshLock
+   private long maxRefreshNanos = 0;     // guarded by refreshLock
+
+   /**
+    * Creates an empty cache; the menu is loaded on first use.
+    *
+    * @param source where the menu and its version are read from
+    * @param checkIntervalMillis how long a snapshot is served before its
+    *        version is checked against the database again
+    */
+   public MenuCache(Source source, long checkIntervalMillis) {
+      this.source = source;
+      this.checkIntervalMillis = checkIntervalMillis;
+   }//end MenuCache
+
+   /**
+    * Returns the current menu, loading it on first use and reloading it if
+    * the version check finds that it changed.
+    *
+    * @return an immutable snapshot of the menu
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public Snapshot snapshot() throws SQLException {
+      Snapshot snap = current.get();
+      if (snap == null) {
+         misses.increment();
+         return refresh(true);
+      }
+      if (System.currentTimeMillis() - lastCheckedAt >= checkIntervalMillis
+            && refreshLock.tryLock()) {
+         // only one caller checks the version; everyone else keeps reading
+         try {
+            versionChecks.increment();
+            lastCheckedAt = System.currentTimeMillis();
+            if (source.version() != snap.getVersion()) {
+               misses.increment();
+               return reload();
+            }
+         } finally {
+            refreshLock.unlock();
+         }
+      }
+      hits.increment();
+      return snap;
+   }//end snapshot
+
+   /**
+    * Looks up a single item on the current menu.
+    *
+    * @param itemName the exact item name
+    * @return the item, or null if it is not on the menu
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public MenuItem get(String itemName) throws SQLException {
+      return snapshot().get(itemName);
+   }//end get
+
+   /**
+    * Reloads the menu right away, e.g. after this instance changed it.
+    *
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public void invalidate() throws SQLException {
+      refresh(false);
+   }//end invalidate
+
+   /**
+    * @return a one-line summary of the cache hit rate and refresh latency
+    */
+   public String getStats() {
+      long h = hits.sum();
+      long m = misses.sum();
+      refreshLock.lock();
+      try {
+         Snapshot snap = current.get();
+         return String.format(
+            "menu cache: version=%s items=%d | hits=%d misses=%d hitRate=%.1f%% versionChecks=%d | refreshes=%d avgRefresh=%.3fms maxRefresh=%.3fms",
+            snap == null ? "-" : Long.toString(snap.getVersion()),
+            snap == null ? 0 : snap.getItems().size(),
+            h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), versionChecks.sum(),
+            refreshCount, refreshCount == 0 ? 0.0 : totalRefreshNanos / 1e6 / refreshCount,
+            maxRefreshNanos / 1e6);
+      } finally {
+         refreshLock.unlock();
+      }
+   }//end getStats
+
+   /*
+    * Loads a new snapshot under the refresh lock. When onlyIfEmpty is set a
+    * snapshot loaded by another caller while this one waited is reused.
+    */
+   private Snapshot refresh(boolean onlyIfEmpty) throws SQLException {
+      refreshLock.lock();
+      try {
+         Snapshot snap = current.get();
+         if (onlyIfEmpty && snap != null)
+            return snap;
+         return reload();
+      } finally {
+         refreshLock.unlock();
+      }
+   }//end refresh
+
+   /*
+    * Reads the version before the items, so a change that lands in between
+    * is seen as a newer version on the next check. Called under refreshLock.
+    */
+   private Snapshot reload() throws SQLException {
+      long start = System.nanoTime();
+      long version = source.version();
+      Snapshot snap = new Snapshot(version, source.items());
+      current.set(snap);
+      lastCheckedAt = System.currentTimeMillis();
+
+      long elapsed = System.nanoTime() - start;
+      refreshCount++;
+      totalRefreshNanos += elapsed;
+      if (elapsed > maxRefreshNanos)
+         maxRefreshNanos = elapsed;
+      return snap;
+   }//end reload
+
+}//end MenuCache
@@ -0,0 +1,53 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * An immutable row of the Items table.
+ *
+ */
+public class MenuItem {
+   private final String itemName;
+   private final String ingredients;
+   private final String typeOfItem;
+   private final BigDecimal price;
+   private final long priceCents;
+   private final String description;
+
+   public MenuItem(String itemName, String ingredients, String typeOfItem,
+                   BigDecimal price, String description) {
+      this.itemName = itemName;
+      this.ingredients = ingredients;
+      this.typeOfItem = typeOfItem;
+      // prices are decimal(10,2); round the way Postgres stores them
+      this.price = price.setScale(2, RoundingMode.HALF_UP);
+      this.priceCents = this.price.movePointRight(2).longValueExact();
+      this.description = description;
+   }
+
+   public String getItemName() {
+      return itemName;
+   }
+
+   public String getIngredients() {
+      return ingredients;
+   }
+
+   public String getTypeOfItem() {
+      return typeOfItem;
+   }
+
+   public BigDecimal getPrice() {
+      return price;
+   }
+
+   /**
+    * @return the price in whole cents
+    */
+   public long getPriceCents() {
+      return priceCents;
+   }
+
+   public String getDescription() {
+      return description;
+   }
+}
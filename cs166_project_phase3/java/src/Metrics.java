@@ -0,0 +1,497 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time goes: latency histograms per user action (placeOrder,
+ * viewMenu, ...) and per SQL shape, database round trips per action, and a
+ * log of the most recent slow queries.
+ *
+ * An action is bracketed with {@link #begin} and {@link #end} on the thread
+ * that runs it; every query made in between is charged to it. Time spent
+ * waiting for the user to type is left out of the action's latency, so it
+ * measures the program and the database rather than the person. Recording an
+ * action or a query only touches preallocated counters and does not allocate
+ * once a SQL shape has been seen. The snapshot can be written periodically as
+ * text or JSON with {@link #startReporter}.
+ *
+ */
+public class Metrics {
+
+   // distinct SQL texts remembered before new ones are only normalized
+   private static final int MAX_ALIASES = 1024;
+   // distinct SQL shapes tracked before the rest are lumped together
+   private static final int MAX_SHAPES = 256;
+   private static final int SLOW_LOG_SIZE = 64;
+   private static final String OTHER_SHAPE = "(other)";
+
+   /**
+    * The statistics of one user action.
+    */
+   public static class Operation {
+      final String name;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final LatencyHistogram roundTrips = new LatencyHistogram();
+      final LatencyHistogram dbTime = new LatencyHistogram();
+
+      Operation(String name) {
+         this.name = name;
+      }
+   }//end Operation
+
+   /*
+    * The statistics of one SQL shape, i.e. SQL text with its literals taken
+    * out.
+    */
+   private static class Shape {
+      final String sql;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final LongAdder errors = new LongAdder();
+
+      Shape(String sql) {
+         this.sql = sql;
+      }
+   }//end Shape
+
+   /*
+    * One entry of the slow-query ring. Entries are reused, so a slow query
+    * costs no allocation either.
+    */
+   private static class SlowQuery {
+      String sql;
+      String operation;
+      long nanos;
+      long at;
+   }//end SlowQuery
+
+   /*
+    * The action running on one thread. Allocated once per thread.
+    */
+   private static class Scope {
+      Operation operation;
+      int depth;
+      long start;
+      long inputStart;
+      long inputNanos;
+      int roundTrips;
+      long dbNanos;
+   }//end Scope
+
+   private static final ThreadLocal<Scope> SCOPE = ThreadLocal.withInitial(Scope::new);
+
+   private final long slowNanos;
+   private final long startedAt = System.currentTimeMillis();
+   private final Map<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+   private final Map<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+   // raw SQL text to its shape, so repeated statements skip normalizing
+   private final Map<String, Shape> aliases = new ConcurrentHashMap<String, Shape>();
+   private final SlowQuery[] slowLog = new SlowQuery[SLOW_LOG_SIZE];
+   private final AtomicLong slowCount = new AtomicLong();
+   private ScheduledExecutorService reporter;
+
+   /**
+    * @param slowQueryMillis queries taking at least this long are logged
+    */
+   public Metrics(long slowQueryMillis) {
+      this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+      for (int i = 0; i < SLOW_LOG_SIZE; ++i)
+         slowLog[i] = new SlowQuery();
+   }//end Metrics
+
+   /**
+    * Returns the statistics of a user action, creating them on first use.
+    *
+    * @param name the action name
+    * @return the action's statistics
+    */
+   public Operation operation(String name) {
+      Operation op = operations.get(name);
+      if (op == null)
+         op = operations.computeIfAbsent(name, Operation::new);
+      return op;
+   }//end operation
+
+   /**
+    * Starts charging queries on this thread to an action. Calls nest: only
+    * the outermost action is recorded, so a workflow that calls other
+    * instrumented methods is counted once.
+    *
+    * @param name the action name, or null to record nothing
+    */
+   public void begin(String name) {
+      Scope scope = SCOPE.get();
+      if (scope.depth++ > 0)
+         return;
+      scope.operation = name == null ? null : operation(name);
+      scope.roundTrips = 0;
+      scope.dbNanos = 0;
+      scope.inputNanos = 0;
+      scope.inputStart = 0;
+      scope.start = System.nanoTime();
+   }//end begin
+
+   /**
+    * Ends the action started by the matching {@link #begin}.
+    */
+   public void end() {
+      Scope scope = SCOPE.get();
+      if (scope.depth == 0 || --scope.depth > 0)
+         return;
+      Operation op = scope.operation;
+      scope.operation = null;
+      if (op == null)
+         return;
+      op.latency.record(System.nanoTime() - scope.start - scope.inputNanos);
+      op.roundTrips.record(scope.roundTrips);
+      op.dbTime.record(scope.dbNanos);
+   }//end end
+
+   /**
+    * Marks the start of a wait for user input on this thread.
+    */
+   public static void inputStarted() {
+      Scope scope = SCOPE.get();
+      if (scope.depth > 0)
+         scope.inputStart = System.nanoTime();
+   }//end inputStarted
+
+   /**
+    * Marks the end of a wait for user input on this thread.
+    */
+   public static void inputEnded() {
+      Scope scope = SCOPE.get();
+      if (scope.depth > 0 && scope.inputStart != 0) {
+         scope.inputNanos += System.nanoTime() - scope.inputStart;
+         scope.inputStart = 0;
+      }
+   }//end inputEnded
+
+   /**
+    * Records one query round trip.
+    *
+    * @param sql the SQL text that was run
+    * @param startNanos System.nanoTime() from before the connection was
+    *        borrowed
+    */
+   public void query(String sql, long startNanos) {
+      long elapsed = System.nanoTime() - startNanos;
+      shape(sql).latency.record(elapsed);
+      Scope scope = SCOPE.get();
+      if (scope.depth > 0) {
+         scope.roundTrips++;
+         scope.dbNanos += elapsed;
+      }
+      if (elapsed >= slowNanos)
+         logSlow(sql, elapsed, scope.depth > 0 && scope.operation != null ? scope.operation.name : null);
+   }//end query
+
+   /**
+    * Counts a failed query against its shape.
+    *
+    * @param sql the SQL text that failed
+    */
+   public void queryFailed(String sql) {
+      shape(sql).errors.increment();
+   }//end queryFailed
+
+   /**
+    * Charges extra round trips to the current action, e.g. cursor fetches
+    * or a commit.
+    *
+    * @param count the number of round trips
+    */
+   public void roundTrips(int count) {
+      Scope scope = SCOPE.get();
+      if (scope.depth > 0)
+         scope.roundTrips += count;
+   }//end roundTrips
+
+   /*
+    * Finds the statistics for a SQL text. Parameterized statements are their
+    * own shape and are found with one map lookup; texts with literals in
+    * them are normalized on first sight.
+    */
+   private Shape shape(String sql) {
+      Shape shape = aliases.get(sql);
+      if (shape != null)
+         return shape;
+      String normalized = normalize(sql);
+      shape = shapes.get(normalized);
+      if (shape == null) {
+         if (shapes.size() >= MAX_SHAPES)
+            normalized = OTHER_SHAPE;
+         shape = shapes.computeIfAbsent(normalized, Shape::new);
+      }
+      if (aliases.size() < MAX_ALIASES)
+         aliases.put(sql, shape);
+      return shape;
+   }//end shape
+
+   /*
+    * Replaces string and number literals with ? and collapses whitespace.
+    */
+   static String normalize(String sql) {
+      StringBuilder out = new StringBuilder(sql.length());
+      int n = sql.length();
+      int i = 0;
+      while (i < n) {
+         char c = sql.charAt(i);
+         if (c == '\'') {
+            // a string literal, with '' standing for a quote
+            ++i;
+            while (i < n) {
+               if (sql.charAt(i) == '\'') {
+                  if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                     i += 2;
+                     continue;
+                  }
+                  break;
+               }
+               ++i;
+            }
+            ++i;
+            out.append('?');
+         } else if (Character.isDigit(c) && (out.length() == 0
+               || !Character.isLetterOrDigit(out.charAt(out.length() - 1))
+                  && out.charAt(out.length() - 1) != '_')) {
+            while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+               ++i;
+            out.append('?');
+         } else if (Character.isWhitespace(c)) {
+            while (i < n && Character.isWhitespace(sql.charAt(i)))
+               ++i;
+            if (out.length() > 0)
+               out.append(' ');
+         } else {
+            out.append(c);
+            ++i;
+         }
+      }
+      int end = out.length();
+      while (end > 0 && out.charAt(end - 1) == ' ')
+         --end;
+      out.setLength(end);
+      return out.toString();
+   }//end normalize
+
+   private void logSlow(String sql, long nanos, String operation) {
+      SlowQuery entry = slowLog[(int) (slowCount.getAndIncrement() % SLOW_LOG_SIZE)];
+      synchronized (entry) {
+         entry.sql = sql;
+         entry.operation = operation;
+         entry.nanos = nanos;
+         entry.at = System.currentTimeMillis();
+      }
+   }//end logSlow
+
+   /*
+    * Copies the slow-query ring, oldest first.
+    */
+   private List<SlowQuery> slowQueries() {
+      long count = slowCount.get();
+      long first = Math.max(0, count - SLOW_LOG_SIZE);
+      List<SlowQuery> copies = new ArrayList<SlowQuery>();
+      for (long i = first; i < count; ++i) {
+         SlowQuery entry = slowLog[(int) (i % SLOW_LOG_SIZE)];
+         SlowQuery copy = new SlowQuery();
+         synchronized (entry) {
+            copy.sql = entry.sql;
+            copy.operation = entry.operation;
+            copy.nanos = entry.nanos;
+            copy.at = entry.at;
+         }
+         if (copy.sql != null)
+            copies.add(copy);
+      }
+      return copies;
+   }//end slowQueries
+
+   /**
+    * @return the current statistics as readable text
+    */
+   public String snapshotText() {
+      StringBuilder out = new StringBuilder();
+      out.append("metrics at ").append(timestamp(System.currentTimeMillis()))
+         .append(" (since ").append(timestamp(startedAt)).append(")\n");
+      out.append("actions (latency excludes waiting for input):\n");
+      for (Operation op : new TreeMap<String, Operation>(operations).values()) {
+         if (op.latency.getCount() == 0)
+            continue;
+         out.append(String.format("   %-20s %s%n", op.name, op.latency.summary()));
+         out.append(String.format("   %-20s db time p50=%.3fms p99=%.3fms | round trips mean=%.1f p50=%d p99=%d max=%d%n",
+            "", op.dbTime.getPercentile(50) / 1e6, op.dbTime.getPercentile(99) / 1e6,
+            op.roundTrips.getMean(), op.roundTrips.getPercentile(50),
+            op.roundTrips.getPercentile(99), op.roundTrips.getMax()));
+      }
+      out.append("queries:\n");
+      for (Shape shape : new TreeMap<String, Shape>(shapes).values()) {
+         out.append("   ").append(shape.sql).append('\n');
+         out.append("      ").append(shape.latency.summary())
+            .append(" errors=").append(shape.errors.sum()).append('\n');
+      }
+      out.append("slow queries (>= ").append(slowNanos / 1000000).append("ms, ")
+         .append(slowCount.get()).append(" in total, most recent last):\n");
+      for (SlowQuery slow : slowQueries())
+         out.append(String.format("   %s %9.3fms %-18s %s%n", timestamp(slow.at), slow.nanos / 1e6,
+            slow.operation == null ? "-" : slow.operation, slow.sql));
+      return out.toString();
+   }//end snapshotText
+
+   /**
+    * @return the current statistics as one JSON object
+    */
+   public String snapshotJson() {
+      StringBuilder out = new StringBuilder();
+      out.append("{\"time\":").append(quote(timestamp(System.currentTimeMillis())))
+         .append(",\"since\":").append(quote(timestamp(startedAt)))
+         .append(",\"actions\":{");
+      boolean first = true;
+      for (Operation op : new TreeMap<String, Operation>(operations).values()) {
+         if (op.latency.getCount() == 0)
+            continue;
+         if (!first)
+            out.append(',');
+         first = false;
+         out.append(quote(op.name)).append(":{\"latencyMs\":");
+         histogramJson(out, op.latency, 1e6);
+         out.append(",\"dbTimeMs\":");
+         histogramJson(out, op.dbTime, 1e6);
+         out.append(",\"roundTrips\":");
+         histogramJson(out, op.roundTrips, 1);
+         out.append('}');
+      }
+      out.append("},\"queries\":[");
+      first = true;
+      for (Shape shape : new TreeMap<String, Shape>(shapes).values()) {
+         if (!first)
+            out.append(',');
+         first = false;
+         out.append("{\"sql\":").append(quote(shape.sql))
+            .append(",\"errors\":").append(shape.errors.sum())
+            .append(",\"latencyMs\":");
+         histogramJson(out, shape.latency, 1e6);
+         out.append('}');
+      }
+      out.append("],\"slowQueryMs\":").append(slowNanos / 1000000)
+         .append(",\"slowQueryCount\":").append(slowCount.get())
+         .append(",\"slowQueries\":[");
+      first = true;
+      for (SlowQuery slow : slowQueries()) {
+         if (!first)
+            out.append(',');
+         first = false;
+         out.append("{\"time\":").append(quote(timestamp(slow.at)))
+            .append(",\"ms\":").append(String.format("%.3f", slow.nanos / 1e6))
+            .append(",\"action\":").append(slow.operation == null ? "null" : quote(slow.operation))
+            .append(",\"sql\":").append(quote(slow.sql)).append('}');
+      }
+      out.append("]}");
+      return out.toString();
+   }//end snapshotJson
+
+   /**
+    * Writes a snapshot to a file, replacing it atomically. Files ending in
+    * .json get JSON, anything else gets text.
+    *
+    * @param file the file to write
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public void writeSnapshot(File file) throws IOException {
+      String snapshot = file.getName().endsWith(".json") ? snapshotJson() + "\n" : snapshotText();
+      File dir = file.getAbsoluteFile().getParentFile();
+      File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+      try {
+         Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+         try {
+            out.write(snapshot);
+         } finally {
+            out.close();
+         }
+         Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         tmp.delete();
+      }
+   }//end writeSnapshot
+
+   /**
+    * Writes a snapshot to a file every period until {@link #stopReporter}.
+    *
+    * @param file the file to write, see {@link #writeSnapshot}
+    * @param periodMillis time between snapshots
+    */
+   public synchronized void startReporter(final File file, long periodMillis) {
+      stopReporter();
+      reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "Metrics-reporter");
+         t.setDaemon(true);
+         return t;
+      });
+      reporter.scheduleAtFixedRate(() -> {
+         try {
+            writeSnapshot(file);
+         } catch (IOException e) {
+            System.err.println("Unable to write metrics to " + file + ": " + e.getMessage());
+         }
+      }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+   }//end startReporter
+
+   /**
+    * Stops the periodic snapshots, if any.
+    */
+   public synchronized void stopReporter() {
+      if (reporter != null) {
+         reporter.shutdownNow();
+         reporter = null;
+      }
+   }//end stopReporter
+
+   private static void histogramJson(StringBuilder out, LatencyHistogram h, double scale) {
+      out.append(String.format("{\"count\":%d,\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f}",
+         h.getCount(), h.getMean() / scale, h.getPercentile(50) / scale, h.getPercentile(90) / scale,
+         h.getPercentile(99) / scale, h.getPercentile(99.9) / scale, h.getMax() / scale));
+   }//end histogramJson
+
+   private static String timestamp(long millis) {
+      return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(millis));
+   }//end timestamp
+
+   private static String quote(String s) {
+      StringBuilder out = new StringBuilder(s.length() + 2);
+      out.append('"');
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  out.append(String.format("\\u%04x", (int) c));
+               else
+                  out.append(c);
+         }
+      }
+      return out.append('"').toString();
+   }//end quote
+
+}//end Metrics
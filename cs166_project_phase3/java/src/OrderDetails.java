@@ -0,0 +1,98 @@
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable order aggregate: the FoodOrder header together with its
+ * ItemsInOrder lines and the current Items price of each line.
+ *
+ */
+public class OrderDetails {
+
+   /**
+    * One line of an order.
+    */
+   public static class Line {
+      private final String itemName;
+      private final int quantity;
+      private final BigDecimal price;
+
+      public Line(String itemName, int quantity, BigDecimal price) {
+         this.itemName = itemName;
+         this.quantity = quantity;
+         this.price = price;
+      }
+
+      public String getItemName() {
+         return itemName;
+      }
+
+      public int getQuantity() {
+         return quantity;
+      }
+
+      /**
+       * @return the unit price from Items
+       */
+      public BigDecimal getPrice() {
+         return price;
+      }
+
+      /**
+       * @return the unit price times the quantity
+       */
+      public BigDecimal getLineTotal() {
+         return price.multiply(BigDecimal.valueOf(quantity));
+      }
+   }//end Line
+
+   private final int orderID;
+   private final String login;
+   private final int storeID;
+   private final BigDecimal totalPrice;
+   private final String orderTimestamp;
+   private final String orderStatus;
+   private final List<Line> lines;
+
+   public OrderDetails(int orderID, String login, int storeID, BigDecimal totalPrice,
+                       String orderTimestamp, String orderStatus, List<Line> lines) {
+      this.orderID = orderID;
+      this.login = login;
+      this.storeID = storeID;
+      this.totalPrice = totalPrice;
+      this.orderTimestamp = orderTimestamp;
+      this.orderStatus = orderStatus;
+      this.lines = Collections.unmodifiableList(lines);
+   }
+
+   public int getOrderID() {
+      return orderID;
+   }
+
+   public String getLogin() {
+      return login;
+   }
+
+   public int getStoreID() {
+      return storeID;
+   }
+
+   public BigDecimal getTotalPrice() {
+      return totalPrice;
+   }
+
+   public String getOrderTimestamp() {
+      return orderTimestamp;
+   }
+
+   public String getOrderStatus() {
+      return orderStatus;
+   }
+
+   /**
+    * @return the line items ordered by item name
+    */
+   public List<Line> getLines() {
+      return lines;
+   }
+}
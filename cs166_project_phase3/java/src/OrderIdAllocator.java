@@ -0,0 +1,83 @@
+import java.sql.SQLException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out order IDs from blocks reserved in a database sequence (hi/lo
+ * style), so most orders get their ID without a round trip and concurrent
+ * clients can never be given the same ID.
+ *
+ * Each call to the block source reserves the IDs
+ * [start, start + blockSize). The backing sequence must therefore be created
+ * with INCREMENT BY blockSize.
+ *
+ */
+public class OrderIdAllocator {
+
+   /**
+    * Reserves a new block of IDs, typically with nextval() on a sequence.
+    */
+   public interface BlockSource {
+      long nextBlockStart() throws SQLException;
+   }//end BlockSource
+
+   private final BlockSource source;
+   private final int blockSize;
+
+   // guards the fields below; reserving a block is a database round trip,
+   // which a virtual thread must not make while holding a monitor
+   private final ReentrantLock lock = new ReentrantLock();
+   // next ID to hand out and the first ID past the current block
+   private long next = 0;
+   private long limit = 0;
+   private long blocksReserved = 0;
+
+   /**
+    * Creates an allocator that reserves blocks of the given size
+    *
+    * @param source reserves a new block when the current one runs out
+    * @param blockSize the number of IDs in each block
+    */
+   public OrderIdAllocator(BlockSource source, int blockSize) {
+      if (blockSize < 1)
+         throw new IllegalArgumentException("Block size must be at least 1");
+      this.source = source;
+      this.blockSize = blockSize;
+   }//end OrderIdAllocator
+
+   /**
+    * Returns an order ID that has not been handed out before by any client
+    * sharing the same block source.
+    *
+    * @return the next order ID
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public int nextId() throws SQLException {
+      lock.lock();
+      try {
+         if (next >= limit) {
+            long start = source.nextBlockStart();
+            if (start + blockSize - 1 > Integer.MAX_VALUE)
+               throw new SQLException("Order ID sequence is exhausted");
+            next = start;
+            limit = start + blockSize;
+            blocksReserved++;
+         }
+         return (int) next++;
+      } finally {
+         lock.unlock();
+      }
+   }//end nextId
+
+   /**
+    * @return the number of blocks reserved from the source so far
+    */
+   public long getBlocksReserved() {
+      lock.lock();
+      try {
+         return blocksReserved;
+      } finally {
+         lock.unlock();
+      }
+   }//end getBlocksReserved
+
+}//end OrderIdAllocator
@@ -0,0 +1,133 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads whole orders - header, line items and item prices - in a single
+ * round trip, for one order or for many at once.
+ *
+ * The header, lines and prices come back from one join. A batch of IDs is
+ * sent as one IN list; its length is rounded up to a power of two (repeating
+ * the last ID) so only a handful of statement shapes ever reach the prepared
+ * statement cache. Batches larger than MAX_BATCH are split, so loading n
+ * orders costs n / MAX_BATCH round trips rather than one per order.
+ *
+ */
+public class OrderLoader {
+
+   /**
+    * Runs a parameterized query and returns its rows.
+    */
+   public interface Query {
+      List<List<String>> run(String sql, Object... params) throws SQLException;
+   }//end Query
+
+   // the largest number of order IDs sent in one query
+   static final int MAX_BATCH = 128;
+
+   private static final String SELECT =
+      "SELECT f.orderID, f.login, f.storeID, f.totalPrice, f.orderTimestamp, f.orderStatus, " +
+      "l.itemName, l.quantity, i.price " +
+      "FROM FoodOrder f " +
+      "LEFT JOIN ItemsInOrder l ON l.orderID = f.orderID " +
+      "LEFT JOIN Items i ON i.itemName = l.itemName " +
+      "WHERE f.orderID IN (";
+   private static final String ORDER_BY = ") ORDER BY f.orderID, l.itemName;";
+
+   private final Query query;
+   // the SQL text for each padded batch size, built once
+   private final String[] sqlBySize = new String[Integer.numberOfTrailingZeros(MAX_BATCH) + 1];
+
+   /**
+    * @param query runs the loader's queries, e.g.
+    *        PizzaStore::executeQueryAndReturnResult
+    */
+   public OrderLoader(Query query) {
+      this.query = query;
+      for (int i = 0; i < sqlBySize.length; ++i) {
+         StringBuilder sql = new StringBuilder(SELECT);
+         for (int j = 0; j < (1 << i); ++j)
+            sql.append(j == 0 ? "?" : ", ?");
+         sqlBySize[i] = sql.append(ORDER_BY).toString();
+      }
+   }//end OrderLoader
+
+   /**
+    * Loads one order.
+    *
+    * @param orderID the order
+    * @return the order, or null if there is no such order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OrderDetails load(int orderID) throws SQLException {
+      List<Integer> ids = new ArrayList<Integer>(1);
+      ids.add(orderID);
+      return loadAll(ids).get(orderID);
+   }//end load
+
+   /**
+    * Loads many orders.
+    *
+    * @param orderIDs the orders; duplicates are ignored
+    * @return the orders that exist, keyed by ID, in the order first asked for
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public Map<Integer, OrderDetails> loadAll(Collection<Integer> orderIDs) throws SQLException {
+      List<Integer> ids = new ArrayList<Integer>(new LinkedHashSet<Integer>(orderIDs));
+      Map<Integer, OrderDetails> loaded = new LinkedHashMap<Integer, OrderDetails>();
+      for (int from = 0; from < ids.size(); from += MAX_BATCH)
+         loadBatch(ids.subList(from, Math.min(ids.size(), from + MAX_BATCH)), loaded);
+
+      // hand the orders back in the order they were asked for
+      Map<Integer, OrderDetails> result = new LinkedHashMap<Integer, OrderDetails>();
+      for (Integer id : ids) {
+         OrderDetails order = loaded.get(id);
+         if (order != null)
+            result.put(id, order);
+      }
+      return result;
+   }//end loadAll
+
+   /*
+    * Loads up to MAX_BATCH orders with one query.
+    */
+   private void loadBatch(List<Integer> ids, Map<Integer, OrderDetails> loaded) throws SQLException {
+      int shape = 0;
+      while ((1 << shape) < ids.size())
+         ++shape;
+      Object[] params = new Object[1 << shape];
+      for (int i = 0; i < params.length; ++i)
+         params[i] = ids.get(Math.min(i, ids.size() - 1));
+
+      // rows arrive grouped by order: one per line, or one with null line
+      // columns for an order without lines
+      List<String> header = null;
+      List<OrderDetails.Line> lines = null;
+      for (List<String> row : query.run(sqlBySize[shape], params)) {
+         if (header == null || !header.get(0).equals(row.get(0))) {
+            if (header != null)
+               loaded.put(Integer.parseInt(header.get(0)), build(header, lines));
+            header = row;
+            lines = new ArrayList<OrderDetails.Line>();
+         }
+         if (row.get(6) != null)
+            lines.add(new OrderDetails.Line(row.get(6), Integer.parseInt(row.get(7)),
+                                            row.get(8) == null ? BigDecimal.ZERO : new BigDecimal(row.get(8))));
+      }
+      if (header != null)
+         loaded.put(Integer.parseInt(header.get(0)), build(header, lines));
+   }//end loadBatch
+
+   private static OrderDetails build(List<String> header, List<OrderDetails.Line> lines) {
+      String status = header.get(5);
+      return new OrderDetails(Integer.parseInt(header.get(0)), header.get(1),
+                              Integer.parseInt(header.get(2)), new BigDecimal(header.get(3)),
+                              header.get(4), status == null ? null : status.trim(), lines);
+   }//end build
+
+}//end OrderLoader
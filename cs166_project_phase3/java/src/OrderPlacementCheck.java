@@ -0,0 +1,130 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that orders placed in parallel never collide on their order ID.
+ *
+ * Two PizzaStore instances stand in for two application instances sharing
+ * one database: both place orders through {@link PizzaStore#createOrder}
+ * against the same {@link InMemoryPizzaRepository}, so each reserves its own
+ * blocks of IDs from the one order ID sequence, while the repository
+ * enforces the orderID primary key with SQLState 23505 as Postgres would.
+ * Many threads then place orders on both at once. The check fails, with
+ * exit status 1, on any duplicate key, any other failed order, or when the
+ * repository does not hold exactly the orders that were placed.
+ *
+ */
+public class OrderPlacementCheck {
+
+   private static final String DUPLICATE_KEY = "23505";
+   private static final String LOGIN = "check_customer";
+   private static final int STORE_ID = 1;
+   private static final String ITEM = "Check Pizza";
+
+   /**
+    * Places orders from many threads over two stores sharing the repository.
+    *
+    * @param repository an empty repository the orders are placed in
+    * @param threads the number of threads placing orders
+    * @param ordersPerThread the number of orders each thread places
+    * @return true if every order was placed under its own ID and stored
+    * @throws Exception when the check could not be set up
+    */
+   public static boolean check(PizzaRepository repository, int threads, int ordersPerThread) throws Exception {
+      repository.insertUser(LOGIN, "password", "customer", null, "555-0100");
+      repository.insertStore(new Store(STORE_ID, "1 Check St", "Riverside", "California", "yes", null));
+      repository.insertItem(new MenuItem(ITEM, "Cheese, Bread, Tomato Sauce", "entree",
+                                         new BigDecimal("9.99"), "placed by the check"));
+
+      final PizzaStore[] stores = { new PizzaStore(repository), new PizzaStore(repository) };
+      final Map<String, Integer> items = Collections.singletonMap(ITEM, 1);
+      final BigDecimal total = new BigDecimal("9.99");
+      final Set<Integer> placed = ConcurrentHashMap.newKeySet();
+      final AtomicInteger duplicates = new AtomicInteger();
+      final AtomicInteger failures = new AtomicInteger();
+      final AtomicReference<String> firstFailure = new AtomicReference<String>();
+      final CountDownLatch start = new CountDownLatch(1);
+      try {
+         Thread[] workers = new Thread[threads];
+         for (int t = 0; t < threads; ++t) {
+            final PizzaStore esql = stores[t % stores.length];
+            workers[t] = new Thread(() -> {
+               try {
+                  start.await();
+               } catch (InterruptedException e) {
+                  return;
+               }
+               for (int i = 0; i < ordersPerThread; ++i) {
+                  try {
+                     int orderID = esql.createOrder(LOGIN, STORE_ID, items, total);
+                     if (!placed.add(orderID))
+                        duplicates.incrementAndGet();
+                  } catch (SQLException e) {
+                     if (DUPLICATE_KEY.equals(e.getSQLState()))
+                        duplicates.incrementAndGet();
+                     else
+                        failures.incrementAndGet();
+                     firstFailure.compareAndSet(null, e.getMessage());
+                  }
+               }
+            });
+            workers[t].start();
+         }
+         start.countDown();
+         for (Thread worker : workers)
+            worker.join();
+      } finally {
+         for (PizzaStore esql : stores)
+            esql.cleanup();
+      }
+
+      // every placed order must be stored once, and nothing else
+      final Set<Integer> stored = new HashSet<Integer>();
+      repository.forEachSale(new Timestamp(0), record -> stored.add(Integer.parseInt(record.get(0).trim())));
+      List<Integer> ids = Arrays.asList(placed.toArray(new Integer[0]));
+      int loaded = repository.loadOrders(ids).size();
+      int expected = threads * ordersPerThread;
+
+      System.out.println(String.format(
+         "orders: threads=%d expected=%d placed=%d stored=%d loaded=%d duplicateKeys=%d otherFailures=%d",
+         threads, expected, placed.size(), stored.size(), loaded, duplicates.get(), failures.get()));
+      if (firstFailure.get() != null)
+         System.err.println("First failure: " + firstFailure.get());
+      return duplicates.get() == 0 && failures.get() == 0 && placed.size() == expected
+         && stored.equals(placed) && loaded == expected;
+   }//end check
+
+   public static void main(String[] args) {
+      if (args.length > 2) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderPlacementCheck.class.getName() +
+            " [threads] [orders per thread]");
+         System.exit(2);
+      }//end if
+
+      try {
+         int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+         int ordersPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+         if (!check(new InMemoryPizzaRepository(), threads, ordersPerThread))
+            System.exit(1);
+      } catch (Exception e) {
+         System.err.println("Order placement check failed: " + e.getMessage());
+         System.exit(1);
+      }
+      System.exit(0);
+   }//end main
+
+}//end OrderPlacementCheck
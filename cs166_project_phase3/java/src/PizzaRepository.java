@@ -0,0 +1,280 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The data access behind PizzaStore: users, menu items, stores, orders and
+ * their line items.
+ *
+ * {@link JdbcPizzaRepository} keeps everything in the Postgres schema of
+ * create_tables.sql. {@link InMemoryPizzaRepository} keeps it in the heap
+ * and enforces the same keys, foreign keys and cascades, so the menus, the
+ * load generator and the benchmarks run unchanged without a database.
+ * Either way constraint violations surface as SQLExceptions carrying the
+ * Postgres SQLState (23505 for a duplicate key, 23503 for a missing
+ * reference, and so on).
+ *
+ */
+public interface PizzaRepository {
+
+   /**
+    * Adds a user.
+    *
+    * @param login the user name
+    * @param password the user's password
+    * @param role customer, driver or manager
+    * @param favoriteItems the user's favorite menu items, or null
+    * @param phoneNum the user's phone number
+    * @throws java.sql.SQLException when the login is taken or a field is
+    *         missing or too long
+    */
+   void insertUser(String login, String password, String role,
+                   String favoriteItems, String phoneNum) throws SQLException;
+
+   /**
+    * @param login the user name
+    * @return the user's password, role and profile, or null if there is no
+    *         such user
+    * @throws java.sql.SQLException when the user could not be read
+    */
+   Credentials findUser(String login) throws SQLException;
+
+   /**
+    * @param login the user name
+    * @return true if the user exists
+    * @throws java.sql.SQLException when the user could not be read
+    */
+   boolean userExists(String login) throws SQLException;
+
+   /**
+    * @param role the role to look for
+    * @param limit the largest number of users to return
+    * @return users with the role, in login order
+    * @throws java.sql.SQLException when the users could not be read
+    */
+   List<Credentials> findUsersByRole(String role, int limit) throws SQLException;
+
+   /**
+    * Changes some fields of a user; null fields are left as they are.
+    *
+    * @return false if there is no such user
+    * @throws java.sql.SQLException when a field is too long
+    */
+   boolean updateUser(String login, String password, String role,
+                      String favoriteItems, String phoneNum) throws SQLException;
+
+   /**
+    * Removes a user together with the user's orders.
+    *
+    * @param login the user name
+    * @return false if there is no such user
+    * @throws java.sql.SQLException when the user could not be removed
+    */
+   boolean deleteUser(String login) throws SQLException;
+
+   /**
+    * @return a number that changes whenever the menu does
+    * @throws java.sql.SQLException when the version could not be read
+    */
+   long itemsVersion() throws SQLException;
+
+   /**
+    * @return every menu item
+    * @throws java.sql.SQLException when the menu could not be read
+    */
+   List<MenuItem> items() throws SQLException;
+
+   /**
+    * Adds a menu item.
+    *
+    * @param item the new item
+    * @throws java.sql.SQLException when the name is taken or a field is
+    *         missing or too long
+    */
+   void insertItem(MenuItem item) throws SQLException;
+
+   /**
+    * Changes some fields of a menu item; null fields are left as they are.
+    *
+    * @return false if there is no such item
+    * @throws java.sql.SQLException when a field is too long
+    */
+   boolean updateItem(String itemName, String ingredients, String typeOfItem,
+                      BigDecimal price, String description) throws SQLException;
+
+   /**
+    * Removes a menu item together with the order lines that reference it.
+    *
+    * @param itemName the item
+    * @return false if there is no such item
+    * @throws java.sql.SQLException when the item could not be removed
+    */
+   boolean deleteItem(String itemName) throws SQLException;
+
+   /**
+    * @return a number that changes whenever a store does
+    * @throws java.sql.SQLException when the version could not be read
+    */
+   long storesVersion() throws SQLException;
+
+   /**
+    * @return every store, in storeID order
+    * @throws java.sql.SQLException when the stores could not be read
+    */
+   List<Store> stores() throws SQLException;
+
+   /**
+    * Streams every store, in storeID order, as records of storeID, address,
+    * city, state, isOpen and reviewScore; reviewScore is null for a store
+    * without reviews.
+    *
+    * @param handler receives every store in order
+    * @return the number of stores streamed
+    * @throws java.sql.SQLException when the stores could not be read
+    */
+   int forEachStore(PizzaStore.RowHandler handler) throws SQLException;
+
+   /**
+    * Adds a store.
+    *
+    * @param store the new store
+    * @throws java.sql.SQLException when the ID is taken or a field is
+    *         missing or too long
+    */
+   void insertStore(Store store) throws SQLException;
+
+   /**
+    * Removes a store together with the orders placed at it.
+    *
+    * @param storeID the store
+    * @return false if there is no such store
+    * @throws java.sql.SQLException when the store could not be removed
+    */
+   boolean deleteStore(int storeID) throws SQLException;
+
+   /**
+    * Reserves a block of PizzaStore.ORDER_ID_BLOCK_SIZE order IDs.
+    *
+    * @return the first ID of the block
+    * @throws java.sql.SQLException when no block could be reserved
+    */
+   long reserveOrderIds() throws SQLException;
+
+   /**
+    * Writes an order header, marked Pending, and all of its line items
+    * atomically.
+    *
+    * @param orderID the ID of the new order
+    * @param login the customer placing the order
+    * @param storeID the store the order is placed at
+    * @param totalPrice the order total
+    * @param orderTimestamp when the order was placed
+    * @param itemQuantities the quantity ordered of each item
+    * @throws java.sql.SQLException when the ID is taken or the customer,
+    *         store or an item does not exist; nothing is written then
+    */
+   void insertOrder(int orderID, String login, int storeID, BigDecimal totalPrice,
+                    Timestamp orderTimestamp, Map<String, Integer> itemQuantities) throws SQLException;
+
+   /**
+    * Changes the status of an order.
+    *
+    * @return false if there is no such order
+    * @throws java.sql.SQLException when the update failed
+    */
+   boolean setOrderStatus(int orderID, String status) throws SQLException;
+
+   /**
+    * Changes the status of several orders in one transaction; either every
+    * change is written or none is.
+    *
+    * @param orderIDs the orders, in the order the changes are applied
+    * @param statuses the new status of each order
+    * @return for each change, false if there is no such order
+    * @throws java.sql.SQLException when any change failed; nothing is
+    *         written then
+    */
+   boolean[] setOrderStatuses(int[] orderIDs, String[] statuses) throws SQLException;
+
+   /**
+    * Changes the status of an order only if it still has the expected
+    * status, in one statement.
+    *
+    * @param orderID the order
+    * @param expectedStatus the status the order must have
+    * @param status the new status
+    * @return false if there is no such order or its status differs
+    * @throws java.sql.SQLException when the update failed
+    */
+   boolean compareAndSetOrderStatus(int orderID, String expectedStatus, String status) throws SQLException;
+
+   /**
+    * Removes an order together with its line items.
+    *
+    * @param orderID the order
+    * @return false if there is no such order
+    * @throws java.sql.SQLException when the order could not be removed
+    */
+   boolean deleteOrder(int orderID) throws SQLException;
+
+   /**
+    * Streams a customer's orders, newest first, as records of orderID,
+    * storeID, totalPrice, orderTimestamp and orderStatus.
+    *
+    * @param login the customer
+    * @param afterTimestamp the orderTimestamp of the last order already
+    *        seen, or null to start with the newest order
+    * @param afterOrderID the orderID of the last order already seen
+    * @param limit the largest number of orders to stream
+    * @param handler receives every order in order
+    * @return the number of orders streamed
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   int forEachOrder(String login, String afterTimestamp, int afterOrderID, int limit,
+                    PizzaStore.RowHandler handler) throws SQLException;
+
+   /**
+    * Loads orders with their line items and the current price of each item.
+    *
+    * @param orderIDs the orders
+    * @return the orders that exist, keyed by ID, in the order asked for
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   Map<Integer, OrderDetails> loadOrders(Collection<Integer> orderIDs) throws SQLException;
+
+   /**
+    * Streams every order placed since a time, one record per line item, as
+    * records of orderID, storeID, totalPrice, orderTimestamp, orderStatus,
+    * itemName and quantity. The records of an order are adjacent; an order
+    * without line items has one record whose itemName and quantity are
+    * null.
+    *
+    * @param since the earliest orderTimestamp to stream
+    * @param handler receives every record
+    * @return the number of records streamed
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   int forEachSale(Timestamp since, PizzaStore.RowHandler handler) throws SQLException;
+
+   /**
+    * Streams the Pending orders, oldest first, as records of orderID,
+    * storeID and orderTimestamp.
+    *
+    * @param handler receives every order in order
+    * @return the number of orders streamed
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   int forEachPendingOrder(PizzaStore.RowHandler handler) throws SQLException;
+
+   /**
+    * @param login the customer
+    * @param count the largest number of orders to return
+    * @return the customer's most recently placed orders, newest first
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   List<RecentOrder> recentOrders(String login, int count) throws SQLException;
+
+}//end PizzaRepository
@@ -18,6 +18,7 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -26,9 +27,15 @@ import java.io.InputStreamReader;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.lang.Math;
-import java.util.Scanner;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Timestamp;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -37,13 +44,177 @@ import java.util.Scanner;
  */
 public class PizzaStore {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // default sizing of the connection pool shared by all sessions.
+   static final int DEFAULT_POOL_SIZE = 8;
+   static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30 * 1000L;
+   static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+   static final long DEFAULT_MAX_LIFETIME_MILLIS = 30 * 60 * 1000L;
+   static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+   // number of rows a streaming query fetches from the server at a time.
+   static final int DEFAULT_FETCH_SIZE = 256;
+
+   // order IDs reserved per round trip; must match INCREMENT BY of orderID_seq.
+   static final int ORDER_ID_BLOCK_SIZE = 50;
+
+   // how long a cached menu is served before its version is checked again.
+   static final long MENU_CHECK_INTERVAL_MILLIS = 5 * 1000L;
+
+   // how long the store index is served before its version is checked again.
+   static final long STORE_CHECK_INTERVAL_MILLIS = 5 * 1000L;
+
+   // stores shown per store search.
+   static final int STORE_SEARCH_LIMIT = 10;
+
+   // best selling items listed per store on the sales dashboard.
+   static final int SALES_TOP_ITEMS = 3;
+
+   // most status changes committed together, and how long a batch waits
+   // for more once it has one.
+   static final int STATUS_BATCH_SIZE = 64;
+   static final long STATUS_BATCH_DELAY_MILLIS = 2;
+
+   // how long a session trusts the role and profile it loaded at login.
+   static final long PRINCIPAL_TTL_MILLIS = 60 * 1000L;
+
+   // orders shown per page of the order history.
+   static final int ORDER_PAGE_SIZE = 20;
+
+   // orders kept per customer by the recent-orders ring; must match the
+   // ring size in update_recent_orders() in create_triggers.sql.
+   static final int RECENT_ORDER_COUNT = 5;
+   static final int RECENT_ORDER_CUSTOMERS = 10000;
+   static final long RECENT_ORDER_TTL_MILLIS = 30 * 1000L;
+
+   // queries at least this slow are kept in the slow-query log; override
+   // with -Dpizzastore.slowQueryMillis=N.
+   static final long DEFAULT_SLOW_QUERY_MILLIS = 200;
+   // how often the metrics file named by -Dpizzastore.metrics=<file> is
+   // rewritten; override with -Dpizzastore.metricsPeriodSeconds=N.
+   static final long DEFAULT_METRICS_PERIOD_SECONDS = 10;
+   // read-only work goes to the replica named by -Dpizzastore.replica.port=N
+   // (and optionally .dbname, .user and .poolSize) while it lags by at most
+   // this much; override with -Dpizzastore.replica.maxStalenessMillis=N.
+   static final long DEFAULT_REPLICA_MAX_STALENESS_MILLIS = 1000;
+   // how long a measurement of the replica's lag is trusted.
+   static final long REPLICA_CHECK_INTERVAL_MILLIS = 250;
+   // how far the replica's last replayed commit trails the primary's clock,
+   // in milliseconds; 0 on a server that is not replaying, e.g. a second
+   // connection to the primary itself.
+   static final String REPLICA_LAG_QUERY =
+      "SELECT CASE WHEN pg_is_in_recovery() " +
+      "THEN CAST(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 AS bigint) " +
+      "ELSE 0 END;";
+
+   /**
+    * Receives the rows of a streaming query one record at a time.
+    */
+   public interface RowHandler {
+      void handle(List<String> record) throws SQLException;
+   }//end RowHandler
+
+   /**
+    * A read that may run on the replica connection group.
+    */
+   public interface ReadOnlyWork<T> {
+      T run() throws SQLException;
+   }//end ReadOnlyWork
+
+   /**
+    * A unit of work run inside a single database transaction.
+    */
+   public interface TransactionWork<T> {
+      T run(Connection conn) throws SQLException;
+   }//end TransactionWork
+
+   // pool of physical database connections; null on the in-memory engine.
+   private ConnectionPool _pool = null;
+
+   // connections to the read replica and the router that decides when to
+   // use them; null without a replica.
+   private ConnectionPool _replicaPool = null;
+   private ReplicaRouter _router = null;
+   // the pool the current thread's statements run on, while it runs
+   // read-only work on the replica.
+   private final ThreadLocal<ConnectionPool> _route = new ThreadLocal<ConnectionPool>();
+
+   // where users, items, stores and orders are read and written.
+   private PizzaRepository _repository = null;
+
+   // latency and round-trip statistics of user actions and queries.
+   private final Metrics _metrics = new Metrics(
+      Long.getLong("pizzastore.slowQueryMillis", DEFAULT_SLOW_QUERY_MILLIS));
+
+   // hands out order IDs from blocks reserved in orderID_seq.
+   private final OrderIdAllocator _orderIds = new OrderIdAllocator(
+      () -> this._repository.reserveOrderIds(),
+      ORDER_ID_BLOCK_SIZE);
+
+   // layout of printed listings; null keeps each listing's own default.
+   private volatile ResultRenderer.Format _outputFormat = null;
+
+   // false once the driver refused a fetch size; results then arrive whole.
+   private volatile boolean _cursorFetch = true;
+
+   // in-process copy of the Items table used for menu display and prices.
+   private final MenuCache _menu = new MenuCache(new MenuCache.Source() {
+      public long version() throws SQLException {
+         return _repository.itemsVersion();
+      }
+      public List<MenuItem> items() throws SQLException {
+         return _repository.items();
+      }
+   }, MENU_CHECK_INTERVAL_MILLIS);
+
+   // in-process index of the open stores, for store search.
+   private final StoreIndex _storeIndex = new StoreIndex(new StoreIndex.Source() {
+      public long version() throws SQLException {
+         return _repository.storesVersion();
+      }
+      public List<Store> stores() throws SQLException {
+         return _repository.stores();
+      }
+   }, STORE_CHECK_INTERVAL_MILLIS);
+
+   // ingredient, type and price search over the cached menu.
+   private final IngredientIndex _ingredientIndex = new IngredientIndex(_menu);
+
+   // per-store orders, revenue and top items over the last hour, day and week.
+   private final SalesDashboard _sales = new SalesDashboard(SALES_TOP_ITEMS);
+
+   // the Pending orders of every store, for drivers to claim.
+   private final DispatchQueue _dispatch = new DispatchQueue(new DispatchQueue.Orders() {
+      public boolean compareAndSetStatus(int orderID, String expectedStatus, String status) throws SQLException {
+         return _repository.compareAndSetOrderStatus(orderID, expectedStatus, status);
+      }
+      public int forEachPending(RowHandler handler) throws SQLException {
+         return _repository.forEachPendingOrder(handler);
+      }
+   });
+
+   // group commit for order status changes from concurrent sessions.
+   private final StatusUpdateBatcher _statusUpdates = new StatusUpdateBatcher(new StatusUpdateBatcher.Writer() {
+      public boolean[] writeAll(int[] orderIDs, String[] statuses) throws SQLException {
+         return _repository.setOrderStatuses(orderIDs, statuses);
+      }
+      public boolean write(int orderID, String status) throws SQLException {
+         return _repository.setOrderStatus(orderID, status);
+      }
+   }, STATUS_BATCH_SIZE, STATUS_BATCH_DELAY_MILLIS);
+
+   // prices carts in whole cents against the cached menu.
+   private final CartPricer _cartPricer = new CartPricer(_menu);
+
+   // the last RECENT_ORDER_COUNT orders of recently active customers.
+   private final RecentOrderCache _recentOrders = new RecentOrderCache(
+      login -> this._repository.recentOrders(login, RECENT_ORDER_COUNT), RECENT_ORDER_COUNT, RECENT_ORDER_CUSTOMERS, RECENT_ORDER_TTL_MILLIS);
 
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // This variable can be global for convenience: it reads from the
+   // current session's client when called on a session thread, and from
+   // the keyboard otherwise.
+   static BufferedReader in = SessionContext.routedInput(new BufferedReader(
+                                new InputStreamReader(System.in)));
 
    /**
     * Creates a new instance of PizzaStore
@@ -55,6 +226,21 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public PizzaStore(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, DEFAULT_POOL_SIZE);
+   }//end PizzaStore
+
+   /**
+    * Creates a new instance of PizzaStore backed by a connection pool of the
+    * given size
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the database server listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param poolSize the maximum number of pooled connections
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public PizzaStore(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -62,9 +248,22 @@ public class PizzaStore {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // create the pool and open the first physical connection
+         this._pool = new ConnectionPool(url, user, passwd, poolSize,
+                                         DEFAULT_BORROW_TIMEOUT_MILLIS,
+                                         DEFAULT_IDLE_TIMEOUT_MILLIS,
+                                         DEFAULT_MAX_LIFETIME_MILLIS,
+                                         DEFAULT_STATEMENT_CACHE_SIZE);
+         this._pool.release(this._pool.borrow());
+         this._repository = new JdbcPizzaRepository(this, this._pool, this._metrics);
          System.out.println("Done");
+
+         openReplica(dbname, dbport, user, passwd, poolSize);
+
+         rebuildSales();
+         rebuildDispatch();
+
+         startMetricsReporter();
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -72,6 +271,164 @@ public class PizzaStore {
       }//end catch
    }//end PizzaStore
 
+   /**
+    * Creates a new instance of PizzaStore on the given repository, e.g. an
+    * InMemoryPizzaRepository for tests without a database.  The raw query
+    * methods are unavailable on such a store and fail with an SQLException.
+    *
+    * @param repository where users, items, stores and orders are kept
+    */
+   public PizzaStore(PizzaRepository repository) {
+      this._repository = repository;
+      rebuildSales();
+      rebuildDispatch();
+      startMetricsReporter();
+   }//end PizzaStore
+
+   /*
+    * Counts the orders of the last week into the sales dashboard.  A store
+    * whose dashboard could not be rebuilt still counts new orders.
+    */
+   private void rebuildSales() {
+      try {
+         this._sales.rebuild(this._repository);
+      } catch (SQLException e) {
+         System.err.println("Warning - sales dashboard not rebuilt: " + e.getMessage());
+      }
+   }//end rebuildSales
+
+   /*
+    * Queues the Pending orders for dispatch.  A store whose queues could not
+    * be rebuilt still queues new orders.
+    */
+   private void rebuildDispatch() {
+      try {
+         this._dispatch.rebuild();
+      } catch (SQLException e) {
+         System.err.println("Warning - dispatch queues not rebuilt: " + e.getMessage());
+      }
+   }//end rebuildDispatch
+
+   /*
+    * Starts writing metrics snapshots if -Dpizzastore.metrics names a file.
+    */
+   private void startMetricsReporter() {
+      String metricsFile = System.getProperty("pizzastore.metrics");
+      if (metricsFile != null)
+         this._metrics.startReporter(new File(metricsFile), 1000L *
+            Long.getLong("pizzastore.metricsPeriodSeconds", DEFAULT_METRICS_PERIOD_SECONDS));
+   }//end startMetricsReporter
+
+   /*
+    * Opens the replica connection group if -Dpizzastore.replica.port is
+    * set.  A replica that cannot be reached is left out, and every read
+    * goes to the primary.
+    */
+   private void openReplica(String dbname, String dbport, String user, String passwd, int poolSize) {
+      String port = System.getProperty("pizzastore.replica.port");
+      if (port == null)
+         return;
+      String url = "jdbc:postgresql://localhost:" + port + "/" + System.getProperty("pizzastore.replica.dbname", dbname);
+      try {
+         ConnectionPool replica = new ConnectionPool(url, System.getProperty("pizzastore.replica.user", user), passwd,
+                                                     Integer.getInteger("pizzastore.replica.poolSize", poolSize),
+                                                     DEFAULT_BORROW_TIMEOUT_MILLIS,
+                                                     DEFAULT_IDLE_TIMEOUT_MILLIS,
+                                                     DEFAULT_MAX_LIFETIME_MILLIS,
+                                                     DEFAULT_STATEMENT_CACHE_SIZE);
+         replica.release(replica.borrow());
+         this._replicaPool = replica;
+         this._router = new ReplicaRouter(this::replicaLagMillis,
+            Long.getLong("pizzastore.replica.maxStalenessMillis", DEFAULT_REPLICA_MAX_STALENESS_MILLIS),
+            REPLICA_CHECK_INTERVAL_MILLIS);
+         System.out.println("Read replica: " + url);
+      } catch (SQLException e) {
+         System.err.println("Warning - read replica " + url + " not used: " + e.getMessage());
+      }
+   }//end openReplica
+
+   /*
+    * Measures the replica's lag on one of its own connections.
+    */
+   private long replicaLagMillis() throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = this._replicaPool.borrow ();
+      try {
+         Statement stmt = conn.createStatement ();
+         try {
+            ResultSet rs = stmt.executeQuery (REPLICA_LAG_QUERY);
+            // a replica that has not replayed anything yet is as stale as it gets
+            if (!rs.next () || rs.getString (1) == null)
+               return Long.MAX_VALUE;
+            return rs.getLong (1);
+         } finally {
+            stmt.close ();
+         }
+      } finally {
+         this._replicaPool.release (conn);
+         this._metrics.query (REPLICA_LAG_QUERY, start);
+      }
+   }//end replicaLagMillis
+
+   /*
+    * The pool the current thread's statements run on: the replica while it
+    * runs read-only work there, the primary otherwise.
+    */
+   private ConnectionPool pool () throws SQLException {
+      ConnectionPool pool = this._route.get ();
+      if (pool != null)
+         return pool;
+      if (this._pool == null)
+         throw new SQLException ("This store has no database connection");
+      return this._pool;
+   }//end pool
+
+   /*
+    * Borrows a pooled connection, or fails on a store without a database.
+    */
+   private Connection borrow () throws SQLException {
+      return pool ().borrow ();
+   }//end borrow
+
+   /**
+    * Runs read-only work on the replica connection group if the replica is
+    * fresh enough and has the customer's own latest writes, and on the
+    * primary otherwise.  Every statement the work runs on this thread goes
+    * to the chosen connection group.
+    *
+    * @param login the customer whose data is read, or null for data no
+    *        session writes itself
+    * @param work the reads
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when a read failed
+    */
+   public <T> T readOnly (String login, ReadOnlyWork<T> work) throws SQLException {
+      if (this._router == null || this._route.get () != null || !this._router.useReplica (login))
+         return work.run ();
+      this._route.set (this._replicaPool);
+      try {
+         return work.run ();
+      } catch (SQLException e) {
+         // a lost connection takes the replica out of rotation until it answers again
+         if (e.getSQLState () == null || e.getSQLState ().startsWith ("08"))
+            this._router.failed ();
+         throw e;
+      } finally {
+         this._route.remove ();
+      }
+   }//end readOnly
+
+   /**
+    * Notes that a customer's data was just written, so that the customer's
+    * reads stay on the primary until the replica has replayed the write.
+    *
+    * @param login the customer
+    */
+   public void wrote (String login) {
+      if (this._router != null)
+         this._router.wrote (login);
+   }//end wrote
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -80,14 +437,50 @@ public class PizzaStore {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the update instruction
+         stmt.executeUpdate (sql);
+
+         // close the instruction
+         stmt.close ();
+      } catch (SQLException e) {
+         this._metrics.queryFailed (sql);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (sql, start);
+      }
+   }//end executeUpdate
 
-      // close the instruction
-      stmt.close ();
+   /**
+    * Method to execute a parameterized update SQL statement.  The statement
+    * is prepared once per connection and the parameters are bound to its ?
+    * placeholders in order.
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         PreparedStatement stmt = prepare (conn, sql, params);
+         return stmt.executeUpdate ();
+      } catch (SQLException e) {
+         pool ().evictStatement (conn, sql);
+         this._metrics.queryFailed (sql);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (sql, start);
+      }
    }//end executeUpdate
 
    /**
@@ -100,38 +493,47 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the query instruction
+         int rowCount = printRows (stmt.executeQuery (query), outputFormat (ResultRenderer.Format.TSV));
+         stmt.close ();
+         return rowCount;
+      } catch (SQLException e) {
+         this._metrics.queryFailed (query);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (query, start);
+      }
+   }//end executeQueryAndPrintResult
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
-      return rowCount;
-   }//end executeQuery
+   /**
+    * Parameterized variant of {@link #executeQueryAndPrintResult(String)}.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         return printRows (prepare (conn, query, params).executeQuery (), outputFormat (ResultRenderer.Format.TSV));
+      } catch (SQLException e) {
+         pool ().evictStatement (conn, query);
+         this._metrics.queryFailed (query);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (query, start);
+      }
+   }//end executeQueryAndPrintResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -143,22 +545,551 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the query instruction
+         List<List<String>> result = collectRows (stmt.executeQuery (query));
+         stmt.close ();
+         return result;
+      } catch (SQLException e) {
+         this._metrics.queryFailed (query);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (query, start);
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Parameterized variant of {@link #executeQueryAndReturnResult(String)}.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         return collectRows (prepare (conn, query, params).executeQuery ());
+      } catch (SQLException e) {
+         pool ().evictStatement (conn, query);
+         this._metrics.queryFailed (query);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (query, start);
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the query instruction
+         int rowCount = countRows (stmt.executeQuery (query));
+         stmt.close ();
+         return rowCount;
+      } catch (SQLException e) {
+         this._metrics.queryFailed (query);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (query, start);
+      }
+   }//end executeQuery
+
+   /**
+    * Parameterized variant of {@link #executeQuery(String)}.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         return countRows (prepare (conn, query, params).executeQuery ());
+      } catch (SQLException e) {
+         pool ().evictStatement (conn, query);
+         this._metrics.queryFailed (query);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (query, start);
+      }
+   }//end executeQuery
+
+   /**
+    * Method to check whether an input query returns at least one row.  The
+    * query is wrapped in EXISTS so the server stops at the first matching row
+    * and sends back a single boolean; it should select a constant, e.g.
+    * SELECT 1 FROM Users WHERE login = ?.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return true if the query returns any row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      String trimmed = query.trim ();
+      if (trimmed.endsWith (";"))
+         trimmed = trimmed.substring (0, trimmed.length () - 1);
+      String existsQuery = "SELECT EXISTS (" + trimmed + ")";
+
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         ResultSet rs = prepare (conn, existsQuery, params).executeQuery ();
+         try {
+            return rs.next () && rs.getBoolean (1);
+         } finally {
+            rs.close ();
+         }
+      } catch (SQLException e) {
+         pool ().evictStatement (conn, existsQuery);
+         this._metrics.queryFailed (existsQuery);
+         throw e;
+      } finally {
+         pool ().release (conn);
+         this._metrics.query (existsQuery, start);
+      }
+   }//end exists
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each record to the handler as it arrives.  The rows are fetched through
+    * a server-side cursor in batches of DEFAULT_FETCH_SIZE, so memory use does
+    * not grow with the size of the result.  Drivers without fetch size
+    * support, such as the pg73 driver in lib/, fetch the whole result with
+    * the query instead; records are still handed over one at a time.
+    *
+    * @param query the input query string with ? placeholders
+    * @param handler receives every record in order
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryForEach (String query, RowHandler handler, Object... params) throws SQLException {
+      RowIterator rows = executeQueryAndIterate (query, params);
+      try {
+         int rowCount = 0;
+         while (rows.hasNext ()) {
+            handler.handle (rows.next ());
+            ++rowCount;
+         }
+         return rowCount;
+      } catch (IllegalStateException e) {
+         if (e.getCause () instanceof SQLException)
+            throw (SQLException) e.getCause ();
+         throw e;
+      } finally {
+         rows.close ();
+      }
+   }//end executeQueryForEach
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * return an iterator over its records.  The rows are fetched through a
+    * server-side cursor in batches of DEFAULT_FETCH_SIZE where the driver
+    * supports fetch sizes, and all at once otherwise.  The iterator holds
+    * a pooled connection and must be closed.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return an open iterator over the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public RowIterator executeQueryAndIterate (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = borrow ();
+      try {
+         // Postgres only uses a cursor for fetch sizes inside a transaction
+         conn.setAutoCommit (false);
+         PreparedStatement stmt = prepare (conn, query, params);
+         int fetchSize = fetchInBatches (stmt);
+         RowIterator rows = new RowIterator (pool (), conn, stmt.executeQuery (),
+                                             this._metrics, fetchSize);
+         this._metrics.query (query, start);
+         return rows;
+      } catch (SQLException e) {
+         pool ().evictStatement (conn, query);
+         this._metrics.queryFailed (query);
+         try {
+            conn.rollback ();
+            conn.setAutoCommit (true);
+         } catch (SQLException ignored) {
+            conn.close ();
+         }
+         pool ().release (conn);
+         throw e;
+      }
+   }//end executeQueryAndIterate
+
+   /**
+    * Method to run several statements as one transaction on a single pooled
+    * connection.  The work is committed if it returns normally and rolled
+    * back if it throws anything, Errors included.  A connection that cannot
+    * be rolled back is closed rather than returned to autocommit, which
+    * would commit the partial work.
+    *
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when any statement or the commit failed
+    */
+   public <T> T executeInTransaction (TransactionWork<T> work) throws SQLException {
+      Connection conn = borrow ();
+      try {
+         conn.setAutoCommit (false);
+         try {
+            T result = work.run (conn);
+            long start = System.nanoTime ();
+            conn.commit ();
+            this._metrics.query ("COMMIT", start);
+            return result;
+         } catch (Throwable e) {
+            try {
+               conn.rollback ();
+            } catch (SQLException rollbackFailure) {
+               e.addSuppressed (rollbackFailure);
+               conn.close ();
+            }
+            throw e;
+         } finally {
+            if (!conn.isClosed ())
+               conn.setAutoCommit (true);
+         }
+      } finally {
+         pool ().release (conn);
+      }
+   }//end executeInTransaction
+
+   /**
+    * Returns a new, unique order ID.  Most calls are answered from the block
+    * of IDs already reserved by this client without a database round trip.
+    *
+    * @return the next order ID
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public int nextOrderId () throws SQLException {
+      return this._orderIds.nextId ();
+   }//end nextOrderId
+
+   /**
+    * Adds a new customer account.
+    *
+    * @param login the user name
+    * @param password the user's password
+    * @param favoriteItems the user's favorite menu items
+    * @param phoneNum the user's phone number
+    * @throws java.sql.SQLException when the user could not be inserted
+    */
+   public void createUser (String login, String password, String favoriteItems, String phoneNum) throws SQLException {
+      this._metrics.begin ("CreateUser");
+      try {
+         this._repository.insertUser (login, password, "customer", favoriteItems, phoneNum);
+      } finally {
+         this._metrics.end ();
+      }
+   }//end createUser
+
+   /**
+    * Places a new order under a fresh order ID, stamped with the current
+    * time and marked Pending.
+    *
+    * @param login the customer placing the order
+    * @param storeID the store the order is placed at
+    * @param itemQuantities the quantity ordered of each item
+    * @param totalPrice the order total
+    * @return the ID of the new order
+    * @throws java.sql.SQLException when the order could not be written
+    */
+   public int createOrder (String login, int storeID, Map<String, Integer> itemQuantities,
+                           BigDecimal totalPrice) throws SQLException {
+      this._metrics.begin ("placeOrder");
+      try {
+         int orderID = nextOrderId ();
+         submitOrder (orderID, login, storeID, totalPrice,
+                      new Timestamp (System.currentTimeMillis ()), itemQuantities);
+         return orderID;
+      } finally {
+         this._metrics.end ();
+      }
+   }//end createOrder
+
+   /**
+    * Prices a cart against the cached menu, in whole cents and without a
+    * round trip.
+    *
+    * @param itemQuantities the quantity ordered of each item
+    * @return the quote; it lists any items that are not on the menu
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public CartPricer.Quote priceCart (Map<String, Integer> itemQuantities) throws SQLException {
+      return this._cartPricer.price (itemQuantities);
+   }//end priceCart
+
+   /**
+    * Changes the status of an order.  Changes from concurrent sessions are
+    * gathered into short batches that each commit once; the caller waits
+    * for its batch and gets its own result.  An order set back to Pending
+    * is queued for its store's drivers again.
+    *
+    * @param orderID the order to update
+    * @param status the new status
+    * @return false if there is no such order
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean setOrderStatus (int orderID, String status) throws SQLException {
+      this._metrics.begin ("updateOrderStatus");
+      try {
+         // committed together with the changes of other sessions
+         boolean updated = this._statusUpdates.update (orderID, status);
+         if (updated) {
+            this._sales.statusChanged (orderID, status);
+            if (!DispatchQueue.PENDING.equalsIgnoreCase (status.trim ())) {
+               this._dispatch.remove (orderID);
+            } else {
+               // the store and placement time are needed to queue it again
+               OrderDetails order = loadOrder (orderID);
+               if (order != null)
+                  this._dispatch.enqueue (orderID, order.getStoreID (),
+                                          Timestamp.valueOf (order.getOrderTimestamp ().trim ()));
+            }
+         }
+         return updated;
+      } finally {
+         this._metrics.end ();
+      }
+   }//end setOrderStatus
+
+   /**
+    * Writes an order header and all of its line items atomically.  On the
+    * database the line items are sent as a single JDBC batch, so an order
+    * costs one commit however many items it has.
+    *
+    * @param orderID the ID of the new order
+    * @param login the customer placing the order
+    * @param storeID the store the order is placed at
+    * @param totalPrice the order total
+    * @param orderTimestamp when the order was placed
+    * @param itemQuantities the quantity ordered of each item
+    * @throws java.sql.SQLException when the order could not be written
+    */
+   public void submitOrder (int orderID, String login, int storeID, BigDecimal totalPrice,
+                            Timestamp orderTimestamp, Map<String, Integer> itemQuantities) throws SQLException {
+      this._repository.insertOrder (orderID, login, storeID, totalPrice, orderTimestamp, itemQuantities);
+      this._recentOrders.placed (login, new RecentOrder (orderID, storeID, totalPrice, orderTimestamp));
+      this._sales.placed (orderID, storeID, totalPrice, orderTimestamp, DispatchQueue.PENDING, itemQuantities);
+      this._dispatch.enqueue (orderID, storeID, orderTimestamp);
+   }//end submitOrder
+
+   /**
+    * Claims the oldest Pending order of a store for a driver and marks it
+    * out for delivery.  No two drivers ever claim the same order.
+    *
+    * @param storeID the store
+    * @return the claimed order, or -1 if the store has no Pending order
+    * @throws java.sql.SQLException when the claim could not be written
+    */
+   public int claimNextOrder (int storeID) throws SQLException {
+      this._metrics.begin ("claimNextOrder");
+      try {
+         int orderID = this._dispatch.claim (storeID);
+         if (orderID >= 0)
+            this._sales.statusChanged (orderID, DispatchQueue.CLAIMED);
+         return orderID;
+      } finally {
+         this._metrics.end ();
+      }
+   }//end claimNextOrder
+
+   /**
+    * @return the group commit behind {@link #setOrderStatus}
+    */
+   public StatusUpdateBatcher getStatusUpdates () {
+      return this._statusUpdates;
+   }//end getStatusUpdates
+
+   /**
+    * @return the queues behind {@link #claimNextOrder}
+    */
+   public DispatchQueue getDispatchQueue () {
+      return this._dispatch;
+   }//end getDispatchQueue
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Streams a customer's order history, newest first.  Each record holds
+    * orderID, storeID, totalPrice, orderTimestamp and orderStatus.
+    *
+    * @param login the customer
+    * @param handler receives every order in order
+    * @return the number of orders
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int forEachOrder (String login, RowHandler handler) throws SQLException {
+      this._metrics.begin ("viewAllOrders");
+      try {
+         return this._repository.forEachOrder (login, null, 0, Integer.MAX_VALUE, handler);
+      } finally {
+         this._metrics.end ();
+      }
+   }//end forEachOrder
+
+   /**
+    * Streams one page of a customer's order history, newest first, with the
+    * same record layout as {@link #forEachOrder}.  Pages are keyed on
+    * (orderTimestamp, orderID) rather than counted with OFFSET, so with the
+    * FoodOrder (login, orderTimestamp, orderID) index every page is one index
+    * range scan of pageSize rows, however deep it is.
+    *
+    * @param login the customer
+    * @param afterTimestamp the orderTimestamp of the last order on the
+    *        previous page, or null for the first page
+    * @param afterOrderID the orderID of the last order on the previous page
+    * @param pageSize the largest number of orders to return
+    * @param handler receives every order in order
+    * @return the number of orders on the page; fewer than pageSize means it
+    *         was the last one
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int forEachOrderPage (String login, String afterTimestamp, int afterOrderID,
+                                int pageSize, RowHandler handler) throws SQLException {
+      this._metrics.begin ("viewAllOrders");
+      try {
+         return this._repository.forEachOrder (login, afterTimestamp, afterOrderID, pageSize, handler);
+      } finally {
+         this._metrics.end ();
+      }
+   }//end forEachOrderPage
+
+   /**
+    * Loads an order with its line items and item prices in one round trip.
+    *
+    * @param orderID the order
+    * @return the order, or null if there is no such order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OrderDetails loadOrder (int orderID) throws SQLException {
+      return this._repository.loadOrders (Collections.singletonList (orderID)).get (orderID);
+   }//end loadOrder
+
+   /**
+    * Loads many orders with their line items and item prices, on the
+    * database in one round trip per OrderLoader.MAX_BATCH orders.
+    *
+    * @param orderIDs the orders
+    * @return the orders that exist, keyed by ID, in the order asked for
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public Map<Integer, OrderDetails> loadOrders (Collection<Integer> orderIDs) throws SQLException {
+      return this._repository.loadOrders (orderIDs);
+   }//end loadOrders
+
+   /**
+    * Returns a customer's last RECENT_ORDER_COUNT orders, usually from
+    * memory and otherwise with a single key lookup.
+    *
+    * @param login the customer
+    * @return the orders, newest first
+    * @throws java.sql.SQLException when the orders could not be loaded
+    */
+   public List<RecentOrder> recentOrders (String login) throws SQLException {
+      this._metrics.begin ("viewRecentOrders");
+      try {
+         return this._recentOrders.get (login);
+      } finally {
+         this._metrics.end ();
+      }
+   }//end recentOrders
+
+   /*
+    * Fetches the cached prepared statement for the query on the given
+    * connection and binds the parameters to it.
+    */
+   private PreparedStatement prepare (Connection conn, String query, Object[] params) throws SQLException {
+      PreparedStatement stmt = pool ().prepare (conn, query);
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else
+            stmt.setObject (i + 1, params[i]);
+      }
+      return stmt;
+   }//end prepare
+
+   /*
+    * Asks the driver to fetch the statement's rows in batches through a
+    * cursor, and returns the number of rows that arrive per round trip.  The
+    * pg73 driver throws a "not implemented" SQLException for any fetch size;
+    * the rows then arrive with the query, and the driver is not asked again.
+    */
+   private int fetchInBatches (PreparedStatement stmt) {
+      if (this._cursorFetch) {
+         try {
+            stmt.setFetchSize (DEFAULT_FETCH_SIZE);
+            return DEFAULT_FETCH_SIZE;
+         } catch (SQLException e) {
+            this._cursorFetch = false;
+         }
+      }
+      return Integer.MAX_VALUE;
+   }//end fetchInBatches
+
+   /*
+    * Outputs the rows of a result set to standard out through a buffered
+    * renderer and closes it.
+    */
+   private static int printRows (ResultSet rs, ResultRenderer.Format format) throws SQLException {
+      /*
+       ** obtains the metadata object for the returned result set.  The metadata
+       ** contains row and column info.
+       */
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      String[] labels = new String[numCol];
+      for (int i = 1; i <= numCol; ++i)
+         labels[i - 1] = rsmd.getColumnName (i);
+
+      // iterates through the result set and renders the rows in large chunks.
+      ResultRenderer renderer = new ResultRenderer (System.out, format, labels);
+      List<String> record = new ArrayList<String> (numCol);
+      while (rs.next()){
+         record.clear ();
+         for (int i=1; i<=numCol; ++i)
+            record.add (rs.getString (i));
+         renderer.row (record);
+      }//end while
+      rs.close();
+      return renderer.finish ();
+   }//end printRows
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
+   /*
+    * Saves the rows of a result set as a list of records and closes it.
+    */
+   private static List<List<String>> collectRows (ResultSet rs) throws SQLException {
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
         List<String> record = new ArrayList<String>();
@@ -166,34 +1097,23 @@ public class PizzaStore {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
+      rs.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end collectRows
 
-   /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
-    *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
+   /*
+    * Counts the rows of a result set and closes it.
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
+   private static int countRows (ResultSet rs) throws SQLException {
        int rowCount = 0;
 
        // iterates through the result set and count nuber of results.
        while (rs.next()){
           rowCount++;
        }//end while
-       stmt.close ();
+       rs.close ();
        return rowCount;
-   }
+   }//end countRows
 
    /**
     * Method to fetch the last value from sequence. This
@@ -205,25 +1125,293 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	long start = System.nanoTime ();
+	Connection conn = borrow ();
+	try {
+		Statement stmt = conn.createStatement ();
+
+		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+		if (rs.next())
+			return rs.getInt(1);
+		return -1;
+	} finally {
+		pool ().release (conn);
+		this._metrics.query ("SELECT currval(?)", start);
+	}
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * @return a summary of the connection pool size and borrow-wait metrics
+    */
+   public String getPoolStats(){
+      if (this._pool == null)
+         return "pool: none (no database)";
+      if (this._router == null)
+         return this._pool.getStats ();
+      return this._pool.getStats () + "\nreplica " + this._replicaPool.getStats () + "\n" + this._router.getStats ();
+   }//end getPoolStats
+
+   /**
+    * @return a summary of the recent-orders cache
+    */
+   public String getRecentOrderStats(){
+      return this._recentOrders.getStats ();
+   }//end getRecentOrderStats
+
+   /**
+    * @return the latency and round-trip statistics of this store
+    */
+   public Metrics getMetrics(){
+      return this._metrics;
+   }//end getMetrics
+
+   /**
+    * Checks a login and password and loads the user's role and profile in
+    * the same round trip.
+    *
+    * @param login the user name
+    * @param password the user's password
+    * @return the session principal, or null if the credentials are invalid
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Credentials authenticate(String login, String password) throws SQLException {
+      this._metrics.begin("LogIn");
+      try {
+         Credentials user = this._repository.findUser(login);
+         if (user == null || !user.getPassword().equals(password))
+            return null;
+         return user;
+      } finally {
+         this._metrics.end();
+      }
+   }//end authenticate
+
+   /**
+    * Returns the session principal, reloading its role and profile first if
+    * they are older than PRINCIPAL_TTL_MILLIS.
+    *
+    * @param creds the session principal
+    * @return the principal, or null if the user no longer exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Credentials principal(Credentials creds) throws SQLException {
+      if (System.currentTimeMillis() - creds.getLoadedAt() < PRINCIPAL_TTL_MILLIS)
+         return creds;
+      return refreshPrincipal(creds) ? creds : null;
+   }//end principal
+
+   /**
+    * Reloads the role and profile of a session principal, e.g. after the
+    * user's row was changed.
+    *
+    * @param creds the session principal
+    * @return false if the user no longer exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean refreshPrincipal(Credentials creds) throws SQLException {
+      Credentials user = this._repository.findUser(creds.getUser());
+      if (user == null)
+         return false;
+      creds.setProfile(user.getPassword(), user.getRole(), user.getFavoriteItems(), user.getPhoneNum());
+      return true;
+   }//end refreshPrincipal
+
+   /**
+    * Changes some fields of a user's profile; null fields are left as they
+    * are.
+    *
+    * @param login the user
+    * @param password the new password, or null
+    * @param role the new role, or null
+    * @param favoriteItems the new favorite items, or null
+    * @param phoneNum the new phone number, or null
+    * @return false if there is no such user
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateUser(String login, String password, String role,
+                             String favoriteItems, String phoneNum) throws SQLException {
+      return this._repository.updateUser(login, password, role, favoriteItems, phoneNum);
+   }//end updateUser
+
+   /**
+    * @param login the user name
+    * @return true if the user exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean userExists(String login) throws SQLException {
+      return this._repository.userExists(login);
+   }//end userExists
+
+   /**
+    * Adds a menu item and reloads the cached menu.
+    *
+    * @param item the new item
+    * @throws java.sql.SQLException when the item could not be inserted
+    */
+   public void addItem(MenuItem item) throws SQLException {
+      this._repository.insertItem(item);
+      this._menu.invalidate();
+   }//end addItem
+
+   /**
+    * Changes some fields of a menu item, leaving null fields as they are,
+    * and reloads the cached menu.
+    *
+    * @param itemName the item
+    * @param ingredients the new ingredients, or null
+    * @param typeOfItem the new type, or null
+    * @param price the new price, or null
+    * @param description the new description, or null
+    * @return false if there is no such item
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateItem(String itemName, String ingredients, String typeOfItem,
+                             BigDecimal price, String description) throws SQLException {
+      boolean updated = this._repository.updateItem(itemName, ingredients, typeOfItem, price, description);
+      this._menu.invalidate();
+      return updated;
+   }//end updateItem
+
+   /**
+    * Searches the menu by ingredient, type of item and price, from the
+    * in-process ingredient index, without regard to case. Contained terms
+    * match the start of ingredient words; excluded terms only match whole
+    * words, see {@link IngredientIndex#search}.
+    *
+    * @param contains terms every item must contain
+    * @param without terms no item may contain
+    * @param typeOfItem the type of item, or null or blank for any type
+    * @param minPrice the lowest price, or null for no lower bound
+    * @param maxPrice the highest price, or null for no upper bound
+    * @return the matching items, in menu order
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public List<MenuItem> searchMenu(Collection<String> contains, Collection<String> without,
+                                    String typeOfItem, BigDecimal minPrice, BigDecimal maxPrice) throws SQLException {
+      // a bound between two cents keeps only the prices inside it
+      long minCents = minPrice == null ? -1
+         : Math.max(0, minPrice.movePointRight(2).setScale(0, RoundingMode.CEILING).longValue());
+      long maxCents = maxPrice == null ? -1
+         : maxPrice.movePointRight(2).setScale(0, RoundingMode.FLOOR).longValue();
+      if (maxPrice != null && maxCents < 0)
+         return Collections.emptyList();
+      return this._ingredientIndex.search(contains, without, typeOfItem, minCents, maxCents);
+   }//end searchMenu
+
+   /**
+    * @return the index behind {@link #searchMenu}
+    */
+   public IngredientIndex getIngredientIndex(){
+      return this._ingredientIndex;
+   }//end getIngredientIndex
+
+   /**
+    * @return every store, in storeID order
+    * @throws java.sql.SQLException when the stores could not be read
+    */
+   public List<Store> stores() throws SQLException {
+      return this._repository.stores();
+   }//end stores
+
+   /**
+    * Streams every store, in storeID order, without building a list of
+    * them.
+    *
+    * @param handler receives records of storeID, address, city, state,
+    *        isOpen and reviewScore (null without reviews)
+    * @return the number of stores streamed
+    * @throws java.sql.SQLException when the stores could not be read
+    */
+   public int forEachStore(RowHandler handler) throws SQLException {
+      return this._repository.forEachStore(handler);
+   }//end forEachStore
+
+   /**
+    * Finds open stores by state and city prefix, best reviewed first, from
+    * the in-process store index.
+    *
+    * @param state the state, or null or blank for any state
+    * @param cityPrefix the start of the city name, or null or blank for any
+    *        city
+    * @param limit the largest number of stores to return
+    * @return the matching stores
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public List<Store> findStores(String state, String cityPrefix, int limit) throws SQLException {
+      return this._storeIndex.find(state, cityPrefix, limit);
+   }//end findStores
+
+   /**
+    * Reports per-store sales over a window from the in-process counters,
+    * without querying the database.
+    *
+    * @param window the last hour, day or week
+    * @return the sales of each store with orders in the window, best
+    *         revenue first
+    */
+   public List<SalesDashboard.StoreSales> salesReport(SalesDashboard.Window window) {
+      return this._sales.report(window);
+   }//end salesReport
+
+   /**
+    * @return the index behind {@link #findStores}
+    */
+   public StoreIndex getStoreIndex(){
+      return this._storeIndex;
+   }//end getStoreIndex
+
+   /**
+    * @return the repository behind this store
+    */
+   public PizzaRepository getRepository(){
+      return this._repository;
+   }//end getRepository
+
+   /**
+    * Chooses the layout of printed listings.
+    *
+    * @param format the layout, or null for each listing's default
+    */
+   public void setOutputFormat(ResultRenderer.Format format){
+      this._outputFormat = format;
+   }//end setOutputFormat
+
+   /**
+    * @param fallback the listing's default layout
+    * @return the layout chosen with setOutputFormat, or the fallback
+    */
+   public ResultRenderer.Format outputFormat(ResultRenderer.Format fallback){
+      ResultRenderer.Format format = this._outputFormat;
+      return format == null ? fallback : format;
+   }//end outputFormat
+
+   /**
+    * @return the cached menu, used for menu display and price lookups
+    */
+   public MenuCache getMenu(){
+      return this._menu;
+   }//end getMenu
+
+   /**
+    * Method to close the pooled physical connections.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      this._statusUpdates.close ();
+      this._metrics.stopReporter ();
+      String metricsFile = System.getProperty ("pizzastore.metrics");
+      if (metricsFile != null) {
+         try {
+            this._metrics.writeSnapshot (new File (metricsFile));
+         } catch (IOException e) {
+            // ignored.
+         }
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
+      if (this._replicaPool != null){
+         this._replicaPool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -232,12 +1420,12 @@ public class PizzaStore {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length != 3 && args.length != 4) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             PizzaStore.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [table|tsv|jsonl|record]");
          return;
       }//end if
 
@@ -252,74 +1440,10 @@ public class PizzaStore {
          String dbport = args[1];
          String user = args[2];
          esql = new PizzaStore (dbname, dbport, user, "");
+         if (args.length == 4)
+            esql.setOutputFormat (ResultRenderer.Format.parse (args[3]));
 
-         Credentials creds = null; // Declare creds
-
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            String authorisedPassword = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: 
-                        creds = LogIn(esql);
-                        if (creds != null) {
-                           authorisedUser = creds.getUser();
-                           authorisedPassword = creds.getPassword();
-                        }
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. View Profile");
-                System.out.println("2. Update Profile");
-                System.out.println("3. View Menu");
-                System.out.println("4. Place Order"); //make sure user specifies which store
-                System.out.println("5. View Full Order ID History");
-                System.out.println("6. View Past 5 Order IDs");
-                System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
-                System.out.println("8. View Stores"); 
-
-                //**the following functionalities should only be able to be used by drivers & managers**
-                System.out.println("9. Update Order Status");
-
-                //**the following functionalities should ony be able to be used by managers**
-                System.out.println("10. Update Menu");
-                System.out.println("11. Update User");
-
-                System.out.println(".........................");
-                System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewProfile(esql, creds); break;
-                   case 2: updateProfile(esql, creds); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, creds); break;
-                   case 5: viewAllOrders(esql, creds); break;
-                   case 6: viewRecentOrders(esql, creds); break;
-                   case 7: viewOrderInfo(esql, creds); break;
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql, creds); break;
-                   case 10: updateMenu(esql, creds); break;
-                   case 11: updateUser(esql, creds); break;
-
-
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
-            }
-         }//end while
+         runSession(esql);
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
@@ -336,6 +1460,113 @@ public class PizzaStore {
       }//end try
    }//end main
 
+   /**
+    * Runs the main menu until the user exits, reading choices from and
+    * printing to the current session, or to the console outside a session.
+    *
+    * @param esql the store shared by every session
+    */
+   public static void runSession(PizzaStore esql) {
+      Credentials creds = null; // Declare creds
+
+      boolean keepon = true;
+      while(keepon) {
+         // These are sample SQL statements
+         System.out.println("MAIN MENU");
+         System.out.println("---------");
+         System.out.println("1. Create user");
+         System.out.println("2. Log in");
+         System.out.println("9. < EXIT");
+         String authorisedUser = null;
+         String authorisedPassword = null;
+         int choice = readChoice();
+         esql.getMetrics().begin(actionName(MAIN_MENU_ACTIONS, choice));
+         switch (choice){
+            case 1: CreateUser(esql); break;
+            case 2: 
+                     creds = LogIn(esql);
+                     if (creds != null) {
+                        SessionContext.setCredentials(creds);
+                        authorisedUser = creds.getUser();
+                        authorisedPassword = creds.getPassword();
+                     }
+            case 9: keepon = false; break;
+            default : System.out.println("Unrecognized choice!"); break;
+         }//end switch
+         esql.getMetrics().end();
+         if (authorisedUser != null) {
+           boolean usermenu = true;
+           while(usermenu) {
+             System.out.println("MAIN MENU");
+             System.out.println("---------");
+             System.out.println("1. View Profile");
+             System.out.println("2. Update Profile");
+             System.out.println("3. View Menu");
+             System.out.println("4. Place Order"); //make sure user specifies which store
+             System.out.println("5. View Full Order ID History");
+             System.out.println("6. View Past 5 Order IDs");
+             System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
+             System.out.println("8. View Stores"); 
+
+             //**the following functionalities should only be able to be used by drivers & managers**
+             System.out.println("9. Update Order Status");
+
+             //**the following functionalities should ony be able to be used by managers**
+             System.out.println("10. Update Menu");
+             System.out.println("11. Update User");
+             System.out.println("12. Find a Store");
+             System.out.println("13. Search Menu");
+             System.out.println("14. Sales Dashboard");
+             System.out.println("15. Claim Next Order");
+
+             System.out.println(".........................");
+             System.out.println("20. Log out");
+             int action = readChoice();
+             esql.getMetrics().begin(actionName(USER_MENU_ACTIONS, action));
+             switch (action){
+                case 1: viewProfile(esql, creds); break;
+                case 2: updateProfile(esql, creds); break;
+                case 3: viewMenu(esql); break;
+                case 4: placeOrder(esql, creds); break;
+                case 5: viewAllOrders(esql, creds); break;
+                case 6: viewRecentOrders(esql, creds); break;
+                case 7: viewOrderInfo(esql, creds); break;
+                case 8: viewStores(esql); break;
+                case 9: updateOrderStatus(esql, creds); break;
+                case 10: updateMenu(esql, creds); break;
+                case 11: updateUser(esql, creds); break;
+                case 12: findStores(esql); break;
+                case 13: searchMenu(esql); break;
+                case 14: viewSalesDashboard(esql, creds); break;
+                case 15: claimNextOrder(esql, creds); break;
+
+
+
+                case 20: usermenu = false; SessionContext.setCredentials(null); break;
+                default : System.out.println("Unrecognized choice!"); break;
+             }
+             esql.getMetrics().end();
+           }
+         }
+      }//end while
+   }//end runSession
+
+   // metric names of the menu choices, indexed by choice number
+   private static final String[] MAIN_MENU_ACTIONS = { null, "CreateUser", "LogIn" };
+   private static final String[] USER_MENU_ACTIONS = {
+      null, "viewProfile", "updateProfile", "viewMenu", "placeOrder", "viewAllOrders",
+      "viewRecentOrders", "viewOrderInfo", "viewStores", "updateOrderStatus", "updateMenu",
+      "updateUser", "findStores", "searchMenu", "viewSalesDashboard",
+      "claimNextOrder" };
+
+   /*
+    * Names the action behind a menu choice, or null for choices that are not
+    * worth measuring such as Log out.
+    */
+   private static String actionName(String[] actions, int choice) {
+      return choice >= 0 && choice < actions.length ? actions[choice] : null;
+   }//end actionName
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -363,18 +1594,23 @@ public class PizzaStore {
       return input;
    }//end readChoice
 
+   /*
+    * Maps a field left blank at a prompt to null, meaning "keep the current
+    * value".
+    */
+   private static String blankToNull(String input) {
+      return input == null || input.isEmpty() ? null : input;
+   }//end blankToNull
+
    /*
     * Creates a new user
     **/
    public static void CreateUser(PizzaStore esql) {
       String login;
       String password;
-      String role = "customer";
       String favoriteItems;
       String phoneNum;
 
-      BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-
       System.out.print("Thank you for creating a User at Papa's Pizzeria! What do you want your Username to be?\n");
       do {
          System.out.print("Username: ");
@@ -432,8 +1668,7 @@ public class PizzaStore {
       } while (true);
 
       try {
-         String query = "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ('" + login + "', '" + password + "', '" + role + "', '" + favoriteItems + "', '" + phoneNum + "');";
-         esql.executeUpdate(query);
+         esql.createUser(login, password, favoriteItems, phoneNum);
          System.out.println("User created successfully!");
       } catch (Exception e) {
          System.err.println("Error inserting user into database: " + e.getMessage());
@@ -454,12 +1689,12 @@ public class PizzaStore {
             System.out.print("Enter Password: ");
             String password = in.readLine();
 
-            String query = String.format("SELECT * FROM Users WHERE login='%s' AND password='%s'", login, password);
-            int userCount = esql.executeQuery(query);
+            // Load the role and profile once for the whole session
+            Credentials creds = esql.authenticate(login, password);
 
-            if (userCount > 0) {
+            if (creds != null) {
                System.out.println("Login successful!");
-               return new Credentials(login, password);
+               return creds;
             } 
             else {
                System.out.println("Invalid login credentials.");
@@ -477,23 +1712,20 @@ public class PizzaStore {
 
    public static void viewProfile(PizzaStore esql, Credentials creds) {
       try {
-         // Use the user field from the Credentials object in the query
-         String query = String.format("SELECT * FROM Users WHERE login='%s' AND password='%s'", creds.getUser(), creds.getPassword());
-
-         // Execute the query and get the result
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         // Use the profile loaded at login unless it has expired
+         Credentials principal = esql.principal(creds);
 
          // Check if the user's profile exists
-         if (result.isEmpty()) {
+         if (principal == null) {
             System.out.println("No user profile found for the current login.");
          } else {
             // Display all user details (username, role, etc.)
             System.out.println("User Profile:");
-            System.out.println("Login: " + result.get(0).get(0)); // Username
-            System.out.println("Password: " + result.get(0).get(1)); // Password
-            System.out.println("Role: " + result.get(0).get(2)); // Role
-            System.out.println("Favorite Items: " + result.get(0).get(3)); // Favorite Items
-            System.out.println("Phone Number: " + result.get(0).get(4)); // Phone Number
+            System.out.println("Login: " + principal.getUser()); // Username
+            System.out.println("Password: " + principal.getPassword()); // Password
+            System.out.println("Role: " + principal.getRole()); // Role
+            System.out.println("Favorite Items: " + principal.getFavoriteItems()); // Favorite Items
+            System.out.println("Phone Number: " + principal.getPhoneNum()); // Phone Number
          }
       } catch (Exception e) {
          System.err.println("An error occurred: " + e.getMessage());
@@ -504,16 +1736,15 @@ public class PizzaStore {
    
    public static void updateProfile(PizzaStore esql, Credentials creds) {
       try {
-         // Fetch the current profile information to show the user
-         String query = String.format("SELECT * FROM Users WHERE login='%s' AND password='%s'", creds.getUser(), creds.getPassword());
-         List<List<String>> currentDetails = esql.executeQueryAndReturnResult(query);
+         // Show the current profile information loaded for the session
+         Credentials principal = esql.principal(creds);
    
          // Display current profile details
-         if (!currentDetails.isEmpty()) {
+         if (principal != null) {
             System.out.println("Current Profile Details:");
-            System.out.println("Password: " + currentDetails.get(0).get(1));
-            System.out.println("Phone Number: " + currentDetails.get(0).get(4));
-            System.out.println("Favorite Items: " + currentDetails.get(0).get(3));
+            System.out.println("Password: " + principal.getPassword());
+            System.out.println("Phone Number: " + principal.getPhoneNum());
+            System.out.println("Favorite Items: " + principal.getFavoriteItems());
          } else {
             System.out.println("No profile found for the user.");
             return;
@@ -529,30 +1760,19 @@ public class PizzaStore {
          System.out.print("Enter new favorite items (Leave blank to keep the same): ");
          String newFavoriteItems = in.readLine();
    
-         // Construct the SQL update query
-         String updateQuery = "UPDATE Users SET ";
-         boolean first = true;
-   
-         if (newPassword != null && !newPassword.isEmpty()) {
-            updateQuery += "password = '" + newPassword + "'";
-            first = false;
-         }
-   
-         if (newPhoneNum != null && !newPhoneNum.isEmpty()) {
-            if (!first) updateQuery += ", ";
-            updateQuery += "phoneNum = '" + newPhoneNum + "'";
-            first = false;
-         }
-   
-         if (newFavoriteItems != null && !newFavoriteItems.isEmpty()) {
-            if (!first) updateQuery += ", ";
-            updateQuery += "favoriteItems = '" + newFavoriteItems + "'";
+         // Blank fields keep their current values
+         newPassword = blankToNull(newPassword);
+         newPhoneNum = blankToNull(newPhoneNum);
+         newFavoriteItems = blankToNull(newFavoriteItems);
+
+         if (newPassword == null && newPhoneNum == null && newFavoriteItems == null) {
+            System.out.println("No updates were made. All fields were left blank.");
+            return;
          }
    
-         updateQuery = String.format("UPDATE Users SET column_name = 'new_value' WHERE login='%s' AND password='%s';", creds.getUser(), creds.getPassword());
-   
-         // Execute the query
-         esql.executeUpdate(updateQuery);
+         // Update the user and reload the session's copy of the profile
+         esql.updateUser(creds.getUser(), newPassword, null, newFavoriteItems, newPhoneNum);
+         esql.refreshPrincipal(creds);
          System.out.println("Profile updated successfully!");
    
       } catch (Exception e) {
@@ -563,68 +1783,113 @@ public class PizzaStore {
 
    public static void viewMenu(PizzaStore esql) {
       try {
-         String query = "SELECT itemName, ingredients, typeOfItem, price, description FROM Items;";
-         List<List<String>> results = esql.executeQueryAndReturnResult(query);
+         List<MenuItem> items = esql.getMenu().snapshot().getItems();
    
-         if (results.isEmpty()) {
+         if (items.isEmpty()) {
             System.out.println("The menu is empty. No items available.");
             return;
          }
    
          System.out.println("---- Menu ----");
-         for (List<String> item : results) {
-            System.out.println("Item Name: " + item.get(0));
-            System.out.println("Ingredients: " + item.get(1));
-            System.out.println("Type: " + item.get(2));
-            System.out.println("Price: $" + item.get(3));
-            System.out.println("Description: " + item.get(4));
-            System.out.println("-----------------------");
+         ResultRenderer renderer = new ResultRenderer(System.out,
+            esql.outputFormat(ResultRenderer.Format.RECORD),
+            "Item Name", "Ingredients", "Type", "Price", "Description");
+         for (MenuItem item : items) {
+            renderer.row(Arrays.asList(item.getItemName(), item.getIngredients(), item.getTypeOfItem(),
+                                       "$" + item.getPrice(), item.getDescription()));
          }
+         renderer.finish();
    
       } catch (Exception e) {
          System.err.println("Error displaying the menu: " + e.getMessage());
       }
    }   
 
+   public static void searchMenu(PizzaStore esql) {
+      try {
+         System.out.print("Ingredients the item must contain, comma separated (leave blank for any): ");
+         List<String> contains = splitTerms(in.readLine());
+   
+         System.out.print("Ingredients the item must not contain, comma separated (leave blank for none): ");
+         List<String> without = splitTerms(in.readLine());
+   
+         System.out.print("Type of item (leave blank for any type): ");
+         String type = in.readLine().trim();
+   
+         System.out.print("Lowest price (leave blank for no minimum): ");
+         String min = in.readLine().trim();
+         System.out.print("Highest price (leave blank for no maximum): ");
+         String max = in.readLine().trim();
+   
+         // Served from the ingredient index; no query runs per search
+         List<MenuItem> items = esql.searchMenu(contains, without, type,
+            min.isEmpty() ? null : new BigDecimal(min), max.isEmpty() ? null : new BigDecimal(max));
+         if (items.isEmpty()) {
+            System.out.println("No menu items match your search.");
+            return;
+         }
+   
+         System.out.println("---- Matching Items ----");
+         ResultRenderer renderer = new ResultRenderer(System.out,
+            esql.outputFormat(ResultRenderer.Format.RECORD),
+            "Item Name", "Ingredients", "Type", "Price", "Description");
+         for (MenuItem item : items) {
+            renderer.row(Arrays.asList(item.getItemName(), item.getIngredients(), item.getTypeOfItem(),
+                                       "$" + item.getPrice(), item.getDescription()));
+         }
+         renderer.finish();
+      } catch (NumberFormatException e) {
+         System.out.println("Prices must be numbers such as 9.99.");
+      } catch (Exception e) {
+         System.err.println("Error searching the menu: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Splits a comma separated answer into its non-blank terms.
+    */
+   private static List<String> splitTerms(String line) {
+      List<String> terms = new ArrayList<String>();
+      for (String term : line.split(","))
+         if (!term.trim().isEmpty())
+            terms.add(term.trim());
+      return terms;
+   }//end splitTerms
+
    public static void placeOrder(PizzaStore esql, Credentials creds) {
       try {
-          // Get the next orderID
-          String maxOrderIdQuery = "SELECT COALESCE(MAX(orderID), 10000) FROM FoodOrder;";
-          List<List<String>> result = esql.executeQueryAndReturnResult(maxOrderIdQuery);
-          int nextOrderId = Integer.parseInt(result.get(0).get(0)) + 1;
-  
-          // Get the store ID
-          System.out.print("Enter the store ID for your order: ");
-          int storeID = Integer.parseInt(in.readLine().trim());
-  
-          double totalPrice = 0.0;
+          // Get the store ID, offering a store search to customers who do not know it
+          System.out.print("Enter the store ID for your order (leave blank to search for a store): ");
+          String storeInput = in.readLine().trim();
+          if (storeInput.isEmpty()) {
+              findStores(esql);
+              System.out.print("Enter the store ID for your order: ");
+              storeInput = in.readLine().trim();
+          }
+          int storeID = Integer.parseInt(storeInput);
   
           // Use a map to aggregate quantities of duplicate items
-          Map<String, Integer> itemQuantities = new HashMap<>();
+          Map<String, Integer> itemQuantities = new LinkedHashMap<>();
   
           boolean moreItems = true;
           while (moreItems) {
               System.out.print("Enter item name: ");
               String itemName = in.readLine().trim();
   
-              System.out.print("Enter quantity: ");
-              int quantity = Integer.parseInt(in.readLine().trim());
-  
-              // Add or update the quantity in the map
-              itemQuantities.put(itemName, itemQuantities.getOrDefault(itemName, 0) + quantity);
-  
-              // Check the price of the item (only for calculating total price)
-              String priceQuery = String.format("SELECT price FROM Items WHERE itemName = '%s';", itemName.replace("'", "''"));
-              List<List<String>> priceResult = esql.executeQueryAndReturnResult(priceQuery);
-  
-              if (priceResult.isEmpty()) {
+              // Check the item against the cached menu before taking it
+              if (esql.getMenu().get(itemName) == null) {
                   System.out.println("Item not found in the menu: " + itemName);
-                  return;
+              } else {
+                  System.out.print("Enter quantity: ");
+                  int quantity = Integer.parseInt(in.readLine().trim());
+                  if (quantity < 1) {
+                      System.out.println("Quantity must be at least 1.");
+                  } else {
+                      // Add or update the quantity in the map
+                      itemQuantities.put(itemName, Math.addExact(itemQuantities.getOrDefault(itemName, 0), quantity));
+                  }
               }
   
-              double itemPrice = Double.parseDouble(priceResult.get(0).get(0));
-              totalPrice += itemPrice * quantity;
-  
               // Ask if the user wants to add more items
               System.out.println("Anything else you would like to order?");
               System.out.println("1: Yes");
@@ -634,30 +1899,27 @@ public class PizzaStore {
                   moreItems = false;
               }
           }
+
+          if (itemQuantities.isEmpty()) {
+              System.out.println("No items were ordered.");
+              return;
+          }
   
-          // Insert the order into FoodOrder table
-          String orderTimestamp = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date());
-          String insertOrderQuery = String.format(
-              "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
-              "VALUES (%d, '%s', %d, %.2f, '%s', 'Pending');",
-              nextOrderId, creds.getUser().replace("'", "''"), storeID, totalPrice, orderTimestamp
-          );
-          esql.executeUpdate(insertOrderQuery);
-  
-          // Insert items into ItemsInOrder table
-          for (Map.Entry<String, Integer> entry : itemQuantities.entrySet()) {
-              String itemName = entry.getKey();
-              int quantity = entry.getValue();
-  
-              String insertItemQuery = String.format(
-                  "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (%d, '%s', %d);",
-                  nextOrderId, itemName.replace("'", "''"), quantity
-              );
-              esql.executeUpdate(insertItemQuery);
+          // Price the whole cart in cents; nothing is written unless every item is on the menu
+          CartPricer.Quote quote = esql.priceCart(itemQuantities);
+          if (!quote.isValid()) {
+              System.out.println("No longer on the menu: " + String.join(", ", quote.getUnknownItems()));
+              System.out.println("Your order was not placed.");
+              return;
           }
+
+          // Insert the order and its items into FoodOrder and ItemsInOrder in one transaction
+          esql.createOrder(creds.getUser(), storeID, itemQuantities, quote.getTotal());
   
-          System.out.println("Order placed successfully! Total price: $" + totalPrice);
+          System.out.println("Order placed successfully! Total price: $" + CartPricer.format(quote.getTotalCents()));
   
+      } catch (NumberFormatException e) {
+          System.out.println("Invalid input. Store IDs, quantities and choices must be numbers.");
       } catch (Exception e) {
           System.err.println("Error placing order: " + e.getMessage());
       }
@@ -667,12 +1929,29 @@ public class PizzaStore {
   public static void viewAllOrders(PizzaStore esql, Credentials creds) {
       try {
 
-         String query = String.format(
-              "SELECT * FROM FoodOrder WHERE login = '%s' AND password = '%s' ORDER BY orderTimestamp DESC;",
-               creds.getUser().replace("'", "''"),  // Escape single quotes in the login
-               creds.getPassword().replace("'", "''")  // Escape single quotes in the password
-         );
-          esql.executeQueryAndPrintResult(query);
+         System.out.println("orderID\tstoreID\ttotalPrice\torderTimestamp\torderStatus");
+         // key of the last order printed, where the next page starts
+         final String[] last = new String[2];
+         RowHandler printOrder = order -> {
+            System.out.println(order.get(0) + "\t" + order.get(1) + "\t" + order.get(2) + "\t" + order.get(3) + "\t" + order.get(4));
+            last[0] = order.get(3);
+            last[1] = order.get(0);
+         };
+         int pageCount = esql.forEachOrderPage(creds.getUser(), null, 0, ORDER_PAGE_SIZE, printOrder);
+
+         if (pageCount == 0) {
+            System.out.println("You have not placed any orders yet.");
+         }
+         while (pageCount == ORDER_PAGE_SIZE) {
+            System.out.print("Press Enter for older orders, or type q to stop: ");
+            String answer = in.readLine();
+            if (answer == null || answer.trim().equalsIgnoreCase("q"))
+               break;
+            pageCount = esql.forEachOrderPage(creds.getUser(), last[0], Integer.parseInt(last[1]),
+                                              ORDER_PAGE_SIZE, printOrder);
+            if (pageCount == 0)
+               System.out.println("No older orders.");
+         }
       } catch (Exception e) {
          System.err.println("Error fetching orders: " + e.getMessage());
       }
@@ -682,12 +1961,14 @@ public class PizzaStore {
 
    public static void viewRecentOrders(PizzaStore esql, Credentials creds) {
       try {
-          String query = String.format(
-              "SELECT * FROM FoodOrder WHERE login = ? AND password = ? ORDER BY orderTimestamp DESC LIMIT 5;",
-               creds.getUser().replace("'", "''"),  // Escape single quotes in the login
-               creds.getPassword().replace("'", "''")  // Escape single quotes in the password
-         );
-          esql.executeQueryAndPrintResult(query);
+          List<RecentOrder> orders = esql.recentOrders(creds.getUser());
+          if (orders.isEmpty()) {
+              System.out.println("You have not placed any orders yet.");
+              return;
+          }
+          System.out.println("orderID\tstoreID\ttotalPrice\torderTimestamp");
+          for (RecentOrder order : orders)
+              System.out.println(order.getOrderID() + "\t" + order.getStoreID() + "\t" + order.getTotalPrice() + "\t" + order.getOrderTimestamp());
       } catch (Exception e) {
           System.err.println("Error fetching recent orders: " + e.getMessage());
       }
@@ -695,28 +1976,30 @@ public class PizzaStore {
   
    public static void viewOrderInfo(PizzaStore esql, Credentials creds) {
       try {
-            System.out.print("Enter the Order ID to view details: ");
-            int orderID = Integer.parseInt(in.readLine().trim());
-   
-            String orderDetailsQuery = String.format(
-               "SELECT * FROM FoodOrder WHERE orderID = %d AND login = '%s';",
-               orderID, creds.getUser().replace("'", "''")
-            );
-   
-            int orderCount = esql.executeQuery(orderDetailsQuery);
-            if (orderCount == 0) {
-               System.out.println("Order not found or does not belong to the user.");
-               return;
+            System.out.print("Enter the Order ID(s) to view details, separated by spaces: ");
+            List<Integer> orderIDs = new ArrayList<Integer>();
+            for (String id : in.readLine().trim().split("[\\s,]+"))
+               orderIDs.add(Integer.parseInt(id));
+
+            // headers, items and prices of every order in one round trip
+            Map<Integer, OrderDetails> orders = esql.loadOrders(orderIDs);
+            for (Integer orderID : orderIDs) {
+               OrderDetails order = orders.get(orderID);
+               if (order == null || !order.getLogin().equals(creds.getUser())) {
+                  System.out.println("Order " + orderID + " not found or does not belong to the user.");
+                  continue;
+               }
+
+               System.out.println("Order Details:");
+               System.out.println("orderID\tlogin\tstoreID\ttotalPrice\torderTimestamp\torderStatus");
+               System.out.println(order.getOrderID() + "\t" + order.getLogin() + "\t" + order.getStoreID() + "\t" + order.getTotalPrice() + "\t" + order.getOrderTimestamp() + "\t" + order.getOrderStatus());
+               System.out.println("Items in Order:");
+               System.out.println("itemName\tquantity\tprice\tlineTotal");
+               for (OrderDetails.Line line : order.getLines())
+                  System.out.println(line.getItemName() + "\t" + line.getQuantity() + "\t" + line.getPrice() + "\t" + line.getLineTotal());
             }
-   
-            String itemsQuery = String.format(
-               "SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = %d;",
-               orderID
-            );
-            System.out.println("Order Details:");
-            esql.executeQueryAndPrintResult(orderDetailsQuery);
-            System.out.println("Items in Order:");
-            esql.executeQueryAndPrintResult(itemsQuery);
+         } catch (NumberFormatException e) {
+            System.out.println("Invalid input. Order IDs must be numbers.");
          } catch (Exception e) {
             System.err.println("Error fetching order info: " + e.getMessage());
          }
@@ -725,73 +2008,84 @@ public class PizzaStore {
 
    public static void viewStores(PizzaStore esql) {
       try {
-         // Step 1: Query the Store table to get all the store details
-         String query = "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store;";
-         List<List<String>> results = esql.executeQueryAndReturnResult(query);
+         // Stream the store details straight into the renderer
+         System.out.println("---- Store List ----");
+         final ResultRenderer renderer = new ResultRenderer(System.out,
+            esql.outputFormat(ResultRenderer.Format.RECORD),
+            "Store ID", "Address", "City", "State", "Is Open", "Review Score");
+         esql.forEachStore(store -> {
+            if (store.get(5) == null)
+               store.set(5, "N/A");
+            renderer.row(store);
+         });
+         int storeCount = renderer.finish();
    
-         // Step 2: Check if there are any stores
-         if (results.isEmpty()) {
+         // Check if there were any stores
+         if (storeCount == 0) {
             System.out.println("No stores found in the database.");
-            return;
          }
+      } catch (Exception e) {
+         System.err.println("Error displaying stores: " + e.getMessage());
+      }
+   }
+
+   public static void findStores(PizzaStore esql) {
+      try {
+         System.out.print("State (leave blank for any state): ");
+         String state = in.readLine().trim();
    
-         // Step 3: Display the store details
-         System.out.println("---- Store List ----");
-         for (List<String> store : results) {
-            String storeID = store.get(0);
-            String address = store.get(1);
-            String city = store.get(2);
-            String state = store.get(3);
-            String isOpen = store.get(4);
-            String reviewScore = store.get(5) == null ? "N/A" : store.get(5);
+         System.out.print("City, or the start of its name (leave blank for any city): ");
+         String city = in.readLine().trim();
    
-            System.out.println("Store ID: " + storeID);
-            System.out.println("Address: " + address);
-            System.out.println("City: " + city);
-            System.out.println("State: " + state);
-            System.out.println("Is Open: " + isOpen);
-            System.out.println("Review Score: " + reviewScore);
-            System.out.println("-----------------------");
+         // Served from the store index: open stores only, best reviewed first
+         List<Store> stores = esql.findStores(state, city, STORE_SEARCH_LIMIT);
+         if (stores.isEmpty()) {
+            System.out.println("No open stores match your search.");
+            return;
+         }
+   
+         System.out.println("---- Open Stores ----");
+         ResultRenderer renderer = new ResultRenderer(System.out,
+            esql.outputFormat(ResultRenderer.Format.TABLE),
+            "Store ID", "Address", "City", "State", "Review Score");
+         for (Store store : stores) {
+            renderer.row(Arrays.asList(String.valueOf(store.getStoreID()), store.getAddress(), store.getCity(),
+                                       store.getState(),
+                                       store.getReviewScore() == null ? "N/A" : String.valueOf(store.getReviewScore())));
          }
+         renderer.finish();
       } catch (Exception e) {
-         System.err.println("Error displaying stores: " + e.getMessage());
+         System.err.println("Error searching stores: " + e.getMessage());
       }
    }
 
    public static void updateOrderStatus(PizzaStore esql, Credentials creds) {
-      // Use a single Scanner object for the whole program if tied to System.in
-      Scanner scanner = new Scanner(System.in);  // Create Scanner object for input
-  
       try {
-          // Query to check the user's role
-          String roleQuery = "SELECT role FROM Users WHERE login = '" + creds.getUser() + "';";
-          List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+          // Check the user's role loaded at login
+          Credentials principal = esql.principal(creds);
   
-          if (roleResult.isEmpty()) {
+          if (principal == null) {
               System.out.println("Invalid login.");
               return;  // Exit method cleanly
           }
   
-          // Get the role of the user
-          String role = roleResult.get(0).get(0).trim();
-  
-          if (!"manager".equalsIgnoreCase(role) && !"driver".equalsIgnoreCase(role)) {
+          if (!principal.hasRole("manager", "driver")) {
               System.out.println("Access denied. Only managers and drivers can update orders.");
               return;  // Exit method cleanly
           }
   
           // Get the order ID and the new status
           System.out.print("Enter the Order ID to update: ");
-          int orderID = Integer.parseInt(scanner.nextLine().trim());
+          int orderID = Integer.parseInt(in.readLine().trim());
   
           System.out.print("Enter the new status for this order: ");
-          String newStatus = scanner.nextLine().trim();
-  
-          // Form the update query to change the order status
-          String updateQuery = "UPDATE FoodOrder SET orderStatus = '" + newStatus.replace("'", "''") + "' WHERE orderID = " + orderID + ";";
+          String newStatus = in.readLine().trim();
   
           // Execute the update query
-          esql.executeUpdate(updateQuery);
+          if (!esql.setOrderStatus(orderID, newStatus)) {
+              System.out.println("No order found with the provided ID.");
+              return;
+          }
   
           // Provide feedback to the user
           System.out.println("Order status updated successfully.");
@@ -803,17 +2097,45 @@ public class PizzaStore {
   }
   
 
+   public static void claimNextOrder(PizzaStore esql, Credentials creds) {
+      try {
+          Credentials principal = esql.principal(creds);
+          if (principal == null || !principal.hasRole("manager", "driver")) {
+              System.out.println("Access denied. Only managers and drivers can claim orders.");
+              return;
+          }
+
+          System.out.print("Enter the store ID you are delivering for: ");
+          int storeID = Integer.parseInt(in.readLine().trim());
+
+          // Taken from the store's dispatch queue; the claim is one conditional update
+          int orderID = esql.claimNextOrder(storeID);
+          if (orderID < 0) {
+              System.out.println("No pending orders at store " + storeID + ".");
+              return;
+          }
+
+          OrderDetails order = esql.loadOrder(orderID);
+          System.out.println("You claimed order " + orderID + ", now " + DispatchQueue.CLAIMED + ".");
+          if (order != null) {
+              System.out.println("Customer: " + order.getLogin());
+              System.out.println("Placed: " + order.getOrderTimestamp());
+              for (OrderDetails.Line line : order.getLines())
+                  System.out.println("  " + line.getQuantity() + " x " + line.getItemName());
+          }
+      } catch (NumberFormatException e) {
+          System.out.println("Invalid input. Store ID must be a number.");
+      } catch (Exception e) {
+          System.out.println("Error: " + e.getMessage());
+      }
+  }
+
    public static void updateMenu(PizzaStore esql, Credentials creds) {
       try {
          // Step 1: Check if the authorisedUser is a manager         
-         String roleQuery = String.format(
-              "SELECT role FROM Users WHERE login = ? AND password = ?;",
-               creds.getUser().replace("'", "''"),  // Escape single quotes in the login
-               creds.getPassword().replace("'", "''")  // Escape single quotes in the password
-         );
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-
-         if (roleResult.isEmpty() || !"manager".equalsIgnoreCase(roleResult.get(0).get(0).trim())) {
+         Credentials principal = esql.principal(creds);
+
+         if (principal == null || !principal.hasRole("manager")) {
             System.out.println("Access denied. Only managers can update user details.");
             return;
          }
@@ -822,16 +2144,15 @@ public class PizzaStore {
          System.out.println("Access granted. Proceeding with menu update...");
    
          // Step 2: Display the current menu for reference
-         String menuQuery = "SELECT itemName, ingredients, typeOfItem, price, description FROM Items;";
-         List<List<String>> menuItems = esql.executeQueryAndReturnResult(menuQuery);
+         List<MenuItem> menuItems = esql.getMenu().snapshot().getItems();
    
          System.out.println("---- Current Menu ----");
-         for (List<String> item : menuItems) {
-            System.out.println("Item Name: " + item.get(0));
-            System.out.println("Ingredients: " + item.get(1));
-            System.out.println("Type: " + item.get(2));
-            System.out.println("Price: $" + item.get(3));
-            System.out.println("Description: " + item.get(4));
+         for (MenuItem item : menuItems) {
+            System.out.println("Item Name: " + item.getItemName());
+            System.out.println("Ingredients: " + item.getIngredients());
+            System.out.println("Type: " + item.getTypeOfItem());
+            System.out.println("Price: $" + item.getPrice());
+            System.out.println("Description: " + item.getDescription());
             System.out.println("-----------------------");
          }
    
@@ -847,89 +2168,59 @@ public class PizzaStore {
             String itemName = in.readLine().trim();
    
             // Validate if the item exists
-            String validateQuery = String.format("SELECT * FROM Items WHERE itemName = '%s';", itemName.replace("'", "''"));
-            int itemCount = esql.executeQuery(validateQuery);
-   
-            if (itemCount == 0) {
+            if (esql.getMenu().get(itemName) == null) {
                System.out.println("No item found with the provided name.");
                return;
             }
    
             System.out.print("Enter the new ingredients (Leave blank to keep the same): ");
-            String newIngredients = in.readLine().trim().replace("'", "''");
+            String newIngredients = in.readLine().trim();
    
             System.out.print("Enter the new type of item (Leave blank to keep the same): ");
-            String newType = in.readLine().trim().replace("'", "''");
+            String newType = in.readLine().trim();
    
             System.out.print("Enter the new price (Leave blank to keep the same): ");
             String newPrice = in.readLine().trim();
    
             System.out.print("Enter the new description (Leave blank to keep the same): ");
-            String newDescription = in.readLine().trim().replace("'", "''");
-   
-            StringBuilder updateQuery = new StringBuilder("UPDATE Items SET ");
-            boolean changed = false;
-   
-            if (!newIngredients.isEmpty()) {
-               updateQuery.append("ingredients = '").append(newIngredients).append("'");
-               changed = true;
-            }
-   
-            if (!newType.isEmpty()) {
-               if (changed) updateQuery.append(", ");
-               updateQuery.append("typeOfItem = '").append(newType).append("'");
-               changed = true;
-            }
-   
-            if (!newPrice.isEmpty()) {
-               if (changed) updateQuery.append(", ");
-               updateQuery.append("price = ").append(newPrice);
-               changed = true;
-            }
-   
-            if (!newDescription.isEmpty()) {
-               if (changed) updateQuery.append(", ");
-               updateQuery.append("description = '").append(newDescription).append("'");
-               changed = true;
-            }
+            String newDescription = in.readLine().trim();
    
-            if (!changed) {
+            if (newIngredients.isEmpty() && newType.isEmpty() && newPrice.isEmpty() && newDescription.isEmpty()) {
                System.out.println("No updates were made. All fields were left blank.");
                return;
             }
    
-            updateQuery.append(" WHERE itemName = '").append(itemName.replace("'", "''")).append("';");
-   
-            esql.executeUpdate(updateQuery.toString());
+            // Blank fields keep their current values
+            if (!esql.updateItem(itemName, blankToNull(newIngredients), blankToNull(newType),
+                                 newPrice.isEmpty() ? null : new BigDecimal(newPrice),
+                                 blankToNull(newDescription))) {
+               System.out.println("No item found with the provided name.");
+               return;
+            }
             System.out.println("Item updated successfully!");
          } else if (choice == 2) {
             // Add a new menu item
             System.out.print("Enter the name of the new item: ");
-            String name = in.readLine().trim().replace("'", "''");
+            String name = in.readLine().trim();
    
             System.out.print("Enter the ingredients of the new item: ");
-            String ingredients = in.readLine().trim().replace("'", "''");
+            String ingredients = in.readLine().trim();
    
             System.out.print("Enter the type of the new item: ");
-            String type = in.readLine().trim().replace("'", "''");
+            String type = in.readLine().trim();
    
             System.out.print("Enter the price of the new item: ");
             String price = in.readLine().trim();
    
             System.out.print("Enter the description of the new item: ");
-            String description = in.readLine().trim().replace("'", "''");
+            String description = in.readLine().trim();
    
             if (name.isEmpty() || ingredients.isEmpty() || type.isEmpty() || price.isEmpty() || description.isEmpty()) {
                System.out.println("All fields are required to add a new item.");
                return;
             }
    
-            String insertQuery = String.format(
-               "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', '%s', %s, '%s');",
-               name, ingredients, type, price, description
-            );
-   
-            esql.executeUpdate(insertQuery);
+            esql.addItem(new MenuItem(name, ingredients, type, new BigDecimal(price), description));
             System.out.println("New item added successfully!");
          } else {
             System.out.println("Invalid choice. Returning to menu.");
@@ -941,17 +2232,60 @@ public class PizzaStore {
       }
    }
 
+   public static void viewSalesDashboard(PizzaStore esql, Credentials creds) {
+      try {
+         Credentials principal = esql.principal(creds);
+         if (principal == null || !principal.hasRole("manager")) {
+            System.out.println("Access denied. Only managers can view sales.");
+            return;
+         }
+
+         System.out.println("1: Last hour");
+         System.out.println("2: Last day");
+         System.out.println("3: Last week");
+         int choice = Integer.parseInt(in.readLine().trim());
+         if (choice < 1 || choice > 3) {
+            System.out.println("Unrecognized choice!");
+            return;
+         }
+         SalesDashboard.Window window = SalesDashboard.Window.values()[choice - 1];
+
+         // Served from in-process counters; the database is not queried
+         List<SalesDashboard.StoreSales> report = esql.salesReport(window);
+         if (report.isEmpty()) {
+            System.out.println("No orders were placed in the last " + window.name().toLowerCase() + ".");
+            return;
+         }
+
+         System.out.println("---- Sales, last " + window.name().toLowerCase() + " ----");
+         ResultRenderer renderer = new ResultRenderer(System.out,
+            esql.outputFormat(ResultRenderer.Format.TABLE),
+            "Store ID", "Orders", "Completed", "Cancelled", "Revenue", "Top Items");
+         for (SalesDashboard.StoreSales sales : report) {
+            StringBuilder top = new StringBuilder();
+            for (Map.Entry<String, Long> item : sales.getTopItems()) {
+               if (top.length() > 0)
+                  top.append(", ");
+               top.append(item.getKey()).append(" x").append(item.getValue());
+            }
+            renderer.row(Arrays.asList(String.valueOf(sales.getStoreID()), String.valueOf(sales.getOrders()),
+                                       String.valueOf(sales.getCompleted()), String.valueOf(sales.getCancelled()),
+                                       "$" + sales.getRevenue(), top.toString()));
+         }
+         renderer.finish();
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid input. Choose 1, 2 or 3.");
+      } catch (Exception e) {
+         System.err.println("Error displaying sales: " + e.getMessage());
+      }
+   }
+
    public static void updateUser(PizzaStore esql, Credentials creds) {
       try {
          // Step 1: Check if the authorisedUser is a manager
-         String roleQuery = String.format(
-              "SELECT role FROM Users WHERE login = ? AND password = ?;",
-               creds.getUser().replace("'", "''"),  // Escape single quotes in the login
-               creds.getPassword().replace("'", "''")  // Escape single quotes in the password
-         );
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
-
-         if (roleResult.isEmpty() || !"manager".equalsIgnoreCase(roleResult.get(0).get(0).trim())) {
+         Credentials principal = esql.principal(creds);
+
+         if (principal == null || !principal.hasRole("manager")) {
             System.out.println("Access denied. Only managers can update user details.");
             return;
          }
@@ -961,63 +2295,36 @@ public class PizzaStore {
          String targetUser = in.readLine().trim();
 
          // Validate if the user exists
-         String validateQuery = String.format("SELECT * FROM Users WHERE login = '%s';", targetUser.replace("'", "''"));
-         int userCount = esql.executeQuery(validateQuery);
-
-         if (userCount == 0) {
+         if (!esql.userExists(targetUser)) {
             System.out.println("No user found with the provided username.");
             return;
          }
 
          // Step 3: Prompt for updates
          System.out.print("Enter the new password (Leave blank to keep the same): ");
-         String newPassword = in.readLine().trim().replace("'", "''");
+         String newPassword = in.readLine().trim();
 
          System.out.print("Enter the new role (Leave blank to keep the same): ");
-         String newRole = in.readLine().trim().replace("'", "''");
+         String newRole = in.readLine().trim();
 
          System.out.print("Enter the new favorite items (Leave blank to keep the same): ");
-         String newFavoriteItems = in.readLine().trim().replace("'", "''");
+         String newFavoriteItems = in.readLine().trim();
 
          System.out.print("Enter the new phone number (Leave blank to keep the same): ");
-         String newPhoneNum = in.readLine().trim().replace("'", "''");
-
-         // Step 4: Construct the update query
-         StringBuilder updateQuery = new StringBuilder("UPDATE Users SET ");
-         boolean changed = false;
-
-         if (!newPassword.isEmpty()) {
-            updateQuery.append("password = '").append(newPassword).append("'");
-            changed = true;
-         }
+         String newPhoneNum = in.readLine().trim();
 
-         if (!newRole.isEmpty()) {
-            if (changed) updateQuery.append(", ");
-            updateQuery.append("role = '").append(newRole).append("'");
-            changed = true;
-         }
-
-         if (!newFavoriteItems.isEmpty()) {
-            if (changed) updateQuery.append(", ");
-            updateQuery.append("favoriteItems = '").append(newFavoriteItems).append("'");
-            changed = true;
-         }
-
-         if (!newPhoneNum.isEmpty()) {
-            if (changed) updateQuery.append(", ");
-            updateQuery.append("phoneNum = '").append(newPhoneNum).append("'");
-            changed = true;
-         }
-
-         if (!changed) {
+         // Step 4: Blank fields keep their current values
+         if (newPassword.isEmpty() && newRole.isEmpty() && newFavoriteItems.isEmpty() && newPhoneNum.isEmpty()) {
             System.out.println("No updates were made. All fields were left blank.");
             return;
          }
 
-         updateQuery.append(" WHERE login = '").append(targetUser.replace("'", "''")).append("';");
-
-         // Step 5: Execute the update query
-         esql.executeUpdate(updateQuery.toString());
+         // Step 5: Update the user
+         esql.updateUser(targetUser, blankToNull(newPassword), blankToNull(newRole),
+                         blankToNull(newFavoriteItems), blankToNull(newPhoneNum));
+         if (targetUser.equals(creds.getUser())) {
+            esql.refreshPrincipal(creds);
+         }
          System.out.println("User updated successfully!");
 
       } catch (Exception e) {
@@ -0,0 +1,290 @@
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmarks the PizzaStore data-access paths: menu lookup, order placement
+ * with 1, 5 and 20 line items, order-history reads (whole and first page)
+ * and the streamed store listing behind viewStores.
+ *
+ * Every benchmark is warmed up, then measured for a fixed time on one
+ * thread. For each one the harness reports throughput, latency percentiles,
+ * bytes allocated per operation and the garbage collections that ran while
+ * it was measured. Order status changes are also measured from many threads
+ * at once, one commit per change against group commit, and report commits
+ * per second. Order placement writes real orders for the first customer in
+ * Users, so run it against a scratch database or with -memory.
+ *
+ */
+public class PizzaStoreBenchmark {
+
+   /**
+    * One benchmarked operation.
+    */
+   public interface Operation {
+      void run() throws Exception;
+   }//end Operation
+
+   // sessions changing order statuses at once, and orders they change
+   private static final int STATUS_THREADS = 16;
+   private static final int STATUS_ORDERS = 200;
+
+   private final long warmupMillis;
+   private final long measureMillis;
+   private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+   /**
+    * @param warmupMillis how long each operation runs before measuring
+    * @param measureMillis how long each operation is measured
+    */
+   public PizzaStoreBenchmark(long warmupMillis, long measureMillis) {
+      this.warmupMillis = warmupMillis;
+      this.measureMillis = measureMillis;
+   }//end PizzaStoreBenchmark
+
+   /**
+    * Warms up and measures one operation, then prints its results.
+    *
+    * @param name the benchmark name
+    * @param op the operation
+    * @throws Exception when the operation fails
+    */
+   public void run(String name, Operation op) throws Exception {
+      long end = System.currentTimeMillis() + warmupMillis;
+      while (System.currentTimeMillis() < end)
+         op.run();
+
+      LatencyHistogram latency = new LatencyHistogram();
+      long gcCount = gcCount();
+      long gcMillis = gcMillis();
+      long allocated = allocatedBytes();
+      long start = System.nanoTime();
+      long stop = start + measureMillis * 1000000L;
+      long ops = 0;
+      long now = start;
+      while (now < stop) {
+         op.run();
+         long after = System.nanoTime();
+         latency.record(after - now);
+         now = after;
+         ++ops;
+      }
+      long elapsed = now - start;
+      allocated = allocatedBytes() - allocated;
+
+      System.out.println(String.format(
+         "%-22s %10.1f ops/s  p50=%8.3fms p90=%8.3fms p99=%8.3fms p99.9=%8.3fms max=%8.3fms  alloc=%10.0f B/op  gc=%d (%dms)",
+         name, ops / (elapsed / 1e9),
+         latency.getPercentile(50) / 1e6, latency.getPercentile(90) / 1e6,
+         latency.getPercentile(99) / 1e6, latency.getPercentile(99.9) / 1e6,
+         latency.getMax() / 1e6,
+         allocated < 0 ? Double.NaN : (double) allocated / ops,
+         gcCount() - gcCount, gcMillis() - gcMillis));
+   }//end run
+
+   /**
+    * Warms up and measures one operation run by several threads at once,
+    * then prints its throughput and the commits per second it caused.
+    *
+    * @param name the benchmark name
+    * @param threadCount the number of threads
+    * @param commits counts the commits made so far, or null if every
+    *        operation commits once
+    * @param op the operation
+    * @throws Exception when the operation fails
+    */
+   public void runConcurrent(String name, int threadCount, final Counter commits,
+                             final Operation op) throws Exception {
+      final AtomicInteger phase = new AtomicInteger(0);   // 0 warmup, 1 measure, 2 stop
+      final LongAdder ops = new LongAdder();
+      final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      List<Thread> workers = new ArrayList<Thread>(threadCount);
+      for (int t = 0; t < threadCount; ++t) {
+         Thread worker = new Thread(() -> {
+            try {
+               int p;
+               while ((p = phase.get()) < 2) {
+                  op.run();
+                  if (p == 1)
+                     ops.increment();
+               }
+            } catch (Exception e) {
+               failure.compareAndSet(null, e);
+               phase.set(2);
+            }
+         }, name + "-" + t);
+         workers.add(worker);
+         worker.start();
+      }
+
+      Thread.sleep(warmupMillis);
+      long commitsBefore = commits == null ? 0 : commits.count();
+      long start = System.nanoTime();
+      phase.compareAndSet(0, 1);
+      Thread.sleep(measureMillis);
+      phase.set(2);
+      long elapsed = System.nanoTime() - start;
+      for (Thread worker : workers)
+         worker.join();
+      if (failure.get() != null)
+         throw failure.get();
+
+      long total = ops.sum();
+      long committed = commits == null ? total : commits.count() - commitsBefore;
+      System.out.println(String.format(
+         "%-22s %10.1f ops/s  threads=%d  commits=%10.1f/s  ops/commit=%.1f",
+         name, total / (elapsed / 1e9), threadCount, committed / (elapsed / 1e9),
+         committed == 0 ? 0.0 : (double) total / committed));
+   }//end runConcurrent
+
+   /**
+    * Counts something that only goes up, such as commits.
+    */
+   public interface Counter {
+      long count();
+   }//end Counter
+
+   /**
+    * Runs the whole suite against a PizzaStore.
+    *
+    * @param esql the store under test
+    * @throws Exception when any benchmark fails
+    */
+   public void runAll(final PizzaStore esql) throws Exception {
+      final List<MenuItem> menu = esql.getMenu().snapshot().getItems();
+      final String customer = esql.getRepository().findUsersByRole("customer", 1).get(0).getUser();
+      final int storeID = esql.stores().get(0).getStoreID();
+
+      final int[] next = new int[1];
+      run("menuLookup", () -> {
+         MenuItem item = menu.get(next[0]++ % menu.size());
+         if (esql.getMenu().get(item.getItemName()) == null)
+            throw new IllegalStateException("menu item vanished: " + item.getItemName());
+      });
+
+      for (final int lines : new int[] { 1, 5, 20 }) {
+         if (lines > menu.size())
+            continue;
+         final Map<String, Integer> cart = new LinkedHashMap<String, Integer>();
+         for (int i = 0; i < lines; ++i)
+            cart.put(menu.get(i).getItemName(), 1);
+         final BigDecimal totalPrice = esql.priceCart(cart).getTotal();
+         run("priceCart(" + lines + " items)", () -> {
+            if (!esql.priceCart(cart).isValid())
+               throw new IllegalStateException("cart no longer matches the menu");
+         });
+         run("placeOrder(" + lines + " items)", () -> esql.submitOrder(
+            esql.nextOrderId(), customer, storeID, totalPrice,
+            new Timestamp(System.currentTimeMillis()), cart));
+      }
+
+      final List<List<String>> sink = new ArrayList<List<String>>(1);
+      run("orderHistory", () -> {
+         esql.forEachOrder(customer, order -> sink.add(order));
+         sink.clear();
+      });
+
+      run("orderHistoryPage", () -> {
+         esql.forEachOrderPage(customer, null, 0, PizzaStore.ORDER_PAGE_SIZE, order -> sink.add(order));
+         sink.clear();
+      });
+
+      // the streaming path viewStores takes, without the rendering
+      run("storeListing", () -> {
+         if (esql.forEachStore(record -> { }) == 0)
+            throw new IllegalStateException("no stores");
+      });
+
+      // status changes from many sessions: one commit each, then group commit
+      final List<Integer> orderIDs = new ArrayList<Integer>();
+      esql.forEachOrderPage(customer, null, 0, STATUS_ORDERS, order -> orderIDs.add(Integer.valueOf(order.get(0).trim())));
+      if (orderIDs.isEmpty())
+         return;
+      final String[] statuses = { "Pending", "complete" };
+      final AtomicInteger turn = new AtomicInteger();
+      run("statusUpdate", () -> {
+         int n = turn.getAndIncrement() & Integer.MAX_VALUE;
+         esql.getRepository().setOrderStatus(orderIDs.get(n % orderIDs.size()), statuses[n / orderIDs.size() % 2]);
+      });
+      runConcurrent("statusUpdate(direct)", STATUS_THREADS, null, () -> {
+         int n = turn.getAndIncrement() & Integer.MAX_VALUE;
+         esql.getRepository().setOrderStatus(orderIDs.get(n % orderIDs.size()), statuses[n / orderIDs.size() % 2]);
+      });
+      runConcurrent("statusUpdate(batched)", STATUS_THREADS, esql.getStatusUpdates()::getCommitCount, () -> {
+         int n = turn.getAndIncrement() & Integer.MAX_VALUE;
+         esql.getStatusUpdates().update(orderIDs.get(n % orderIDs.size()), statuses[n / orderIDs.size() % 2]);
+      });
+      System.out.println(esql.getStatusUpdates().getStats());
+   }//end runAll
+
+   private long allocatedBytes() {
+      if (threads instanceof com.sun.management.ThreadMXBean)
+         return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+      return -1;
+   }//end allocatedBytes
+
+   private static long gcCount() {
+      long total = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+         total += Math.max(0, gc.getCollectionCount());
+      return total;
+   }//end gcCount
+
+   private static long gcMillis() {
+      long total = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+         total += Math.max(0, gc.getCollectionTime());
+      return total;
+   }//end gcMillis
+
+   /**
+    * Runs the benchmark suite.
+    *
+    * @param args <dbname> <port> <user>, or -memory <data dir> to run on an
+    *        InMemoryPizzaRepository loaded from the CSV files, followed by
+    *        [warmup seconds] [measure seconds]
+    */
+   public static void main(String[] args) {
+      boolean inMemory = args.length >= 2 && args[0].equals("-memory");
+      int first = inMemory ? 2 : 3;
+      if (args.length < first || args.length > first + 2) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PizzaStoreBenchmark.class.getName() +
+            " {<dbname> <port> <user> | -memory <data dir>} [warmup seconds] [measure seconds]");
+         return;
+      }//end if
+
+      PizzaStore esql = null;
+      try {
+         long warmup = args.length > first ? Long.parseLong(args[first]) : 5;
+         long measure = args.length > first + 1 ? Long.parseLong(args[first + 1]) : 10;
+         if (inMemory) {
+            esql = new PizzaStore(InMemoryPizzaRepository.load(new File(args[1])));
+         } else {
+            Class.forName("org.postgresql.Driver");
+            esql = new PizzaStore(args[0], args[1], args[2], "");
+         }
+         new PizzaStoreBenchmark(warmup * 1000, measure * 1000).runAll(esql);
+         System.out.println(esql.getPoolStats());
+         System.out.println(esql.getMenu().getStats());
+      } catch (Exception e) {
+         System.err.println("Benchmark failed: " + e.getMessage());
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+}//end PizzaStoreBenchmark
@@ -0,0 +1,37 @@
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+
+/**
+ * An immutable entry of a customer's recent-orders ring: what was ordered
+ * where, for how much and when it was placed.
+ *
+ */
+public class RecentOrder {
+   private final int orderID;
+   private final int storeID;
+   private final BigDecimal totalPrice;
+   private final Timestamp orderTimestamp;
+
+   public RecentOrder(int orderID, int storeID, BigDecimal totalPrice, Timestamp orderTimestamp) {
+      this.orderID = orderID;
+      this.storeID = storeID;
+      this.totalPrice = totalPrice;
+      this.orderTimestamp = orderTimestamp;
+   }
+
+   public int getOrderID() {
+      return orderID;
+   }
+
+   public int getStoreID() {
+      return storeID;
+   }
+
+   public BigDecimal getTotalPrice() {
+      return totalPrice;
+   }
+
+   public Timestamp getOrderTimestamp() {
+      return orderTimestamp;
+   }
+}
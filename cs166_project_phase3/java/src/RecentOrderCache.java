@@ -0,0 +1,177 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the last few orders of recently active customers in memory.
+ *
+ * Each customer has a fixed-size ring that a new order overwrites oldest
+ * first, so recording an order is O(1) however many orders the customer
+ * has placed. The rings mirror the RecentOrders table, which a trigger on
+ * FoodOrder maintains the same way in the order's own transaction; a
+ * customer that is not cached is loaded from it with one primary-key lookup.
+ * Orders placed through this process are added to the cached ring as soon as
+ * they commit. Rings are reloaded once they are older than the time to live,
+ * which bounds how long an order placed by another process can be missing.
+ *
+ */
+public class RecentOrderCache {
+
+   /**
+    * Where the cache reads a customer's ring from.
+    */
+   public interface Source {
+      /**
+       * @return the customer's recent orders, newest first
+       */
+      List<RecentOrder> load(String login) throws SQLException;
+   }//end Source
+
+   /*
+    * One customer's ring. The newest order is at head - 1.
+    */
+   private static class Ring {
+      final RecentOrder[] orders;
+      final long loadedAt;
+      int head = 0;
+      int size = 0;
+
+      Ring(int capacity, long loadedAt) {
+         this.orders = new RecentOrder[capacity];
+         this.loadedAt = loadedAt;
+      }
+
+      synchronized void add(RecentOrder order) {
+         // a load may already have seen an order that is recorded after it
+         for (int i = 0; i < size; ++i) {
+            if (orders[i].getOrderID() == order.getOrderID())
+               return;
+         }
+         orders[head] = order;
+         head = (head + 1) % orders.length;
+         if (size < orders.length)
+            ++size;
+      }
+
+      synchronized List<RecentOrder> newestFirst() {
+         List<RecentOrder> result = new ArrayList<RecentOrder>(size);
+         for (int i = 1; i <= size; ++i)
+            result.add(orders[(head - i + orders.length) % orders.length]);
+         return result;
+      }
+   }//end Ring
+
+   private final Source source;
+   private final int capacity;
+   private final long ttlMillis;
+   // least recently used customers are dropped first, guarded by itself
+   private final LinkedHashMap<String, Ring> rings;
+   // bumped by every recorded order so that a slow load cannot install a
+   // ring that misses an order recorded while it ran
+   private final AtomicLong writes = new AtomicLong();
+
+   // metrics
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+
+   /**
+    * @param source loads a customer's ring on a miss
+    * @param capacity the number of orders kept per customer
+    * @param maxCustomers the number of customers kept in memory
+    * @param ttlMillis how long a loaded ring is trusted
+    */
+   public RecentOrderCache(Source source, int capacity, final int maxCustomers, long ttlMillis) {
+      if (capacity < 1)
+         throw new IllegalArgumentException("Capacity must be at least 1");
+      this.source = source;
+      this.capacity = capacity;
+      this.ttlMillis = ttlMillis;
+      this.rings = new LinkedHashMap<String, Ring>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+            return size() > maxCustomers;
+         }
+      };
+   }//end RecentOrderCache
+
+   /**
+    * Returns a customer's most recent orders.
+    *
+    * @param login the customer
+    * @return up to capacity orders, newest first
+    * @throws java.sql.SQLException when the ring had to be loaded and could not be
+    */
+   public List<RecentOrder> get(String login) throws SQLException {
+      Ring ring;
+      synchronized (rings) {
+         ring = rings.get(login);
+      }
+      long now = System.currentTimeMillis();
+      if (ring != null && now - ring.loadedAt < ttlMillis) {
+         hits.increment();
+         return ring.newestFirst();
+      }
+      misses.increment();
+
+      long writesBefore = writes.get();
+      List<RecentOrder> loaded = source.load(login);
+      Ring fresh = new Ring(capacity, now);
+      // add oldest first so the newest ends up at the head
+      for (int i = Math.min(loaded.size(), capacity) - 1; i >= 0; --i)
+         fresh.add(loaded.get(i));
+      if (writes.get() == writesBefore) {
+         synchronized (rings) {
+            rings.put(login, fresh);
+         }
+      }
+      return fresh.newestFirst();
+   }//end get
+
+   /**
+    * Records an order that has just been committed.
+    *
+    * @param login the customer who placed it
+    * @param order the new order
+    */
+   public void placed(String login, RecentOrder order) {
+      writes.incrementAndGet();
+      Ring ring;
+      synchronized (rings) {
+         ring = rings.get(login);
+      }
+      if (ring != null)
+         ring.add(order);
+   }//end placed
+
+   /**
+    * Forgets a customer's ring, e.g. after their orders were changed
+    * directly in the database.
+    *
+    * @param login the customer
+    */
+   public void invalidate(String login) {
+      writes.incrementAndGet();
+      synchronized (rings) {
+         rings.remove(login);
+      }
+   }//end invalidate
+
+   /**
+    * @return a one-line summary of the cache size and hit rate
+    */
+   public String getStats() {
+      long h = hits.sum();
+      long m = misses.sum();
+      int size;
+      synchronized (rings) {
+         size = rings.size();
+      }
+      return String.format("recent orders: customers=%d hits=%d misses=%d hitRate=%.1f%%",
+         size, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m));
+   }//end getStats
+
+}//end RecentOrderCache
@@ -0,0 +1,152 @@
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides whether a read-only operation may run on the replica connection
+ * group or must go to the primary.
+ *
+ * A read goes to the replica while the replica's replay lag, checked at most
+ * once per check interval, is within the staleness tolerance, and while the
+ * replica has replayed the last write of the customer the read is for. The
+ * second rule gives every session read-your-writes: an order just placed is
+ * read back from the primary until the replica is known to have it. The lag
+ * measures how far behind the primary's clock the replica's last replayed
+ * commit is, so it also grows while the primary is idle; the router then
+ * errs towards the primary.
+ *
+ * A replica that fails is skipped until the next lag check succeeds.
+ *
+ */
+public class ReplicaRouter {
+
+   /**
+    * Measures the replica.
+    */
+   public interface LagProbe {
+      /**
+       * @return how many milliseconds of the primary's commits the replica
+       *         has not replayed yet; 0 for a connection to the primary
+       *         itself
+       */
+      long lagMillis() throws SQLException;
+   }//end LagProbe
+
+   private final LagProbe probe;
+   private final long maxStalenessMillis;
+   private final long checkIntervalMillis;
+   private final ReentrantLock checkLock = new ReentrantLock();
+   // the primary time up to which the replica has replayed every commit
+   private volatile long replayedUpTo = Long.MIN_VALUE;
+   private volatile long lagMillis = Long.MAX_VALUE;
+   private volatile long lastCheckedAt = 0;
+   private volatile boolean healthy = false;
+   // the time of each customer's last write not yet known to be replayed
+   private final ConcurrentHashMap<String, Long> lastWrites = new ConcurrentHashMap<String, Long>();
+
+   // metrics
+   private final LongAdder replicaReads = new LongAdder();
+   private final LongAdder staleReads = new LongAdder();
+   private final LongAdder ownWriteReads = new LongAdder();
+   private final LongAdder downReads = new LongAdder();
+   private final LongAdder failures = new LongAdder();
+
+   /**
+    * @param probe measures the replica's lag
+    * @param maxStalenessMillis the most lag a read may see
+    * @param checkIntervalMillis how long a lag measurement is trusted
+    */
+   public ReplicaRouter(LagProbe probe, long maxStalenessMillis, long checkIntervalMillis) {
+      this.probe = probe;
+      this.maxStalenessMillis = maxStalenessMillis;
+      this.checkIntervalMillis = checkIntervalMillis;
+   }//end ReplicaRouter
+
+   /**
+    * @param login the customer whose data is read, or null for data no
+    *        session writes itself
+    * @return true if the read may run on the replica
+    */
+   public boolean useReplica(String login) {
+      check();
+      if (!healthy) {
+         downReads.increment();
+         return false;
+      }
+      if (lagMillis > maxStalenessMillis) {
+         staleReads.increment();
+         return false;
+      }
+      if (login != null) {
+         Long wroteAt = lastWrites.get(login);
+         if (wroteAt != null) {
+            if (wroteAt > replayedUpTo) {
+               ownWriteReads.increment();
+               return false;
+            }
+            // replayed; the replica serves this customer again
+            lastWrites.remove(login, wroteAt);
+         }
+      }
+      replicaReads.increment();
+      return true;
+   }//end useReplica
+
+   /**
+    * Notes that a customer's data was just written on the primary.
+    *
+    * @param login the customer
+    */
+   public void wrote(String login) {
+      lastWrites.put(login, System.currentTimeMillis());
+   }//end wrote
+
+   /**
+    * Stops routing reads to the replica until its next lag check succeeds,
+    * e.g. after one of its connections failed.
+    */
+   public void failed() {
+      failures.increment();
+      healthy = false;
+   }//end failed
+
+   /**
+    * @return a one-line summary of where reads went and the replica's lag
+    */
+   public String getStats() {
+      long lag = lagMillis;
+      return String.format(
+         "replica: healthy=%b lag=%s maxStaleness=%dms | replicaReads=%d primaryReads: stale=%d ownWrites=%d down=%d | failures=%d",
+         healthy, lag == Long.MAX_VALUE ? "-" : lag + "ms", maxStalenessMillis,
+         replicaReads.sum(), staleReads.sum(), ownWriteReads.sum(), downReads.sum(), failures.sum());
+   }//end getStats
+
+   /*
+    * Measures the lag once the last measurement is older than the check
+    * interval. Only one caller measures; everyone else routes on the last
+    * measurement.
+    */
+   private void check() {
+      if (System.currentTimeMillis() - lastCheckedAt < checkIntervalMillis || !checkLock.tryLock())
+         return;
+      try {
+         long now = System.currentTimeMillis();
+         lastCheckedAt = now;
+         try {
+            long lag = Math.max(0, probe.lagMillis());
+            lagMillis = lag;
+            replayedUpTo = lag == Long.MAX_VALUE ? Long.MIN_VALUE : now - lag;
+            healthy = true;
+         } catch (SQLException e) {
+            healthy = false;
+         }
+         // writes the replica has caught up with no longer pin anyone
+         long upTo = replayedUpTo;
+         lastWrites.values().removeIf(wroteAt -> wroteAt <= upTo);
+      } finally {
+         checkLock.unlock();
+      }
+   }//end check
+
+}//end ReplicaRouter
@@ -0,0 +1,291 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Renders query results into a reusable buffer and writes them out in large
+ * chunks, so printing a listing costs a handful of writes instead of one
+ * synchronized console write per cell. The text is encoded with the
+ * charset the stream itself uses, so a console that is not UTF-8 shows
+ * non-ASCII names as it would through System.out.print.
+ *
+ * A renderer is created per listing and used by one thread. The character
+ * and byte buffers behind it are taken from a small shared pool for the
+ * length of one listing and handed back by {@link #finish}, so a server
+ * with thousands of mostly idle session threads only holds buffers for the
+ * listings being printed right now.
+ *
+ */
+public class ResultRenderer {
+
+   /**
+    * How rows are laid out.
+    */
+   public enum Format {
+      /** columns padded to a common width under a header line */
+      TABLE,
+      /** tab separated values under a header line */
+      TSV,
+      /** one JSON object per row */
+      JSON_LINES,
+      /** one "Label: value" line per column, rows separated by a rule */
+      RECORD;
+
+      /**
+       * @param name table, tsv, jsonl or record (case insensitive)
+       * @return the matching format
+       */
+      public static Format parse(String name) {
+         switch (name.trim().toLowerCase()) {
+            case "table": return TABLE;
+            case "tsv": return TSV;
+            case "jsonl": case "json": case "json_lines": return JSON_LINES;
+            case "record": return RECORD;
+            default: throw new IllegalArgumentException("Unknown output format: " + name);
+         }
+      }
+   }//end Format
+
+   // buffered text is written out once it grows past this many characters
+   private static final int FLUSH_CHARS = 64 * 1024;
+   // rows sampled to size the columns of an aligned table
+   private static final int TABLE_SAMPLE_ROWS = 256;
+   private static final String RECORD_RULE = "-----------------------";
+   // idle buffers kept for reuse; listings beyond this allocate their own
+   private static final int POOLED_BUFFERS = 8;
+
+   private static class Buffers {
+      final StringBuilder text = new StringBuilder(FLUSH_CHARS + 4096);
+      final ByteBuffer bytes = ByteBuffer.allocate(FLUSH_CHARS * 2);
+      CharsetEncoder encoder = null;
+
+      /*
+       * Returns an encoder for the charset, reusing the last one when the
+       * charset is the same.
+       */
+      CharsetEncoder encoder(Charset charset) {
+         if (encoder == null || !encoder.charset().equals(charset))
+            encoder = charset.newEncoder()
+               .onMalformedInput(CodingErrorAction.REPLACE)
+               .onUnmappableCharacter(CodingErrorAction.REPLACE);
+         return encoder;
+      }
+   }//end Buffers
+
+   private static final ArrayBlockingQueue<Buffers> POOL = new ArrayBlockingQueue<Buffers>(POOLED_BUFFERS);
+
+   private final PrintStream out;
+   private final CharsetEncoder encoder;
+   private final Format format;
+   private final String[] labels;
+   private Buffers buffers;
+   private StringBuilder text;
+
+   // aligned tables hold back the first rows until the column widths are known
+   private List<List<String>> sample = null;
+   private int[] widths = null;
+   private boolean headerWritten = false;
+   private int rowCount = 0;
+
+   /**
+    * Creates a renderer for one listing
+    *
+    * @param out the stream the listing is written to
+    * @param format how the rows are laid out
+    * @param labels the column labels
+    */
+   public ResultRenderer(PrintStream out, Format format, String... labels) {
+      this.out = out;
+      this.format = format;
+      this.labels = labels;
+      Buffers pooled = POOL.poll();
+      this.buffers = pooled != null ? pooled : new Buffers();
+      this.text = buffers.text;
+      this.text.setLength(0);
+      // encode the way the stream itself would, e.g. for a non-UTF-8 console
+      this.encoder = buffers.encoder(SessionContext.charsetOf(out));
+      if (format == Format.TABLE)
+         this.sample = new ArrayList<List<String>>();
+   }//end ResultRenderer
+
+   /**
+    * Adds one row to the listing.
+    *
+    * @param record the column values; null values are shown as null
+    */
+   public void row(List<String> record) {
+      ++rowCount;
+      switch (format) {
+         case TABLE:
+            if (widths == null) {
+               sample.add(new ArrayList<String>(record));
+               if (sample.size() >= TABLE_SAMPLE_ROWS)
+                  flushSample();
+               return;
+            }
+            appendTableRow(record);
+            break;
+         case TSV:
+            if (!headerWritten) {
+               appendTsvRow(labels);
+               headerWritten = true;
+            }
+            for (int i = 0; i < labels.length; ++i)
+               text.append(record.get(i)).append('\t');
+            text.append('\n');
+            break;
+         case JSON_LINES:
+            text.append('{');
+            for (int i = 0; i < labels.length; ++i) {
+               if (i > 0)
+                  text.append(',');
+               appendJsonString(labels[i]);
+               text.append(':');
+               if (record.get(i) == null)
+                  text.append("null");
+               else
+                  appendJsonString(record.get(i));
+            }
+            text.append("}\n");
+            break;
+         case RECORD:
+            for (int i = 0; i < labels.length; ++i)
+               text.append(labels[i]).append(": ").append(record.get(i)).append('\n');
+            text.append(RECORD_RULE).append('\n');
+            break;
+      }
+      if (text.length() >= FLUSH_CHARS)
+         write();
+   }//end row
+
+   /**
+    * Writes out whatever is still buffered and hands the buffers back to the
+    * pool. No rows may be added afterwards.
+    *
+    * @return the number of rows in the listing
+    */
+   public int finish() {
+      if (buffers == null)
+         return rowCount;
+      if (format == Format.TABLE && widths == null && !sample.isEmpty())
+         flushSample();
+      write();
+      out.flush();
+      // a listing with one huge value should not pin its buffer in the pool
+      if (text.capacity() <= FLUSH_CHARS * 2)
+         POOL.offer(buffers);
+      buffers = null;
+      text = null;
+      return rowCount;
+   }//end finish
+
+   /*
+    * Sizes the table columns from the sampled rows and renders them.
+    */
+   private void flushSample() {
+      widths = new int[labels.length];
+      for (int i = 0; i < labels.length; ++i)
+         widths[i] = labels[i].length();
+      for (List<String> record : sample)
+         for (int i = 0; i < labels.length; ++i)
+            widths[i] = Math.max(widths[i], String.valueOf(record.get(i)).length());
+
+      for (int i = 0; i < labels.length; ++i) {
+         if (i > 0)
+            text.append(" | ");
+         pad(labels[i], widths[i]);
+      }
+      text.append('\n');
+      for (int i = 0; i < labels.length; ++i) {
+         if (i > 0)
+            text.append("-+-");
+         for (int w = 0; w < widths[i]; ++w)
+            text.append('-');
+      }
+      text.append('\n');
+
+      for (List<String> record : sample) {
+         appendTableRow(record);
+         if (text.length() >= FLUSH_CHARS)
+            write();
+      }
+      sample = null;
+   }//end flushSample
+
+   private void appendTableRow(List<String> record) {
+      for (int i = 0; i < labels.length; ++i) {
+         if (i > 0)
+            text.append(" | ");
+         pad(String.valueOf(record.get(i)), widths[i]);
+      }
+      text.append('\n');
+   }//end appendTableRow
+
+   private void appendTsvRow(String[] values) {
+      for (String value : values)
+         text.append(value).append('\t');
+      text.append('\n');
+   }//end appendTsvRow
+
+   private void pad(String value, int width) {
+      text.append(value);
+      for (int w = value.length(); w < width; ++w)
+         text.append(' ');
+   }//end pad
+
+   private void appendJsonString(String value) {
+      text.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': text.append("\\\""); break;
+            case '\\': text.append("\\\\"); break;
+            case '\n': text.append("\\n"); break;
+            case '\r': text.append("\\r"); break;
+            case '\t': text.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  text.append(String.format("\\u%04x", (int) c));
+               else
+                  text.append(c);
+         }
+      }
+      text.append('"');
+   }//end appendJsonString
+
+   /*
+    * Encodes the buffered text into the reusable byte buffer and hands it to
+    * the stream in as few writes as possible.
+    */
+   private void write() {
+      if (text.length() == 0)
+         return;
+      ByteBuffer bytes = buffers.bytes;
+      CharBuffer chars = CharBuffer.wrap(text);
+      encoder.reset();
+      while (true) {
+         CoderResult result = encoder.encode(chars, bytes, true);
+         if (result.isOverflow()) {
+            drain(bytes);
+            continue;
+         }
+         encoder.flush(bytes);
+         drain(bytes);
+         break;
+      }
+      text.setLength(0);
+   }//end write
+
+   private void drain(ByteBuffer bytes) {
+      out.write(bytes.array(), 0, bytes.position());
+      bytes.clear();
+   }//end drain
+
+}//end ResultRenderer
@@ -0,0 +1,117 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the rows of a query one record at a time while the database
+ * cursor fetches them in bounded batches, so only one batch is ever held in
+ * memory. With a driver that cannot fetch in batches the whole result is
+ * held by the driver instead, and the iterator only saves building a list.
+ *
+ * The iterator holds a pooled connection until it is closed, so it must be
+ * used in a try-with-resources block or closed explicitly.
+ *
+ */
+public class RowIterator implements Iterator<List<String>>, AutoCloseable {
+
+   private final ConnectionPool pool;
+   private final Connection connection;
+   private final ResultSet rs;
+   private final Metrics metrics;
+   private final int fetchSize;
+   private final int numCol;
+   private long rowCount = 0;
+   private List<String> next = null;
+   private boolean done = false;
+   private boolean failed = false;
+   private boolean closed = false;
+
+   /**
+    * Wraps an open cursor. The connection must have autocommit disabled; it
+    * is committed, reset and released back to the pool on {@link #close}.
+    *
+    * @param pool the pool the connection was borrowed from
+    * @param connection the borrowed connection running the cursor
+    * @param rs the result set to iterate over
+    * @param metrics charged with the extra fetches and the commit on close
+    * @param fetchSize the number of rows the cursor fetches at a time, or
+    *        Integer.MAX_VALUE when the whole result came with the query
+    * @throws java.sql.SQLException when the result set cannot be read
+    */
+   RowIterator(ConnectionPool pool, Connection connection, ResultSet rs,
+               Metrics metrics, int fetchSize) throws SQLException {
+      this.pool = pool;
+      this.connection = connection;
+      this.rs = rs;
+      this.metrics = metrics;
+      this.fetchSize = Math.max(1, fetchSize);
+      this.numCol = rs.getMetaData().getColumnCount();
+   }//end RowIterator
+
+   @Override
+   public boolean hasNext() {
+      if (next != null)
+         return true;
+      if (done)
+         return false;
+      try {
+         if (!rs.next()) {
+            done = true;
+            return false;
+         }
+         List<String> record = new ArrayList<String>(numCol);
+         for (int i = 1; i <= numCol; ++i)
+            record.add(rs.getString(i));
+         next = record;
+         ++rowCount;
+         return true;
+      } catch (SQLException e) {
+         done = true;
+         failed = true;
+         throw new IllegalStateException("Error reading query results: " + e.getMessage(), e);
+      }
+   }//end hasNext
+
+   @Override
+   public List<String> next() {
+      if (!hasNext())
+         throw new NoSuchElementException();
+      List<String> record = next;
+      next = null;
+      return record;
+   }//end next
+
+   /**
+    * Closes the cursor and hands the connection back to the pool.
+    */
+   @Override
+   public void close() {
+      if (closed)
+         return;
+      closed = true;
+      try {
+         rs.close();
+         if (failed)
+            connection.rollback();
+         else
+            connection.commit();
+         connection.setAutoCommit(true);
+      } catch (SQLException e) {
+         try {
+            connection.close();
+         } catch (SQLException ignored) {
+            // ignored.
+         }
+      } finally {
+         done = true;
+         pool.release(connection);
+         // the first batch came with the query; count the rest and the commit
+         metrics.roundTrips((int) (rowCount / fetchSize) + 1);
+      }
+   }//end close
+
+}//end RowIterator
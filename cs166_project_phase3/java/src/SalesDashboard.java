@@ -0,0 +1,415 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-store sales over the last hour, day and week, kept in memory so the
+ * manager dashboard never queries the database.
+ *
+ * Every store has two rings of time buckets: 60 one-minute buckets for the
+ * last hour and 168 one-hour buckets for the last day and week. A bucket
+ * counts orders, completed and cancelled orders, revenue in cents and the
+ * quantity sold of each item in LongAdders, so concurrent orders never
+ * contend on a lock. A slot whose bucket has aged out of its ring is
+ * replaced with a fresh bucket by compare-and-set, which is how the windows
+ * roll. A read sums a fixed number of buckets per store, so it costs
+ * O(stores) whatever the order volume. The day and week windows are aligned
+ * to whole hours.
+ *
+ * Placed orders are recorded as placeOrder commits them. A status change
+ * moves the order between the completed and cancelled counts of the
+ * buckets it was placed in; a cancelled order does not count towards
+ * revenue or top items. Orders of the last week are remembered so a status
+ * change needs no lookup. The dashboard is rebuilt from FoodOrder and
+ * ItemsInOrder when the application starts, and sees the orders placed
+ * through this instance after that.
+ *
+ */
+public class SalesDashboard {
+
+   /**
+    * A reporting window.
+    */
+   public enum Window {
+      HOUR(60L * 60 * 1000), DAY(24L * 60 * 60 * 1000), WEEK(7L * 24 * 60 * 60 * 1000);
+
+      private final long millis;
+
+      Window(long millis) {
+         this.millis = millis;
+      }
+
+      public long getMillis() {
+         return millis;
+      }
+   }//end Window
+
+   /**
+    * The sales of one store over one window.
+    */
+   public static class StoreSales {
+      private final int storeID;
+      private final long orders;
+      private final long completed;
+      private final long cancelled;
+      private final long revenueCents;
+      private final List<Map.Entry<String, Long>> topItems;
+
+      StoreSales(int storeID, long orders, long completed, long cancelled, long revenueCents,
+                 List<Map.Entry<String, Long>> topItems) {
+         this.storeID = storeID;
+         this.orders = orders;
+         this.completed = completed;
+         this.cancelled = cancelled;
+         this.revenueCents = revenueCents;
+         this.topItems = topItems;
+      }
+
+      public int getStoreID() {
+         return storeID;
+      }
+
+      /**
+       * @return the number of orders placed, cancelled ones included
+       */
+      public long getOrders() {
+         return orders;
+      }
+
+      public long getCompleted() {
+         return completed;
+      }
+
+      public long getCancelled() {
+         return cancelled;
+      }
+
+      /**
+       * @return the revenue of the orders that were not cancelled, in cents
+       */
+      public long getRevenueCents() {
+         return revenueCents;
+      }
+
+      public BigDecimal getRevenue() {
+         return BigDecimal.valueOf(revenueCents, 2);
+      }
+
+      /**
+       * @return the best selling items by quantity, best first
+       */
+      public List<Map.Entry<String, Long>> getTopItems() {
+         return topItems;
+      }
+   }//end StoreSales
+
+   private static final long MINUTE = 60L * 1000;
+   private static final long HOUR = 60 * MINUTE;
+   private static final int MINUTE_SLOTS = 60;
+   private static final int HOUR_SLOTS = 168;
+
+   /*
+    * The counts of one store over one minute or one hour.
+    */
+   private static class Bucket {
+      final long epoch;   // minutes or hours since 1970
+      final LongAdder orders = new LongAdder();
+      final LongAdder completed = new LongAdder();
+      final LongAdder cancelled = new LongAdder();
+      final LongAdder revenueCents = new LongAdder();
+      final ConcurrentHashMap<String, LongAdder> items = new ConcurrentHashMap<String, LongAdder>();
+
+      Bucket(long epoch) {
+         this.epoch = epoch;
+      }
+   }//end Bucket
+
+   /*
+    * A ring of buckets; slot epoch % length holds the bucket of that epoch
+    * while it is in the window.
+    */
+   private static class Ring {
+      final AtomicReferenceArray<Bucket> slots;
+      final long unitMillis;
+
+      Ring(int length, long unitMillis) {
+         this.slots = new AtomicReferenceArray<Bucket>(length);
+         this.unitMillis = unitMillis;
+      }
+
+      /*
+       * The bucket of a time, created if its slot holds an older one, or
+       * null if the time has already left the ring.
+       */
+      Bucket bucketFor(long millis, long nowMillis) {
+         long epoch = millis / unitMillis;
+         if (epoch <= nowMillis / unitMillis - slots.length())
+            return null;
+         int slot = (int) Math.floorMod(epoch, (long) slots.length());
+         while (true) {
+            Bucket bucket = slots.get(slot);
+            if (bucket != null && bucket.epoch == epoch)
+               return bucket;
+            if (bucket != null && bucket.epoch > epoch)
+               return null;
+            if (slots.compareAndSet(slot, bucket, new Bucket(epoch)))
+               return slots.get(slot);
+         }
+      }
+
+      /*
+       * The buckets of the last count units up to now.
+       */
+      void collect(long nowMillis, int count, List<Bucket> into) {
+         long last = nowMillis / unitMillis;
+         for (int i = 0; i < slots.length(); ++i) {
+            Bucket bucket = slots.get(i);
+            if (bucket != null && bucket.epoch > last - count && bucket.epoch <= last)
+               into.add(bucket);
+         }
+      }
+   }//end Ring
+
+   private static class StoreCounters {
+      final Ring minutes = new Ring(MINUTE_SLOTS, MINUTE);
+      final Ring hours = new Ring(HOUR_SLOTS, HOUR);
+   }//end StoreCounters
+
+   /*
+    * An order of the last week, remembered for its status changes.
+    */
+   private static class Sale {
+      final int storeID;
+      final long placedAt;
+      final long cents;
+      final Map<String, Integer> lines;
+      String status;   // guarded by this
+
+      Sale(int storeID, long placedAt, long cents, Map<String, Integer> lines, String status) {
+         this.storeID = storeID;
+         this.placedAt = placedAt;
+         this.cents = cents;
+         this.lines = lines;
+         this.status = status;
+      }
+   }//end Sale
+
+   private final ConcurrentHashMap<Integer, StoreCounters> stores = new ConcurrentHashMap<Integer, StoreCounters>();
+   private final ConcurrentHashMap<Integer, Sale> sales = new ConcurrentHashMap<Integer, Sale>();
+   private final int topItemCount;
+   private volatile long lastPrunedHour = 0;
+
+   /**
+    * @param topItemCount how many best selling items a report lists per store
+    */
+   public SalesDashboard(int topItemCount) {
+      this.topItemCount = topItemCount;
+   }//end SalesDashboard
+
+   /**
+    * Counts a newly placed order.
+    *
+    * @param orderID the order
+    * @param storeID the store it was placed at
+    * @param totalPrice the order total
+    * @param orderTimestamp when it was placed
+    * @param status its status
+    * @param itemQuantities the quantity ordered of each item
+    */
+   public void placed(int orderID, int storeID, BigDecimal totalPrice, Timestamp orderTimestamp,
+                      String status, Map<String, Integer> itemQuantities) {
+      long now = System.currentTimeMillis();
+      long placedAt = orderTimestamp.getTime();
+      if (placedAt <= now - Window.WEEK.getMillis())
+         return;
+      Sale sale = new Sale(storeID, placedAt, totalPrice.movePointRight(2).longValue(),
+                           new HashMap<String, Integer>(itemQuantities), status);
+      synchronized (sale) {
+         if (sales.putIfAbsent(orderID, sale) != null)
+            return;
+         add(sale, now, 1, isCompleted(status) ? 1 : 0, isCancelled(status) ? 1 : 0,
+             isCancelled(status) ? 0 : 1);
+      }
+      prune(now);
+   }//end placed
+
+   /**
+    * Moves an order of the last week to its new status. Orders the
+    * dashboard has not seen are ignored.
+    *
+    * @param orderID the order
+    * @param status its new status
+    */
+   public void statusChanged(int orderID, String status) {
+      Sale sale = sales.get(orderID);
+      if (sale == null)
+         return;
+      synchronized (sale) {
+         int completed = (isCompleted(status) ? 1 : 0) - (isCompleted(sale.status) ? 1 : 0);
+         int cancelled = (isCancelled(status) ? 1 : 0) - (isCancelled(sale.status) ? 1 : 0);
+         sale.status = status;
+         if (completed != 0 || cancelled != 0)
+            add(sale, System.currentTimeMillis(), 0, completed, cancelled, -cancelled);
+      }
+   }//end statusChanged
+
+   /**
+    * Forgets everything and counts the orders of the last week again from
+    * the repository.
+    *
+    * @param repository where the orders are read from
+    * @return the number of orders counted
+    * @throws java.sql.SQLException when the orders could not be read
+    */
+   public int rebuild(PizzaRepository repository) throws SQLException {
+      stores.clear();
+      sales.clear();
+      final Timestamp since = new Timestamp(System.currentTimeMillis() - Window.WEEK.getMillis());
+      final int[] count = { 0 };
+      final List<String> header = new ArrayList<String>();
+      final Map<String, Integer> lines = new HashMap<String, Integer>();
+      repository.forEachSale(since, record -> {
+         if (!header.isEmpty() && !header.get(0).equals(record.get(0))) {
+            placed(header, lines);
+            count[0]++;
+            lines.clear();
+         }
+         header.clear();
+         header.addAll(record.subList(0, 5));
+         if (record.get(5) != null)
+            lines.merge(record.get(5), Integer.valueOf(record.get(6).trim()), Integer::sum);
+      });
+      if (!header.isEmpty()) {
+         placed(header, lines);
+         count[0]++;
+      }
+      return count[0];
+   }//end rebuild
+
+   /**
+    * Reports the sales of every store with orders in the window, best
+    * revenue first.
+    *
+    * @param window the window to report on
+    * @return the sales of each store
+    */
+   public List<StoreSales> report(Window window) {
+      long now = System.currentTimeMillis();
+      List<StoreSales> report = new ArrayList<StoreSales>();
+      List<Bucket> buckets = new ArrayList<Bucket>(HOUR_SLOTS);
+      for (Map.Entry<Integer, StoreCounters> entry : stores.entrySet()) {
+         buckets.clear();
+         if (window == Window.HOUR)
+            entry.getValue().minutes.collect(now, MINUTE_SLOTS, buckets);
+         else
+            entry.getValue().hours.collect(now, (int) (window.getMillis() / HOUR), buckets);
+         StoreSales sales = total(entry.getKey(), buckets);
+         if (sales != null)
+            report.add(sales);
+      }
+      report.sort((a, b) -> {
+         int c = Long.compare(b.getRevenueCents(), a.getRevenueCents());
+         return c != 0 ? c : Integer.compare(a.getStoreID(), b.getStoreID());
+      });
+      return report;
+   }//end report
+
+   /*
+    * Counts an order read back from the tables.
+    */
+   private void placed(List<String> header, Map<String, Integer> lines) {
+      placed(Integer.parseInt(header.get(0).trim()), Integer.parseInt(header.get(1).trim()),
+             new BigDecimal(header.get(2).trim()), Timestamp.valueOf(header.get(3).trim()),
+             header.get(4), lines);
+   }//end placed
+
+   /*
+    * Adds to the counts of the buckets an order was placed in. Called while
+    * holding the sale's lock.
+    */
+   private void add(Sale sale, long now, int orders, int completed, int cancelled, int sold) {
+      StoreCounters counters = stores.computeIfAbsent(sale.storeID, id -> new StoreCounters());
+      add(counters.minutes.bucketFor(sale.placedAt, now), sale, orders, completed, cancelled, sold);
+      add(counters.hours.bucketFor(sale.placedAt, now), sale, orders, completed, cancelled, sold);
+   }//end add
+
+   private static void add(Bucket bucket, Sale sale, int orders, int completed, int cancelled, int sold) {
+      if (bucket == null)
+         return;
+      if (orders != 0)
+         bucket.orders.add(orders);
+      if (completed != 0)
+         bucket.completed.add(completed);
+      if (cancelled != 0)
+         bucket.cancelled.add(cancelled);
+      if (sold != 0) {
+         bucket.revenueCents.add(sold * sale.cents);
+         for (Map.Entry<String, Integer> line : sale.lines.entrySet())
+            bucket.items.computeIfAbsent(line.getKey(), k -> new LongAdder()).add(sold * (long) line.getValue());
+      }
+   }//end add
+
+   /*
+    * Forgets orders older than a week, at most once an hour.
+    */
+   private void prune(long now) {
+      long hour = now / HOUR;
+      if (hour == lastPrunedHour)
+         return;
+      lastPrunedHour = hour;
+      long oldest = now - Window.WEEK.getMillis();
+      sales.values().removeIf(sale -> sale.placedAt <= oldest);
+   }//end prune
+
+   /*
+    * Sums the buckets of one store, or returns null if it had no orders.
+    */
+   private StoreSales total(int storeID, List<Bucket> buckets) {
+      long orders = 0, completed = 0, cancelled = 0, revenue = 0;
+      Map<String, Long> items = new HashMap<String, Long>();
+      for (Bucket bucket : buckets) {
+         orders += bucket.orders.sum();
+         completed += bucket.completed.sum();
+         cancelled += bucket.cancelled.sum();
+         revenue += bucket.revenueCents.sum();
+         for (Map.Entry<String, LongAdder> item : bucket.items.entrySet())
+            items.merge(item.getKey(), item.getValue().sum(), Long::sum);
+      }
+      if (orders == 0)
+         return null;
+      PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<Map.Entry<String, Long>>(
+         (a, b) -> a.getValue().equals(b.getValue()) ? b.getKey().compareTo(a.getKey())
+                                                     : Long.compare(a.getValue(), b.getValue()));
+      for (Map.Entry<String, Long> item : items.entrySet()) {
+         if (item.getValue() <= 0)
+            continue;
+         top.add(item);
+         if (top.size() > topItemCount)
+            top.poll();
+      }
+      List<Map.Entry<String, Long>> topItems = new ArrayList<Map.Entry<String, Long>>(top.size());
+      while (!top.isEmpty())
+         topItems.add(top.poll());
+      Collections.reverse(topItems);
+      return new StoreSales(storeID, orders, completed, cancelled, revenue, topItems);
+   }//end total
+
+   private static boolean isCompleted(String status) {
+      return status != null && status.trim().toLowerCase(Locale.ROOT).equals("complete");
+   }//end isCompleted
+
+   private static boolean isCancelled(String status) {
+      return status != null && status.trim().toLowerCase(Locale.ROOT).startsWith("cancel");
+   }//end isCancelled
+
+}//end SalesDashboard
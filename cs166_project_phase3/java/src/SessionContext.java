@@ -0,0 +1,335 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * The I/O streams and credentials of one connected client.
+ *
+ * A session is bound to the thread that serves it. PizzaStore's menus read
+ * from {@code PizzaStore.in} and print to {@code System.out} and
+ * {@code System.err}; once {@link #installOutput} has run, all three follow
+ * the session bound to the calling thread, and fall back to the console on
+ * threads without one. That way the same menu code serves the console and
+ * any number of remote terminals.
+ *
+ */
+public class SessionContext {
+
+   /**
+    * Thrown out of a session's menus when its client has gone away. It is an
+    * Error so that the menus' catch (Exception) blocks let it through and the
+    * session thread unwinds instead of prompting a closed socket forever.
+    */
+   public static class Disconnected extends Error {
+      private static final long serialVersionUID = 1L;
+
+      public Disconnected(String message) {
+         super(message);
+      }
+   }//end Disconnected
+
+   private static final ThreadLocal<SessionContext> CURRENT = new ThreadLocal<SessionContext>();
+
+   // PrintStream.charset(), which Java 18 added; null on older runtimes
+   private static final Method PRINT_STREAM_CHARSET = printStreamCharset();
+
+   private final String name;
+   private final BufferedReader in;
+   private final PrintStream out;
+   private final Charset charset;
+   private final long startedAt = System.currentTimeMillis();
+   private volatile Credentials credentials;
+
+   /**
+    * @param name identifies the session in logs, e.g. the client address
+    * @param in the client's input, one line per answer
+    * @param out the client's output; it is flushed before every read
+    * @param charset the charset the client's output is encoded with
+    */
+   public SessionContext(String name, BufferedReader in, PrintStream out, Charset charset) {
+      this.name = name;
+      this.in = in;
+      this.out = out;
+      this.charset = charset;
+   }//end SessionContext
+
+   public String getName() {
+      return name;
+   }//end getName
+
+   public BufferedReader getIn() {
+      return in;
+   }//end getIn
+
+   public PrintStream getOut() {
+      return out;
+   }//end getOut
+
+   public Charset getCharset() {
+      return charset;
+   }//end getCharset
+
+   public long getStartedAt() {
+      return startedAt;
+   }//end getStartedAt
+
+   /**
+    * @return the credentials of the logged in user, or null before login
+    */
+   public Credentials getCredentials() {
+      return credentials;
+   }//end getCredentials
+
+   /**
+    * Binds a session to the calling thread.
+    *
+    * @param session the session, or null to unbind
+    */
+   public static void bind(SessionContext session) {
+      if (session == null)
+         CURRENT.remove();
+      else
+         CURRENT.set(session);
+   }//end bind
+
+   /**
+    * @return the session bound to the calling thread, or null on the console
+    */
+   public static SessionContext current() {
+      return CURRENT.get();
+   }//end current
+
+   /**
+    * Records who is logged in on the calling thread's session. Does nothing
+    * on the console.
+    *
+    * @param credentials the logged in user, or null after logout
+    */
+   public static void setCredentials(Credentials credentials) {
+      SessionContext session = CURRENT.get();
+      if (session != null)
+         session.credentials = credentials;
+   }//end setCredentials
+
+   /**
+    * Finds the charset a stream encodes text with, for code that encodes
+    * text itself before writing bytes to the stream.
+    *
+    * @param out the stream
+    * @return the bound session's charset for a stream routed to or owned by
+    *         the session, and otherwise the stream's own charset, or the
+    *         default charset on runtimes that cannot tell
+    */
+   public static Charset charsetOf(PrintStream out) {
+      SessionContext session = CURRENT.get();
+      if (out instanceof RoutingPrintStream) {
+         if (session != null)
+            return session.charset;
+         out = ((RoutingPrintStream) out).console;
+      } else if (session != null && out == session.out) {
+         return session.charset;
+      }
+      if (PRINT_STREAM_CHARSET != null) {
+         try {
+            return (Charset) PRINT_STREAM_CHARSET.invoke(out);
+         } catch (IllegalAccessException | InvocationTargetException e) {
+            // fall through to the default charset
+         }
+      }
+      return Charset.defaultCharset();
+   }//end charsetOf
+
+   private static Method printStreamCharset() {
+      try {
+         return PrintStream.class.getMethod("charset");
+      } catch (NoSuchMethodException e) {
+         return null;
+      }
+   }//end printStreamCharset
+
+   /**
+    * Wraps the console reader in one that reads from the calling thread's
+    * session instead whenever one is bound.
+    *
+    * @param console the reader used outside a session
+    * @return the routing reader
+    */
+   public static BufferedReader routedInput(BufferedReader console) {
+      return new RoutingReader(console);
+   }//end routedInput
+
+   /**
+    * Points System.out and System.err at the calling thread's session, if
+    * any. Safe to call more than once.
+    */
+   public static synchronized void installOutput() {
+      if (!(System.out instanceof RoutingPrintStream))
+         System.setOut(new RoutingPrintStream(System.out));
+      if (!(System.err instanceof RoutingPrintStream))
+         System.setErr(new RoutingPrintStream(System.err));
+   }//end installOutput
+
+   /*
+    * Reads from the bound session, or from the console reader without one.
+    * A session that reaches end of input or fails to read is disconnected.
+    * Time spent waiting here is not charged to the current action's latency.
+    */
+   private static class RoutingReader extends BufferedReader {
+      private final BufferedReader console;
+
+      RoutingReader(BufferedReader console) {
+         super(Reader.nullReader(), 1);
+         this.console = console;
+      }
+
+      @Override
+      public String readLine() throws IOException {
+         Metrics.inputStarted();
+         try {
+            SessionContext session = CURRENT.get();
+            if (session == null)
+               return console.readLine();
+            session.out.flush();
+            String line;
+            try {
+               line = session.in.readLine();
+            } catch (IOException e) {
+               throw new Disconnected(session.name + ": " + e.getMessage());
+            }
+            if (line == null)
+               throw new Disconnected(session.name + ": end of input");
+            return line;
+         } finally {
+            Metrics.inputEnded();
+         }
+      }
+
+      @Override
+      public int read() throws IOException {
+         Metrics.inputStarted();
+         try {
+            SessionContext session = CURRENT.get();
+            if (session == null)
+               return console.read();
+            session.out.flush();
+            int c;
+            try {
+               c = session.in.read();
+            } catch (IOException e) {
+               throw new Disconnected(session.name + ": " + e.getMessage());
+            }
+            if (c < 0)
+               throw new Disconnected(session.name + ": end of input");
+            return c;
+         } finally {
+            Metrics.inputEnded();
+         }
+      }
+
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+         Metrics.inputStarted();
+         try {
+            SessionContext session = CURRENT.get();
+            if (session == null)
+               return console.read(cbuf, off, len);
+            session.out.flush();
+            int n;
+            try {
+               n = session.in.read(cbuf, off, len);
+            } catch (IOException e) {
+               throw new Disconnected(session.name + ": " + e.getMessage());
+            }
+            if (n < 0)
+               throw new Disconnected(session.name + ": end of input");
+            return n;
+         } finally {
+            Metrics.inputEnded();
+         }
+      }
+
+      @Override
+      public boolean ready() throws IOException {
+         SessionContext session = CURRENT.get();
+         return session == null ? console.ready() : session.in.ready();
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         SessionContext session = CURRENT.get();
+         return session == null ? console.skip(n) : session.in.skip(n);
+      }
+
+      @Override
+      public boolean markSupported() {
+         return false;
+      }
+
+      @Override
+      public void close() throws IOException {
+         SessionContext session = CURRENT.get();
+         if (session == null)
+            console.close();
+         else
+            session.in.close();
+      }
+   }//end RoutingReader
+
+   /*
+    * Prints to the bound session, or to the console stream without one. Every
+    * method delegates, so no state or lock is shared between sessions and a
+    * slow client only ever blocks its own thread.
+    */
+   private static class RoutingPrintStream extends PrintStream {
+      private final PrintStream console;
+
+      RoutingPrintStream(PrintStream console) {
+         super(console, true);
+         this.console = console;
+      }
+
+      private PrintStream target() {
+         SessionContext session = CURRENT.get();
+         return session == null ? console : session.out;
+      }
+
+      @Override public void flush() { target().flush(); }
+      @Override public void close() { target().close(); }
+      @Override public boolean checkError() { return target().checkError(); }
+      @Override public void write(int b) { target().write(b); }
+      @Override public void write(byte[] buf, int off, int len) { target().write(buf, off, len); }
+      @Override public void write(byte[] buf) throws IOException { target().write(buf); }
+      @Override public void print(boolean b) { target().print(b); }
+      @Override public void print(char c) { target().print(c); }
+      @Override public void print(int i) { target().print(i); }
+      @Override public void print(long l) { target().print(l); }
+      @Override public void print(float f) { target().print(f); }
+      @Override public void print(double d) { target().print(d); }
+      @Override public void print(char[] s) { target().print(s); }
+      @Override public void print(String s) { target().print(s); }
+      @Override public void print(Object obj) { target().print(obj); }
+      @Override public void println() { target().println(); }
+      @Override public void println(boolean x) { target().println(x); }
+      @Override public void println(char x) { target().println(x); }
+      @Override public void println(int x) { target().println(x); }
+      @Override public void println(long x) { target().println(x); }
+      @Override public void println(float x) { target().println(x); }
+      @Override public void println(double x) { target().println(x); }
+      @Override public void println(char[] x) { target().println(x); }
+      @Override public void println(String x) { target().println(x); }
+      @Override public void println(Object x) { target().println(x); }
+      @Override public PrintStream printf(String format, Object... args) { return target().printf(format, args); }
+      @Override public PrintStream printf(Locale l, String format, Object... args) { return target().printf(l, format, args); }
+      @Override public PrintStream format(String format, Object... args) { return target().format(format, args); }
+      @Override public PrintStream format(Locale l, String format, Object... args) { return target().format(l, format, args); }
+      @Override public PrintStream append(CharSequence csq) { return target().append(csq); }
+      @Override public PrintStream append(CharSequence csq, int start, int end) { return target().append(csq, start, end); }
+      @Override public PrintStream append(char c) { return target().append(c); }
+   }//end RoutingPrintStream
+
+}//end SessionContext
@@ -0,0 +1,195 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the PizzaStore menus to store terminals over TCP.
+ *
+ * Every client connection gets its own {@link SessionContext} and runs the
+ * same menus as the console program, on its own virtual thread. A session
+ * that is waiting for its user to type costs a parked virtual thread and a
+ * socket rather than a platform thread, so one instance can keep thousands
+ * of mostly idle terminals connected while sharing one small connection
+ * pool. Connect with any line-based client, e.g. {@code nc host port}.
+ *
+ * Virtual threads need Java 21. On older runtimes the server falls back to
+ * one platform thread per session.
+ *
+ */
+public class SessionServer {
+
+   // a session with no input for this long is disconnected
+   private static final int DEFAULT_IDLE_TIMEOUT_MINUTES = 30;
+   private static final int DEFAULT_POOL_SIZE = 16;
+
+   private final PizzaStore esql;
+   private final ServerSocket server;
+   private final int idleTimeoutMillis;
+   private final ExecutorService sessions;
+   private final AtomicInteger active = new AtomicInteger();
+   private final AtomicLong served = new AtomicLong();
+   private volatile boolean running = true;
+
+   /**
+    * Opens the listening socket.
+    *
+    * @param esql the store shared by every session
+    * @param port the TCP port to listen on
+    * @param idleTimeoutMillis how long a session may wait for input
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public SessionServer(PizzaStore esql, int port, int idleTimeoutMillis) throws IOException {
+      this.esql = esql;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.server = new ServerSocket();
+      this.server.setReuseAddress(true);
+      this.server.bind(new InetSocketAddress(port), 1024);
+      this.sessions = newSessionExecutor();
+   }//end SessionServer
+
+   /**
+    * Accepts clients until {@link #close} is called, starting a session for
+    * each one.
+    */
+   public void serve() {
+      SessionContext.installOutput();
+      System.out.println("Serving sessions on port " + server.getLocalPort());
+      while (running) {
+         final Socket client;
+         try {
+            client = server.accept();
+         } catch (IOException e) {
+            if (running)
+               System.err.println("Accept failed: " + e.getMessage());
+            continue;
+         }
+         sessions.execute(() -> runSession(client));
+      }
+   }//end serve
+
+   /*
+    * Runs the menus for one client until it exits, disconnects or idles out.
+    */
+   private void runSession(Socket client) {
+      String name = String.valueOf(client.getRemoteSocketAddress());
+      active.incrementAndGet();
+      served.incrementAndGet();
+      try {
+         client.setSoTimeout(idleTimeoutMillis);
+         client.setTcpNoDelay(true);
+         BufferedReader in = new BufferedReader(
+            new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+         PrintStream out = new PrintStream(
+            new BufferedOutputStream(client.getOutputStream()), false, StandardCharsets.UTF_8.name());
+         SessionContext.bind(new SessionContext(name, in, out, StandardCharsets.UTF_8));
+         try {
+            PizzaStore.Greeting();
+            PizzaStore.runSession(esql);
+            System.out.println("Bye !");
+            System.out.flush();
+         } finally {
+            SessionContext.bind(null);
+         }
+      } catch (SessionContext.Disconnected e) {
+         // the client went away; nothing left to tell it.
+      } catch (Exception e) {
+         System.err.println("Session " + name + " failed: " + e.getMessage());
+      } finally {
+         active.decrementAndGet();
+         try {
+            client.close();
+         } catch (IOException e) {
+            // ignored.
+         }
+      }
+   }//end runSession
+
+   /**
+    * @return a one-line summary of the sessions served so far
+    */
+   public String getStats() {
+      return "sessions: active=" + active.get() + " served=" + served.get();
+   }//end getStats
+
+   /**
+    * Stops accepting clients and waits briefly for open sessions to end.
+    */
+   public void close() {
+      running = false;
+      try {
+         server.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+      sessions.shutdown();
+      try {
+         sessions.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+   /*
+    * One virtual thread per session where the runtime has them, looked up
+    * reflectively so the rest of the program still builds on older JDKs.
+    */
+   private static ExecutorService newSessionExecutor() {
+      try {
+         return (ExecutorService) Executors.class
+            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         System.err.println("Virtual threads are not available; using one platform thread per session");
+         return Executors.newCachedThreadPool();
+      }
+   }//end newSessionExecutor
+
+   /**
+    * Starts the session server.
+    *
+    * @param args <dbname> <port> <user> <listen port> [pool size] [idle timeout minutes]
+    */
+   public static void main(String[] args) {
+      if (args.length < 4 || args.length > 6) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SessionServer.class.getName() +
+            " <dbname> <port> <user> <listen port> [pool size] [idle timeout minutes]");
+         return;
+      }//end if
+
+      PizzaStore esql = null;
+      try {
+         Class.forName("org.postgresql.Driver");
+         int poolSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_POOL_SIZE;
+         int idleMinutes = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_IDLE_TIMEOUT_MINUTES;
+         esql = new PizzaStore(args[0], args[1], args[2], "", poolSize);
+         final SessionServer server = new SessionServer(
+            esql, Integer.parseInt(args[3]), idleMinutes * 60 * 1000);
+         final PizzaStore store = esql;
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            System.out.println(server.getStats());
+            System.out.println(store.getPoolStats());
+            store.cleanup();
+         }));
+         server.serve();
+      } catch (Exception e) {
+         System.err.println("Session server failed: " + e.getMessage());
+         if (esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+}//end SessionServer
@@ -0,0 +1,134 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A least-recently-used cache of prepared statements for one physical
+ * connection, so that identical SQL text is parsed and planned once per
+ * connection instead of once per call.
+ *
+ * The PostgreSQL driver only substitutes parameters on the client unless a
+ * statement is switched to server-side prepare, so every statement is
+ * switched on when it is first prepared; the server then keeps its parse
+ * and plan for as long as the statement stays cached. The switch is looked
+ * up by reflection, so the code still compiles and runs without the driver
+ * on the classpath; with a driver that has no such switch the cache only
+ * saves the client-side work.
+ *
+ * A cache is only ever used by the caller that currently holds its
+ * connection, so it is not synchronized. Statements handed out by the cache
+ * must not be closed by the caller.
+ *
+ */
+public class StatementCache {
+
+   // org.postgresql.PGStatement.setUseServerPrepare, or null without it
+   private static final Method USE_SERVER_PREPARE = serverPrepareSwitch();
+
+   private final Connection connection;
+   private final LinkedHashMap<String, PreparedStatement> statements;
+   private final LongAdder hits;
+   private final LongAdder misses;
+
+   /**
+    * Creates an empty cache for the given connection
+    *
+    * @param connection the connection the statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    * @param hits counter incremented on every cache hit
+    * @param misses counter incremented on every cache miss
+    */
+   public StatementCache(Connection connection, final int capacity,
+                         LongAdder hits, LongAdder misses) {
+      this.connection = connection;
+      this.hits = hits;
+      this.misses = misses;
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= capacity)
+               return false;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the prepared statement for the given SQL text, preparing it on
+    * first use
+    *
+    * @param sql the SQL text with ? placeholders
+    * @return a prepared statement with its parameters cleared
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt != null) {
+         hits.increment();
+         stmt.clearParameters();
+         return stmt;
+      }
+      misses.increment();
+      stmt = connection.prepareStatement(sql);
+      useServerPrepare(stmt);
+      statements.put(sql, stmt);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Drops a statement from the cache, e.g. after it failed
+    *
+    * @param sql the SQL text the statement was prepared from
+    */
+   public void evict(String sql) {
+      PreparedStatement stmt = statements.remove(sql);
+      if (stmt != null)
+         closeQuietly(stmt);
+   }//end evict
+
+   /**
+    * Closes every cached statement.
+    */
+   public void clear() {
+      for (PreparedStatement stmt : statements.values())
+         closeQuietly(stmt);
+      statements.clear();
+   }//end clear
+
+   /*
+    * Asks the driver to PREPARE the statement on the server on its first
+    * execution. Leaves it client-side if the driver cannot.
+    */
+   private static void useServerPrepare(PreparedStatement stmt) {
+      if (USE_SERVER_PREPARE == null || !USE_SERVER_PREPARE.getDeclaringClass().isInstance(stmt))
+         return;
+      try {
+         USE_SERVER_PREPARE.invoke(stmt, Boolean.TRUE);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+         // ignored; the statement is prepared on the client only.
+      }
+   }//end useServerPrepare
+
+   private static Method serverPrepareSwitch() {
+      try {
+         return Class.forName("org.postgresql.PGStatement").getMethod("setUseServerPrepare", boolean.class);
+      } catch (ClassNotFoundException | NoSuchMethodException e) {
+         return null;
+      }
+   }//end serverPrepareSwitch
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }//end closeQuietly
+
+}//end StatementCache
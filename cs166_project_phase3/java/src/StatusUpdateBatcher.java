@@ -0,0 +1,235 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group commit for order status changes.
+ *
+ * Sessions hand their status changes to one writer thread and wait for the
+ * result. The writer takes whatever has queued up, waits at most the batch
+ * delay for more, and applies up to the batch size of changes in a single
+ * transaction, so concurrent drivers and kitchen staff share one commit
+ * instead of paying for one each. While a batch commits the next one
+ * gathers, so under load the batches grow by themselves; the writer only
+ * waits for more changes while changes keep arriving together.
+ *
+ * Every caller still gets its own answer: false for a missing order, or
+ * its own SQLException. If a batch transaction fails, e.g. because one
+ * status is too long, it is rolled back and its changes are applied one by
+ * one, so one bad change does not fail the others.
+ *
+ */
+public class StatusUpdateBatcher {
+
+   /**
+    * Where status changes are written.
+    */
+   public interface Writer {
+      boolean[] writeAll(int[] orderIDs, String[] statuses) throws SQLException;
+      boolean write(int orderID, String status) throws SQLException;
+   }//end Writer
+
+   /*
+    * One caller's status change and the answer it waits for.
+    */
+   private static class Request {
+      final int orderID;
+      final String status;
+      final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+      Request(int orderID, String status) {
+         this.orderID = orderID;
+         this.status = status;
+      }
+   }//end Request
+
+   // how long the writer waits for new requests before checking for close
+   private static final long IDLE_POLL_MILLIS = 100;
+
+   private final Writer writer;
+   private final int maxBatchSize;
+   private final long maxDelayNanos;
+   private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+   private Thread thread;              // guarded by this
+   private volatile boolean closed = false;
+
+   // metrics
+   private final LongAdder requests = new LongAdder();
+   private final LongAdder commits = new LongAdder();
+   private final LongAdder batches = new LongAdder();
+   private final LongAdder fallbacks = new LongAdder();
+   private volatile int maxBatch = 0;   // written by the writer thread only
+
+   /**
+    * @param writer where status changes are written
+    * @param maxBatchSize the most changes applied in one transaction
+    * @param maxDelayMillis how long a batch waits for more changes once it
+    *        has one
+    */
+   public StatusUpdateBatcher(Writer writer, int maxBatchSize, long maxDelayMillis) {
+      this.writer = writer;
+      this.maxBatchSize = maxBatchSize;
+      this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+   }//end StatusUpdateBatcher
+
+   /**
+    * Changes the status of an order as part of the next batch and waits for
+    * the batch to commit.
+    *
+    * @param orderID the order
+    * @param status the new status
+    * @return false if there is no such order
+    * @throws java.sql.SQLException when this change could not be written
+    */
+   public boolean update(int orderID, String status) throws SQLException {
+      Request request = new Request(orderID, status);
+      start();
+      queue.add(request);
+      // the writer may have drained the queue for the last time already
+      if (closed && queue.remove(request))
+         throw new SQLException("Status updates are shut down");
+      requests.increment();
+      try {
+         return request.result.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for a status update", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException("Status update failed", e.getCause());
+      }
+   }//end update
+
+   /**
+    * Writes the changes still queued and stops the writer thread.
+    */
+   public void close() {
+      Thread t;
+      synchronized (this) {
+         closed = true;
+         t = thread;
+      }
+      if (t == null)
+         return;
+      try {
+         t.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+   /**
+    * @return the number of transactions committed so far
+    */
+   public long getCommitCount() {
+      return commits.sum();
+   }//end getCommitCount
+
+   /**
+    * @return a one-line summary of the changes, batches and commits
+    */
+   public String getStats() {
+      long n = batches.sum();
+      return String.format(
+         "status updates: requests=%d commits=%d batches=%d avgBatch=%.1f maxBatch=%d fallbacks=%d",
+         requests.sum(), commits.sum(), n, n == 0 ? 0.0 : (double) requests.sum() / n,
+         maxBatch, fallbacks.sum());
+   }//end getStats
+
+   /*
+    * Starts the writer thread on first use.
+    */
+   private synchronized void start() throws SQLException {
+      if (closed)
+         throw new SQLException("Status updates are shut down");
+      if (thread != null)
+         return;
+      thread = new Thread(this::run, "StatusUpdate-writer");
+      thread.setDaemon(true);
+      thread.start();
+   }//end start
+
+   /*
+    * The writer thread: gathers a batch, writes it, and repeats until
+    * closed, then writes whatever is left.
+    */
+   private void run() {
+      List<Request> batch = new ArrayList<Request>(maxBatchSize);
+      int previous = 0;
+      try {
+         while (!closed) {
+            Request first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            // only wait for company when the last batch had some; a lone
+            // session should not pay the delay on every change
+            long deadline = System.nanoTime() + (previous > 1 || batch.size() > 1 ? maxDelayNanos : 0);
+            while (batch.size() < maxBatchSize) {
+               long wait = deadline - System.nanoTime();
+               Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+               if (next == null)
+                  break;
+               batch.add(next);
+               queue.drainTo(batch, maxBatchSize - batch.size());
+            }
+            flush(batch);
+            previous = batch.size();
+            batch.clear();
+         }
+      } catch (InterruptedException e) {
+         // fall through and write what is queued
+      }
+      while (queue.drainTo(batch, maxBatchSize) > 0) {
+         flush(batch);
+         batch.clear();
+      }
+   }//end run
+
+   /*
+    * Writes one batch in one transaction, or change by change if the
+    * transaction fails, and answers every caller.
+    */
+   private void flush(List<Request> batch) {
+      batches.increment();
+      if (batch.size() > maxBatch)
+         maxBatch = batch.size();
+      if (batch.size() > 1) {
+         int[] orderIDs = new int[batch.size()];
+         String[] statuses = new String[batch.size()];
+         for (int i = 0; i < batch.size(); ++i) {
+            orderIDs[i] = batch.get(i).orderID;
+            statuses[i] = batch.get(i).status;
+         }
+         try {
+            boolean[] updated = writer.writeAll(orderIDs, statuses);
+            commits.increment();
+            for (int i = 0; i < batch.size(); ++i)
+               batch.get(i).result.complete(updated[i]);
+            return;
+         } catch (SQLException e) {
+            fallbacks.increment();
+         } catch (RuntimeException e) {
+            fallbacks.increment();
+         }
+      }
+      for (Request request : batch) {
+         try {
+            request.result.complete(writer.write(request.orderID, request.status));
+            commits.increment();
+         } catch (SQLException e) {
+            request.result.completeExceptionally(e);
+         } catch (RuntimeException e) {
+            request.result.completeExceptionally(e);
+         }
+      }
+   }//end flush
+
+}//end StatusUpdateBatcher
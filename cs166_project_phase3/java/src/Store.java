@@ -0,0 +1,59 @@
+/**
+ * An immutable row of the Store table.
+ *
+ */
+public class Store {
+   private final int storeID;
+   private final String address;
+   private final String city;
+   private final String state;
+   private final String isOpen;
+   private final Double reviewScore;
+
+   public Store(int storeID, String address, String city, String state,
+                String isOpen, Double reviewScore) {
+      this.storeID = storeID;
+      this.address = address;
+      this.city = city;
+      this.state = state;
+      this.isOpen = isOpen;
+      this.reviewScore = reviewScore;
+   }
+
+   public int getStoreID() {
+      return storeID;
+   }
+
+   public String getAddress() {
+      return address;
+   }
+
+   public String getCity() {
+      return city;
+   }
+
+   public String getState() {
+      return state;
+   }
+
+   /**
+    * @return the isOpen column as stored, e.g. "yes"
+    */
+   public String getIsOpen() {
+      return isOpen;
+   }
+
+   /**
+    * @return true if the store is taking orders
+    */
+   public boolean isOpen() {
+      return "yes".equalsIgnoreCase(isOpen == null ? null : isOpen.trim());
+   }
+
+   /**
+    * @return the review score, or null if the store has none
+    */
+   public Double getReviewScore() {
+      return reviewScore;
+   }
+}
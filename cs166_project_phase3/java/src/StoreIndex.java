@@ -0,0 +1,309 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process search index over the open stores of the Store table.
+ *
+ * Stores are found by state and by a prefix of the city name, both matched
+ * without regard to case, and come back best reviewed first. Each snapshot
+ * keeps the open stores of every state, and of all states together, twice:
+ * sorted by city, so a city prefix is a binary-searched range, and sorted
+ * by review score, so a search without a prefix is just the head of an
+ * array. No search scans the table.
+ *
+ * Like {@link MenuCache}, the index is an immutable snapshot swapped
+ * atomically. The Store table's row in CacheVersion is bumped by a trigger
+ * on every change and re-checked at most once per check interval, so a
+ * change made by another application instance is picked up within that
+ * interval.
+ *
+ */
+public class StoreIndex {
+
+   /**
+    * Where the index reads the stores and their version from.
+    */
+   public interface Source {
+      long version() throws SQLException;
+      List<Store> stores() throws SQLException;
+   }//end Source
+
+   // best reviewed first; stores without a score last, then by storeID
+   static final Comparator<Store> BEST_REVIEWED = (a, b) -> {
+      Double x = a.getReviewScore();
+      Double y = b.getReviewScore();
+      if (x == null || y == null) {
+         if (x != y)
+            return x == null ? 1 : -1;
+      } else {
+         int c = Double.compare(y, x);
+         if (c != 0)
+            return c;
+      }
+      return Integer.compare(a.getStoreID(), b.getStoreID());
+   };
+
+   /*
+    * The open stores of one state, or of all states, in both search orders.
+    */
+   private static class Group {
+      final Store[] byCity;
+      final String[] cityKeys;
+      final Store[] byScore;
+
+      Group(List<Store> stores) {
+         byCity = stores.toArray(new Store[0]);
+         Arrays.sort(byCity, (a, b) -> {
+            int c = key(a.getCity()).compareTo(key(b.getCity()));
+            return c != 0 ? c : BEST_REVIEWED.compare(a, b);
+         });
+         cityKeys = new String[byCity.length];
+         for (int i = 0; i < byCity.length; ++i)
+            cityKeys[i] = key(byCity[i].getCity());
+         byScore = stores.toArray(new Store[0]);
+         Arrays.sort(byScore, BEST_REVIEWED);
+      }
+
+      List<Store> find(String cityPrefix, int limit) {
+         if (cityPrefix.isEmpty())
+            return Collections.unmodifiableList(Arrays.asList(byScore).subList(0, Math.min(limit, byScore.length)));
+         int from = lowerBound(cityKeys, cityPrefix);
+         int to = lowerBound(cityKeys, cityPrefix + Character.MAX_VALUE);
+         Store[] matches = Arrays.copyOfRange(byCity, from, to);
+         Arrays.sort(matches, BEST_REVIEWED);
+         return Collections.unmodifiableList(Arrays.asList(matches).subList(0, Math.min(limit, matches.length)));
+      }
+   }//end Group
+
+   /**
+    * An immutable index of the open stores at one version.
+    */
+   public static class Snapshot {
+      private final long version;
+      private final int storeCount;
+      private final Group all;
+      private final Map<String, Group> byState;
+
+      Snapshot(long version, List<Store> stores) {
+         this.version = version;
+         this.storeCount = stores.size();
+         List<Store> open = new ArrayList<Store>();
+         Map<String, List<Store>> states = new HashMap<String, List<Store>>();
+         for (Store store : stores) {
+            if (!store.isOpen())
+               continue;
+            open.add(store);
+            states.computeIfAbsent(key(store.getState()), k -> new ArrayList<Store>()).add(store);
+         }
+         this.all = new Group(open);
+         Map<String, Group> byState = new HashMap<String, Group>();
+         for (Map.Entry<String, List<Store>> entry : states.entrySet())
+            byState.put(entry.getKey(), new Group(entry.getValue()));
+         this.byState = byState;
+      }
+
+      public long getVersion() {
+         return version;
+      }
+
+      /**
+       * @return the number of stores, open or not
+       */
+      public int getStoreCount() {
+         return storeCount;
+      }
+
+      /**
+       * @return the number of open stores
+       */
+      public int getOpenCount() {
+         return all.byScore.length;
+      }
+
+      /**
+       * Finds open stores, best reviewed first.
+       *
+       * @param state the state, or null or blank for any state
+       * @param cityPrefix the start of the city name, or null or blank for
+       *        any city
+       * @param limit the largest number of stores to return
+       * @return the matching stores
+       */
+      public List<Store> find(String state, String cityPrefix, int limit) {
+         Group group = all;
+         if (state != null && !state.trim().isEmpty()) {
+            group = byState.get(key(state));
+            if (group == null)
+               return Collections.emptyList();
+         }
+         return group.find(cityPrefix == null ? "" : key(cityPrefix), Math.max(0, limit));
+      }
+   }//end Snapshot
+
+   private final Source source;
+   private final long checkIntervalMillis;
+   private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>();
+   private final ReentrantLock refreshLock = new ReentrantLock();
+   private volatile long lastCheckedAt = 0;
+
+   // metrics
+   private final LongAdder searches = new LongAdder();
+   private final LongAdder searchNanos = new LongAdder();
+   private final LongAdder versionChecks = new LongAdder();
+   private long refreshCount = 0;        // guarded by refreshLock
+   private long maxRefreshNanos = 0;     // guarded by refreshLock
+
+   /**
+    * Creates an empty index; the stores are loaded on first use.
+    *
+    * @param source where the stores and their version are read from
+    * @param checkIntervalMillis how long a snapshot is served before its
+    *        version is checked against the database again
+    */
+   public StoreIndex(Source source, long checkIntervalMillis) {
+      this.source = source;
+      this.checkIntervalMillis = checkIntervalMillis;
+   }//end StoreIndex
+
+   /**
+    * Returns the current index, loading it on first use and rebuilding it
+    * if the version check finds that the stores changed.
+    *
+    * @return an immutable snapshot of the index
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public Snapshot snapshot() throws SQLException {
+      Snapshot snap = current.get();
+      if (snap == null)
+         return refresh(true);
+      if (System.currentTimeMillis() - lastCheckedAt >= checkIntervalMillis
+            && refreshLock.tryLock()) {
+         // only one caller checks the version; everyone else keeps reading
+         try {
+            versionChecks.increment();
+            lastCheckedAt = System.currentTimeMillis();
+            if (source.version() != snap.getVersion())
+               return reload();
+         } finally {
+            refreshLock.unlock();
+         }
+      }
+      return snap;
+   }//end snapshot
+
+   /**
+    * Finds open stores, best reviewed first.
+    *
+    * @param state the state, or null or blank for any state
+    * @param cityPrefix the start of the city name, or null or blank for any
+    *        city
+    * @param limit the largest number of stores to return
+    * @return the matching stores
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public List<Store> find(String state, String cityPrefix, int limit) throws SQLException {
+      Snapshot snap = snapshot();
+      long start = System.nanoTime();
+      List<Store> stores = snap.find(state, cityPrefix, limit);
+      searchNanos.add(System.nanoTime() - start);
+      searches.increment();
+      return stores;
+   }//end find
+
+   /**
+    * Rebuilds the index right away, e.g. after this instance changed a
+    * store.
+    *
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public void invalidate() throws SQLException {
+      refresh(false);
+   }//end invalidate
+
+   /**
+    * @return a one-line summary of the index size, search time and rebuilds
+    */
+   public String getStats() {
+      long n = searches.sum();
+      refreshLock.lock();
+      try {
+         Snapshot snap = current.get();
+         return String.format(
+            "store index: version=%s stores=%d open=%d | searches=%d avgSearch=%.3fus versionChecks=%d | rebuilds=%d maxRebuild=%.3fms",
+            snap == null ? "-" : Long.toString(snap.getVersion()),
+            snap == null ? 0 : snap.getStoreCount(), snap == null ? 0 : snap.getOpenCount(),
+            n, n == 0 ? 0.0 : searchNanos.sum() / 1e3 / n, versionChecks.sum(),
+            refreshCount, maxRefreshNanos / 1e6);
+      } finally {
+         refreshLock.unlock();
+      }
+   }//end getStats
+
+   /*
+    * Loads a new snapshot under the refresh lock. When onlyIfEmpty is set a
+    * snapshot loaded by another caller while this one waited is reused.
+    */
+   private Snapshot refresh(boolean onlyIfEmpty) throws SQLException {
+      refreshLock.lock();
+      try {
+         Snapshot snap = current.get();
+         if (onlyIfEmpty && snap != null)
+            return snap;
+         return reload();
+      } finally {
+         refreshLock.unlock();
+      }
+   }//end refresh
+
+   /*
+    * Reads the version before the stores, so a change that lands in between
+    * is seen as a newer version on the next check. Called under refreshLock.
+    */
+   private Snapshot reload() throws SQLException {
+      long start = System.nanoTime();
+      long version = source.version();
+      Snapshot snap = new Snapshot(version, source.stores());
+      current.set(snap);
+      lastCheckedAt = System.currentTimeMillis();
+
+      long elapsed = System.nanoTime() - start;
+      refreshCount++;
+      if (elapsed > maxRefreshNanos)
+         maxRefreshNanos = elapsed;
+      return snap;
+   }//end reload
+
+   /*
+    * The search key of a state or city name.
+    */
+   private static String key(String name) {
+      return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+   }//end key
+
+   /*
+    * The first index whose key is not less than the probe.
+    */
+   private static int lowerBound(String[] keys, String probe) {
+      int lo = 0;
+      int hi = keys.length;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (keys[mid].compareTo(probe) < 0)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      return lo;
+   }//end lowerBound
+
+}//end StoreIndex
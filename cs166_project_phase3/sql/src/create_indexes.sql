@@ -1,5 +1,8 @@
 DROP INDEX IF EXISTS login_index;
 DROP INDEX IF EXISTS storeIDs_index;
+DROP INDEX IF EXISTS foodorder_login_history_index;
+DROP INDEX IF EXISTS foodorder_timestamp_index;
+DROP INDEX IF EXISTS foodorder_pending_index;
 
 CREATE INDEX login_index
 ON Users (login);
@@ -7,3 +10,15 @@ ON Users (login);
 CREATE INDEX storeIDs_index
 ON Store (storeID);
 
+--Order history is paged newest first on (orderTimestamp, orderID) per login
+CREATE INDEX foodorder_login_history_index
+ON FoodOrder (login, orderTimestamp DESC, orderID DESC);
+
+--The sales dashboard is rebuilt at startup from the orders of the last week
+CREATE INDEX foodorder_timestamp_index
+ON FoodOrder (orderTimestamp);
+
+--Dispatch queues are rebuilt at startup from the Pending orders only
+CREATE INDEX foodorder_pending_index
+ON FoodOrder (orderTimestamp, orderID)
+WHERE orderStatus = 'Pending';
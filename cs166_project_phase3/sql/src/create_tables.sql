@@ -3,6 +3,13 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS CacheVersion CASCADE;
+DROP TABLE IF EXISTS RecentOrders CASCADE;
+DROP TABLE IF EXISTS RecentOrderCount CASCADE;
+DROP SEQUENCE IF EXISTS orderID_seq;
+
+--Order IDs are reserved by clients in blocks of 50 (see OrderIdAllocator)
+CREATE SEQUENCE orderID_seq START WITH 10001 INCREMENT BY 50;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
@@ -53,3 +60,34 @@ CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            ON DELETE CASCADE
 );
 
+--Bumped by triggers whenever a cached table changes (see MenuCache)
+CREATE TABLE CacheVersion ( name varchar(50) NOT NULL,
+                           version bigint NOT NULL,
+                           PRIMARY KEY(name)
+);
+
+INSERT INTO CacheVersion (name, version) VALUES ('Items', 0);
+INSERT INTO CacheVersion (name, version) VALUES ('Store', 0);
+
+--Each customer's last 5 orders as a ring of slots 0-4, kept by a trigger on
+--FoodOrder (see update_recent_orders); seq numbers the customer's orders
+CREATE TABLE RecentOrderCount ( login varchar(50) NOT NULL,
+                           placed bigint NOT NULL,
+                           PRIMARY KEY(login),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE
+);
+
+CREATE TABLE RecentOrders ( login varchar(50) NOT NULL,
+                           slot smallint NOT NULL CHECK (slot BETWEEN 0 AND 4),
+                           seq bigint NOT NULL,
+                           orderID integer NOT NULL,
+                           storeID integer NOT NULL,
+                           totalPrice decimal(10,2) NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           PRIMARY KEY(login, slot),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE,
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID)
+                           ON DELETE CASCADE
+);
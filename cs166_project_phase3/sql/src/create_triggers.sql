@@ -15,11 +15,17 @@ FOR EACH ROW
 EXECUTE FUNCTION set_default_user_attributes();
 
 --Place Order Trigger
+-- Continue the order ID sequence after the loaded orders
+SELECT setval('orderID_seq', (SELECT COALESCE(MAX(orderID), 10000) + 1 FROM FoodOrder), false);
+
 CREATE OR REPLACE FUNCTION auto_increment_orderID()
 RETURNS TRIGGER AS $$
 BEGIN
-    -- Generate the next orderID
-    NEW.orderID := COALESCE((SELECT MAX(orderID) FROM FoodOrder), 10000) + 1;
+    -- Generate an orderID only when the client did not reserve one; this
+    -- takes a whole block so it can never collide with client-side blocks
+    IF NEW.orderID IS NULL THEN
+        NEW.orderID := nextval('orderID_seq');
+    END IF;
     RETURN NEW;
 END;
 $$ LANGUAGE plpgsql;
@@ -29,6 +35,34 @@ BEFORE INSERT ON FoodOrder
 FOR EACH ROW
 EXECUTE FUNCTION auto_increment_orderID();
 
+--Menu Cache Version
+CREATE OR REPLACE FUNCTION bump_items_version()
+RETURNS TRIGGER AS $$
+BEGIN
+    UPDATE CacheVersion SET version = version + 1 WHERE name = 'Items';
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bump_items_version_trigger
+AFTER INSERT OR UPDATE OR DELETE ON Items
+FOR EACH STATEMENT
+EXECUTE FUNCTION bump_items_version();
+
+--Store Index Version
+CREATE OR REPLACE FUNCTION bump_store_version()
+RETURNS TRIGGER AS $$
+BEGIN
+    UPDATE CacheVersion SET version = version + 1 WHERE name = 'Store';
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bump_store_version_trigger
+AFTER INSERT OR UPDATE OR DELETE ON Store
+FOR EACH STATEMENT
+EXECUTE FUNCTION bump_store_version();
+
 --Update Order Status
 CREATE OR REPLACE FUNCTION update_order_status_timestamp()
 RETURNS TRIGGER AS $$
@@ -46,23 +80,39 @@ FOR EACH ROW
 EXECUTE FUNCTION update_order_status_timestamp();
 
 --See Order History
+-- Fill the rings from the loaded orders
+INSERT INTO RecentOrderCount (login, placed)
+SELECT login, COUNT(*) FROM FoodOrder GROUP BY login;
+
+INSERT INTO RecentOrders (login, slot, seq, orderID, storeID, totalPrice, orderTimestamp)
+SELECT login, (seq - 1) % 5, seq, orderID, storeID, totalPrice, orderTimestamp
+FROM (SELECT login, orderID, storeID, totalPrice, orderTimestamp,
+             ROW_NUMBER() OVER (PARTITION BY login ORDER BY orderTimestamp, orderID) AS seq,
+             COUNT(*) OVER (PARTITION BY login) AS placed
+      FROM FoodOrder) numbered
+WHERE seq > placed - 5;
+
 CREATE OR REPLACE FUNCTION update_recent_orders()
 RETURNS TRIGGER AS $$
+DECLARE
+    placedCount bigint;
 BEGIN
-    -- Insert into recentOrders
-    INSERT INTO recentOrders (userID, orderID, orderTimestamp)
-    VALUES (NEW.userID, NEW.orderID, NEW.orderTimestamp);
-
-    -- Keep only the 5 most recent orders
-    DELETE FROM recentOrders
-    WHERE userID = NEW.userID
-      AND orderTimestamp NOT IN (
-          SELECT orderTimestamp
-          FROM recentOrders
-          WHERE userID = NEW.userID
-          ORDER BY orderTimestamp DESC
-          LIMIT 5
-      );
+    -- Number the order; the row lock also serializes one customer's orders
+    INSERT INTO RecentOrderCount (login, placed)
+    VALUES (NEW.login, 1)
+    ON CONFLICT (login) DO UPDATE SET placed = RecentOrderCount.placed + 1
+    RETURNING placed INTO placedCount;
+
+    -- Overwrite the oldest of the customer's 5 slots
+    INSERT INTO RecentOrders (login, slot, seq, orderID, storeID, totalPrice, orderTimestamp)
+    VALUES (NEW.login, (placedCount - 1) % 5, placedCount,
+            NEW.orderID, NEW.storeID, NEW.totalPrice, NEW.orderTimestamp)
+    ON CONFLICT (login, slot) DO UPDATE
+    SET seq = EXCLUDED.seq,
+        orderID = EXCLUDED.orderID,
+        storeID = EXCLUDED.storeID,
+        totalPrice = EXCLUDED.totalPrice,
+        orderTimestamp = EXCLUDED.orderTimestamp;
     RETURN NEW;
 END;
 $$ LANGUAGE plpgsql;